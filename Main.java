@@ -5,9 +5,11 @@ import ru.fizteh.fivt.students.dmitry_persiyanov.database.db_table_provider.DbTa
 import ru.fizteh.fivt.students.dmitry_persiyanov.interpreter.Interpreter;
 
 import java.io.ByteArrayInputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.List;
 
 public final class Main {
     private static Path rootDir;
@@ -22,6 +24,9 @@ public final class Main {
         } else {
             rootDir = Paths.get(dbdir);
         }
+        if (Boolean.getBoolean("fizteh.db.verify")) {
+            verifyShards();
+        }
         try {
             tableProvider = new DbTableProvider(rootDir);
             dbParser = new DbCommandsParser(tableProvider);
@@ -37,6 +42,20 @@ public final class Main {
         }
     }
 
+    // Damaged shards are reported before the database is opened, so none of them is read.
+    private static void verifyShards() {
+        try {
+            List<String> damagedShards = DbTableProvider.verifyShards(rootDir);
+            if (!damagedShards.isEmpty()) {
+                damagedShards.forEach(damage -> System.err.println("Damaged shard: " + damage));
+                System.exit(1);
+            }
+        } catch (IOException e) {
+            System.err.println("Cannot verify database: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
     private static ByteArrayInputStream buildStreamFromArgs(final String[] args) {
         return new ByteArrayInputStream(String.join(" ", args).getBytes());
     }
@@ -12,7 +12,7 @@ import java.io.IOException;
 import java.io.PrintStream;
 
 public abstract class DbCommand implements InterpreterCommand {
-    protected static int numOfArgs;
+    protected int numOfArgs;
     protected String[] args;
     protected String name;
     protected TableProvider tableProvider;
@@ -3,19 +3,29 @@ package ru.fizteh.fivt.students.dmitry_persiyanov.database.commands.table_comman
 import ru.fizteh.fivt.storage.structured.Storeable;
 import ru.fizteh.fivt.storage.structured.TableProvider;
 import ru.fizteh.fivt.students.dmitry_persiyanov.database.commands.DbCommand;
+import ru.fizteh.fivt.students.dmitry_persiyanov.database.db_table.DbTable;
+import ru.fizteh.fivt.students.dmitry_persiyanov.database.db_table_provider.DbTableProvider;
 import ru.fizteh.fivt.students.dmitry_persiyanov.database.exceptions.TableIsNotChosenException;
 
 import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
 
+/**
+ * get <key> [<columns>]: prints the row of the key. Columns are comma-separated column indexes,
+ * e.g. 0,2: only they are read and printed, in the given order.
+ */
 public class GetCommand extends DbCommand {
     public GetCommand(final String[] args, final TableProvider tableProvider) {
-        super("get", 1, args, tableProvider);
+        super("get", args.length == 2 ? 2 : 1, args, tableProvider);
     }
 
     @Override
     protected void execChecked(final PrintStream out) throws TableIsNotChosenException {
         if (currentTable == null) {
             throw new TableIsNotChosenException();
+        } else if (args.length == 2) {
+            getColumns(out);
         } else {
             String key = args[0];
             Storeable value = currentTable.get(key);
@@ -26,4 +36,49 @@ public class GetCommand extends DbCommand {
             }
         }
     }
+
+    private void getColumns(final PrintStream out) {
+        if (!(currentTable instanceof DbTable)) {
+            out.println("table doesn't support reading of columns");
+            return;
+        }
+        int[] columns = parseColumns(args[1], out);
+        if (columns == null) {
+            return;
+        }
+        Storeable value;
+        try {
+            value = ((DbTable) currentTable).get(args[0], columns);
+        } catch (IndexOutOfBoundsException e) {
+            out.println("wrong columns: " + args[1]);
+            return;
+        }
+        if (value == null) {
+            out.println("not found");
+        } else {
+            List<String> strColumns = new ArrayList<>();
+            for (int i = 0; i < columns.length; ++i) {
+                strColumns.add(DbTableProvider.serializeColumn(currentTable.getColumnType(columns[i]),
+                        value.getColumnAt(i)));
+            }
+            out.println("found" + System.lineSeparator() + "[" + String.join(", ", strColumns) + "]");
+        }
+    }
+
+    /**
+     * @return Column indexes or null if they are wrong (the error is printed).
+     */
+    private static int[] parseColumns(final String columns, final PrintStream out) {
+        String[] strColumns = columns.split(",");
+        int[] result = new int[strColumns.length];
+        try {
+            for (int i = 0; i < strColumns.length; ++i) {
+                result[i] = Integer.parseInt(strColumns[i]);
+            }
+            return result;
+        } catch (NumberFormatException e) {
+            out.println("wrong columns: " + columns);
+            return null;
+        }
+    }
 }
@@ -0,0 +1,76 @@
+package ru.fizteh.fivt.students.dmitry_persiyanov.database.commands.table_commands;
+
+import ru.fizteh.fivt.storage.structured.Storeable;
+import ru.fizteh.fivt.storage.structured.TableProvider;
+import ru.fizteh.fivt.students.dmitry_persiyanov.database.commands.DbCommand;
+import ru.fizteh.fivt.students.dmitry_persiyanov.database.db_table.DbTable;
+import ru.fizteh.fivt.students.dmitry_persiyanov.database.db_table.ScanIterator;
+import ru.fizteh.fivt.students.dmitry_persiyanov.database.exceptions.TableIsNotChosenException;
+
+import java.io.PrintStream;
+import java.util.Map;
+
+/**
+ * scan <from> <to> [<limit>]: prints rows with keys in [from, to) in key order, one per line.
+ * "-" instead of from or to leaves that end of the range open, e.g. "scan - -" prints the whole table,
+ * so key "-" itself can't be a bound.
+ */
+public class ScanCommand extends DbCommand {
+    static final String OPEN_BOUND = "-";
+
+    public ScanCommand(final String[] args, final TableProvider tableProvider) {
+        super("scan", args.length == 3 ? 3 : 2, args, tableProvider);
+    }
+
+    @Override
+    protected void execChecked(final PrintStream out) throws TableIsNotChosenException {
+        if (currentTable == null) {
+            throw new TableIsNotChosenException();
+        } else if (!(currentTable instanceof DbTable)) {
+            out.println("table doesn't support scans");
+        } else {
+            Integer limit = parseLimit(args.length == 3 ? args[2] : null, out);
+            if (limit != null) {
+                printRows(((DbTable) currentTable).scan(parseBound(args[0]), parseBound(args[1]), limit),
+                        tableProvider, out);
+            }
+        }
+    }
+
+    /**
+     * @return Parsed limit, DbTable.NO_LIMIT if it's not given or null if it's wrong (the error is printed).
+     */
+    static Integer parseLimit(final String limit, final PrintStream out) {
+        if (limit == null) {
+            return DbTable.NO_LIMIT;
+        }
+        try {
+            int value = Integer.parseInt(limit);
+            if (value >= 0) {
+                return value;
+            }
+        } catch (NumberFormatException e) {
+            // Error is printed below.
+        }
+        out.println("wrong limit: " + limit);
+        return null;
+    }
+
+    /**
+     * @return The bound or null if it's OPEN_BOUND, as DbTable.scan() takes an open bound.
+     */
+    private static String parseBound(final String bound) {
+        return bound.equals(OPEN_BOUND) ? null : bound;
+    }
+
+    static void printRows(final ScanIterator<Map.Entry<String, Storeable>> rows,
+                          final TableProvider tableProvider,
+                          final PrintStream out) {
+        try (ScanIterator<Map.Entry<String, Storeable>> closedRows = rows) {
+            while (closedRows.hasNext()) {
+                Map.Entry<String, Storeable> row = closedRows.next();
+                out.println(row.getKey() + " " + tableProvider.serialize(currentTable, row.getValue()));
+            }
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package ru.fizteh.fivt.students.dmitry_persiyanov.database.commands.table_commands;
+
+import ru.fizteh.fivt.storage.structured.TableProvider;
+import ru.fizteh.fivt.students.dmitry_persiyanov.database.commands.DbCommand;
+import ru.fizteh.fivt.students.dmitry_persiyanov.database.db_table.DbTable;
+import ru.fizteh.fivt.students.dmitry_persiyanov.database.exceptions.TableIsNotChosenException;
+
+import java.io.PrintStream;
+
+/**
+ * scanprefix <prefix> [<limit>]: prints rows which keys start with prefix in key order, one per line.
+ */
+public class ScanPrefixCommand extends DbCommand {
+    public ScanPrefixCommand(final String[] args, final TableProvider tableProvider) {
+        super("scanprefix", args.length == 2 ? 2 : 1, args, tableProvider);
+    }
+
+    @Override
+    protected void execChecked(final PrintStream out) throws TableIsNotChosenException {
+        if (currentTable == null) {
+            throw new TableIsNotChosenException();
+        } else if (!(currentTable instanceof DbTable)) {
+            out.println("table doesn't support scans");
+        } else {
+            Integer limit = ScanCommand.parseLimit(args.length == 2 ? args[1] : null, out);
+            if (limit != null) {
+                ScanCommand.printRows(((DbTable) currentTable).scanByPrefix(args[0], limit), tableProvider, out);
+            }
+        }
+    }
+}
@@ -57,6 +57,10 @@ public final class DbCommandsParser implements InterpreterCommandsParser {
                 return new RemoveCommand(commandArgs, tableProvider);
             case "list":
                 return new ListCommand(commandArgs, tableProvider);
+            case "scan":
+                return new ScanCommand(commandArgs, tableProvider);
+            case "scanprefix":
+                return new ScanPrefixCommand(commandArgs, tableProvider);
             case "size":
                 return new SizeCommand(commandArgs, tableProvider);
             case "commit":
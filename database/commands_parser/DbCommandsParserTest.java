@@ -8,6 +8,8 @@ import ru.fizteh.fivt.students.dmitry_persiyanov.database.db_table_provider.DbTa
 import ru.fizteh.fivt.students.dmitry_persiyanov.interpreter.InterpreterCommand;
 import ru.fizteh.fivt.students.dmitry_persiyanov.interpreter.exceptions.WrongCommandException;
 
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
 import java.nio.file.Path;
 import java.util.Arrays;
 import java.util.List;
@@ -42,6 +44,52 @@ public class DbCommandsParserTest {
         assertEquals(Arrays.asList("create", "use", "size", "put"), commandNames);
     }
 
+    @Test
+    public void testParsingScanCommands() {
+        Scanner input = new Scanner("scan a b; scan a b 10; scanprefix user:1; scanprefix user:1 10");
+        List<String> commandNames = parser.parseAllInput(input).stream().map(InterpreterCommand::getName)
+                .collect(Collectors.toList());
+        assertEquals(Arrays.asList("scan", "scan", "scanprefix", "scanprefix"), commandNames);
+    }
+
+    @Test
+    public void testScanWithOpenBounds() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PrintStream printOut = new PrintStream(out);
+        // The current table is shared by commands, so changes left by other tests must not block "use".
+        Scanner input = new Scanner("rollback; create t1 (String int); use t1; put a [\"a\", 1];"
+                + " put b [\"b\", 2]; put c [\"c\", 3]; commit; scan - b; scan b -; scan - - 2");
+        parser.parseAllInput(input).forEach(command -> command.exec(printOut, printOut));
+        String[] lines = out.toString().split(System.lineSeparator());
+        List<String> scanOutput = Arrays.asList(lines).subList(lines.length - 5, lines.length);
+        assertEquals(Arrays.asList("a [\"a\", 1]", "b [\"b\", 2]", "c [\"c\", 3]", "a [\"a\", 1]",
+                "b [\"b\", 2]"), scanOutput);
+    }
+
+    @Test
+    public void testProjectedGetPrintsRequestedColumns() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PrintStream printOut = new PrintStream(out);
+        Scanner input = new Scanner("create t1 (String int boolean); use t1; put k [\"John Doe\", 42, true];"
+                + " get k 2,0; get k 5; get k x; get missing 1");
+        parser.parseAllInput(input).forEach(command -> command.exec(printOut, printOut));
+        String[] lines = out.toString().split(System.lineSeparator());
+        List<String> getOutput = Arrays.asList(lines).subList(lines.length - 5, lines.length);
+        assertEquals(Arrays.asList("found", "[true, \"John Doe\"]", "wrong columns: 5", "wrong columns: x",
+                "not found"), getOutput);
+    }
+
+    @Test
+    public void testProjectedGetOfAllColumnsPrintsRowAsGet() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PrintStream printOut = new PrintStream(out);
+        Scanner input = new Scanner("create t1 (String int double); use t1; put k [\"x\", null, 1.5];"
+                + " get k; get k 0,1,2");
+        parser.parseAllInput(input).forEach(command -> command.exec(printOut, printOut));
+        String[] lines = out.toString().split(System.lineSeparator());
+        assertEquals(lines[lines.length - 3], lines[lines.length - 1]);
+    }
+
     @Test
     public void testParsingOneCommand() {
         Scanner input = new Scanner("show tables");
@@ -0,0 +1,197 @@
+package ru.fizteh.fivt.students.dmitry_persiyanov.database.db_table;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Collection;
+
+/**
+ * Set of keys which may answer "maybe present" for a key that was never added, but never answers
+ * "absent" for a key that was. Keys can't be removed, so a filter is rebuilt when its shard is rewritten.
+ * Every key sets HASH_COUNT bits chosen by double hashing (h1 + i * h2) of a 64-bit hash of its chars.
+ * It isn't thread-safe for add(), ShardedMapEngine adds keys only under its write lock.
+ */
+public final class BloomFilter {
+    /**
+     * Counters of the filters of a table since it was opened.
+     */
+    public static final class Stats {
+        private final int filterCount;
+        private final long sizeInBytes;
+        private final double expectedFalsePositiveRate;
+        private final long negativeCount;
+        private final long falsePositiveCount;
+
+        Stats(int filterCount, long sizeInBytes, double expectedFalsePositiveRate,
+              long negativeCount, long falsePositiveCount) {
+            this.filterCount = filterCount;
+            this.sizeInBytes = sizeInBytes;
+            this.expectedFalsePositiveRate = expectedFalsePositiveRate;
+            this.negativeCount = negativeCount;
+            this.falsePositiveCount = falsePositiveCount;
+        }
+
+        /**
+         * @return Number of filters in memory.
+         */
+        public int getFilterCount() {
+            return filterCount;
+        }
+
+        /**
+         * @return Memory taken by bits of the filters in memory.
+         */
+        public long getSizeInBytes() {
+            return sizeInBytes;
+        }
+
+        /**
+         * @return False positive rate of the filters in memory estimated by the share of set bits.
+         */
+        public double getExpectedFalsePositiveRate() {
+            return expectedFalsePositiveRate;
+        }
+
+        /**
+         * @return Number of lookups of absent keys answered by filters without reading shards.
+         */
+        public long getNegativeCount() {
+            return negativeCount;
+        }
+
+        /**
+         * @return Number of lookups of absent keys which filters let through to shards.
+         */
+        public long getFalsePositiveCount() {
+            return falsePositiveCount;
+        }
+
+        public double getObservedFalsePositiveRate() {
+            long absentCount = negativeCount + falsePositiveCount;
+            return absentCount == 0 ? 0 : (double) falsePositiveCount / absentCount;
+        }
+
+        @Override
+        public String toString() {
+            return getClass().getSimpleName() + "[filters=" + filterCount + ", bytes=" + sizeInBytes
+                    + ", negatives=" + negativeCount + ", falsePositives=" + falsePositiveCount + "]";
+        }
+    }
+
+    static final double FALSE_POSITIVE_RATE = 0.01;
+    // Filters of small shards are sized for this many keys, so a few commits don't saturate them.
+    private static final int MIN_EXPECTED_KEYS = 64;
+    private static final int MAGIC = 0x424c4d31;
+
+    private final long[] bits;
+    private final int hashCount;
+
+    /**
+     * Makes empty filter which has FALSE_POSITIVE_RATE when it contains expectedKeys keys.
+     */
+    BloomFilter(int expectedKeys) {
+        int keys = Math.max(expectedKeys, MIN_EXPECTED_KEYS);
+        double ln2 = Math.log(2);
+        long bitCount = (long) Math.ceil(-keys * Math.log(FALSE_POSITIVE_RATE) / (ln2 * ln2));
+        bits = new long[(int) ((bitCount + 63) / 64)];
+        hashCount = Math.max(1, (int) Math.round((double) bits.length * 64 / keys * ln2));
+    }
+
+    private BloomFilter(final long[] bits, int hashCount) {
+        this.bits = bits;
+        this.hashCount = hashCount;
+    }
+
+    static BloomFilter of(final Collection<String> keys) {
+        BloomFilter filter = new BloomFilter(keys.size());
+        keys.forEach(filter::add);
+        return filter;
+    }
+
+    void add(final String key) {
+        long hash = hash(key);
+        long bitCount = (long) bits.length * 64;
+        for (int i = 0; i < hashCount; ++i) {
+            long bit = bitIndex(hash, i, bitCount);
+            bits[(int) (bit >>> 6)] |= 1L << bit;
+        }
+    }
+
+    boolean mightContain(final String key) {
+        long hash = hash(key);
+        long bitCount = (long) bits.length * 64;
+        for (int i = 0; i < hashCount; ++i) {
+            long bit = bitIndex(hash, i, bitCount);
+            if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    int getSizeInBytes() {
+        return bits.length * 8;
+    }
+
+    /**
+     * @return Probability that a key which wasn't added finds all its bits set.
+     */
+    double getExpectedFalsePositiveRate() {
+        long setBits = 0;
+        for (long word : bits) {
+            setBits += Long.bitCount(word);
+        }
+        return Math.pow((double) setBits / ((long) bits.length * 64), hashCount);
+    }
+
+    /**
+     * Format: [magic: int][hash count: int][words count: int][words: long]*.
+     */
+    void writeTo(final DataOutput out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(hashCount);
+        out.writeInt(bits.length);
+        for (long word : bits) {
+            out.writeLong(word);
+        }
+    }
+
+    /**
+     * @throws IllegalArgumentException If the data isn't a filter.
+     */
+    static BloomFilter readFrom(final DataInput in) throws IOException {
+        int magic = in.readInt();
+        int hashCount = in.readInt();
+        int wordsCount = in.readInt();
+        if (magic != MAGIC || hashCount <= 0 || wordsCount <= 0) {
+            throw new IllegalArgumentException("wrong bloom filter header");
+        }
+        long[] bits = new long[wordsCount];
+        for (int i = 0; i < wordsCount; ++i) {
+            bits[i] = in.readLong();
+        }
+        return new BloomFilter(bits, hashCount);
+    }
+
+    private static long bitIndex(long hash, int i, long bitCount) {
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        return ((h1 + (long) i * h2) & Long.MAX_VALUE) % bitCount;
+    }
+
+    // FNV-1a over chars with the MurmurHash3 finalizer. Filters are stored in files, so the hash
+    // must not depend on the JVM.
+    private static long hash(final String key) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); ++i) {
+            h ^= key.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
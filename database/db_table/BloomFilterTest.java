@@ -0,0 +1,53 @@
+package ru.fizteh.fivt.students.dmitry_persiyanov.database.db_table;
+
+import org.junit.Test;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class BloomFilterTest {
+    private static List<String> keys(final String prefix, int count) {
+        List<String> keys = new ArrayList<>();
+        for (int i = 0; i < count; ++i) {
+            keys.add(prefix + i);
+        }
+        return keys;
+    }
+
+    @Test
+    public void filterHasNoFalseNegativesAndFewFalsePositives() {
+        BloomFilter filter = BloomFilter.of(keys("key", 10000));
+        for (String key : keys("key", 10000)) {
+            assertTrue(filter.mightContain(key));
+        }
+        int falsePositives = 0;
+        for (String key : keys("absent", 10000)) {
+            if (filter.mightContain(key)) {
+                ++falsePositives;
+            }
+        }
+        assertTrue(falsePositives < 10000 * BloomFilter.FALSE_POSITIVE_RATE * 2);
+        assertEquals(BloomFilter.FALSE_POSITIVE_RATE, filter.getExpectedFalsePositiveRate(), 0.005);
+    }
+
+    @Test
+    public void filterIsReadAsWritten() throws IOException {
+        BloomFilter filter = BloomFilter.of(keys("ключ", 100));
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        filter.writeTo(new DataOutputStream(bytes));
+        BloomFilter readFilter = BloomFilter.readFrom(
+                new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+        for (String key : keys("ключ", 100)) {
+            assertTrue(readFilter.mightContain(key));
+        }
+        assertEquals(filter.getSizeInBytes(), readFilter.getSizeInBytes());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void garbageIsNotReadAsFilter() throws IOException {
+        BloomFilter.readFrom(new DataInputStream(new ByteArrayInputStream(new byte[12])));
+    }
+}
@@ -0,0 +1,251 @@
+package ru.fizteh.fivt.students.dmitry_persiyanov.database.db_table;
+
+import ru.fizteh.fivt.students.dmitry_persiyanov.database.db_table_provider.utils.Utility;
+import ru.fizteh.fivt.students.dmitry_persiyanov.database.exceptions.TableCorruptedException;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.function.ToIntFunction;
+import java.util.zip.CRC32;
+
+/**
+ * Secondary index of a column: keys of committed rows grouped by the value of the column.
+ * Rows with null in the column aren't indexed. Index keeps the indexed value of every key too,
+ * so applying a diff doesn't need previous rows and applying the same diff twice is harmless:
+ * index files written by a checkpoint with the commit log replayed on top of them give the committed state,
+ * even if the checkpoint was interrupted before the log was emptied.
+ * Index is split by the shards of its keys, as the table is: the directory index.column has a file per
+ * shard with indexed keys, and a checkpoint rewrites only files of the shards changed since the last one.
+ * The whole index is kept on the heap, it isn't unloaded with shards under the memory budget of the provider.
+ * File format: [entries count: int]([key][value])*[crc32 of the preceding bytes: int],
+ * every key or value is written as [length: int][bytes in UTF-8].
+ * It isn't thread-safe, ShardedMapEngine guards it by its locks.
+ */
+final class ColumnIndex {
+    static final String FILENAME_PREFIX = "index.";
+    private static final String FILES_EXTENSION = ".idx";
+    private static final String TEMP_EXTENSION = ".tmp";
+    private static final Charset CHARSET = Charset.forName("UTF-8");
+
+    private final int column;
+    private final ToIntFunction<String> shardNumByKey;
+    // Shard number -> key of the shard -> indexed value of its row. Shards without indexed keys are absent.
+    private final Map<Integer, Map<String, String>> valuesByShard = new HashMap<>();
+    // Indexed value -> keys of the rows with it.
+    private final NavigableMap<String, NavigableSet<String>> keysByValue = new TreeMap<>();
+    // Shards which entries were changed since they were written.
+    private final Set<Integer> dirtyShards = new HashSet<>();
+
+    /**
+     * @param column
+     * @param shardNumByKey Shard of a key in the table, it decides the file of the key's entry.
+     */
+    ColumnIndex(int column, final ToIntFunction<String> shardNumByKey) {
+        this.column = column;
+        this.shardNumByKey = shardNumByKey;
+    }
+
+    int getColumn() {
+        return column;
+    }
+
+    /**
+     * @param key
+     * @param value Indexed value of the new row of the key, null if the row isn't indexed.
+     */
+    void put(final String key, final String value) {
+        int shardNum = shardNumByKey.applyAsInt(key);
+        Map<String, String> shardValues = valuesByShard.get(shardNum);
+        String oldValue;
+        if (value != null) {
+            if (shardValues == null) {
+                shardValues = new HashMap<>();
+                valuesByShard.put(shardNum, shardValues);
+            }
+            oldValue = shardValues.put(key, value);
+        } else if (shardValues != null) {
+            oldValue = shardValues.remove(key);
+            if (shardValues.isEmpty()) {
+                valuesByShard.remove(shardNum);
+            }
+        } else {
+            oldValue = null;
+        }
+        if (Objects.equals(oldValue, value)) {
+            return;
+        }
+        if (oldValue != null) {
+            NavigableSet<String> keys = keysByValue.get(oldValue);
+            keys.remove(key);
+            if (keys.isEmpty()) {
+                keysByValue.remove(oldValue);
+            }
+        }
+        if (value != null) {
+            keysByValue.computeIfAbsent(value, v -> new TreeSet<>()).add(key);
+        }
+        dirtyShards.add(shardNum);
+    }
+
+    void remove(final String key) {
+        put(key, null);
+    }
+
+    /**
+     * @return Keys of the rows with the value, in key order.
+     */
+    List<String> getKeys(final String value) {
+        NavigableSet<String> keys = keysByValue.get(value);
+        return keys == null ? Collections.emptyList() : new ArrayList<>(keys);
+    }
+
+    /**
+     * @return Distinct indexed values, in ascending order.
+     */
+    List<String> getValues() {
+        return new ArrayList<>(keysByValue.keySet());
+    }
+
+    boolean isDirty() {
+        return !dirtyShards.isEmpty();
+    }
+
+    /**
+     * @return Columns which have index directories in the table directory.
+     */
+    static List<Integer> listColumns(final Path tableDir) throws IOException {
+        List<Integer> columns = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(tableDir, FILENAME_PREFIX + "*")) {
+            for (Path dir : stream) {
+                String name = Utility.getNameByPath(dir);
+                // Directory of an index which wasn't created completely.
+                if (name.endsWith(TEMP_EXTENSION)) {
+                    continue;
+                }
+                try {
+                    columns.add(Integer.parseInt(name.substring(FILENAME_PREFIX.length())));
+                } catch (NumberFormatException e) {
+                    throw new TableCorruptedException(Utility.getNameByPath(tableDir), e);
+                }
+            }
+        }
+        Collections.sort(columns);
+        return columns;
+    }
+
+    static ColumnIndex load(final Path tableDir, int column, final ToIntFunction<String> shardNumByKey)
+            throws IOException {
+        ColumnIndex index = new ColumnIndex(column, shardNumByKey);
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(getIndexDir(tableDir, column),
+                "*" + FILES_EXTENSION)) {
+            for (Path file : stream) {
+                index.loadShardFile(file);
+            }
+        } catch (IllegalArgumentException | EOFException e) {
+            throw new TableCorruptedException(Utility.getNameByPath(tableDir), e);
+        }
+        index.dirtyShards.clear();
+        return index;
+    }
+
+    private void loadShardFile(final Path file) throws IOException {
+        byte[] bytes = Files.readAllBytes(file);
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes))) {
+            CRC32 crc = new CRC32();
+            crc.update(bytes, 0, Math.max(bytes.length - 4, 0));
+            if (bytes.length < 8 || (int) crc.getValue() != ByteBuffer.wrap(bytes).getInt(bytes.length - 4)) {
+                throw new IllegalArgumentException("checksum of index file " + file + " doesn't match");
+            }
+            int entriesCount = in.readInt();
+            for (int i = 0; i < entriesCount; ++i) {
+                String key = readString(in);
+                put(key, readString(in));
+            }
+        }
+    }
+
+    /**
+     * Replaces files of the shards changed since the last dump, every file atomically.
+     * Directory of a new index appears at once, with all its files.
+     */
+    void dump(final Path tableDir) throws IOException {
+        Path indexDir = getIndexDir(tableDir, column);
+        if (Files.isDirectory(indexDir)) {
+            dumpDirtyShards(indexDir);
+            return;
+        }
+        Path tempDir = tableDir.resolve(Utility.getNameByPath(indexDir) + TEMP_EXTENSION);
+        if (Files.exists(tempDir)) {
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(tempDir)) {
+                for (Path file : stream) {
+                    Files.delete(file);
+                }
+            }
+        } else {
+            Files.createDirectory(tempDir);
+        }
+        dumpDirtyShards(tempDir);
+        Files.move(tempDir, indexDir, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private void dumpDirtyShards(final Path dir) throws IOException {
+        for (Iterator<Integer> it = dirtyShards.iterator(); it.hasNext();) {
+            int shardNum = it.next();
+            Path filePath = dir.resolve(shardNum + FILES_EXTENSION);
+            Map<String, String> shardValues = valuesByShard.get(shardNum);
+            if (shardValues == null) {
+                Files.deleteIfExists(filePath);
+            } else {
+                dumpShardFile(filePath, shardValues);
+            }
+            it.remove();
+        }
+    }
+
+    private static void dumpShardFile(final Path filePath, final Map<String, String> shardValues)
+            throws IOException {
+        Path tempPath = filePath.resolveSibling(Utility.getNameByPath(filePath) + TEMP_EXTENSION);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(shardValues.size());
+            for (Map.Entry<String, String> entry : shardValues.entrySet()) {
+                writeString(out, entry.getKey());
+                writeString(out, entry.getValue());
+            }
+            CRC32 crc = new CRC32();
+            crc.update(bytes.toByteArray());
+            out.writeInt((int) crc.getValue());
+        }
+        try (FileOutputStream fileOut = new FileOutputStream(tempPath.toFile())) {
+            bytes.writeTo(fileOut);
+            fileOut.getChannel().force(false);
+        }
+        Files.move(tempPath, filePath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static void writeString(final DataOutputStream out, final String str) throws IOException {
+        byte[] bytes = str.getBytes(CHARSET);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(final DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            throw new IllegalArgumentException("negative length of string: " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, CHARSET);
+    }
+
+    private static Path getIndexDir(final Path tableDir, int column) {
+        return tableDir.resolve(FILENAME_PREFIX + column);
+    }
+}
@@ -0,0 +1,87 @@
+package ru.fizteh.fivt.students.dmitry_persiyanov.database.db_table;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import ru.fizteh.fivt.students.dmitry_persiyanov.database.exceptions.TableCorruptedException;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+public class ColumnIndexTest {
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    @Test
+    public void repeatedChangesDontBreakIndex() {
+        ColumnIndex index = new ColumnIndex(0, ColumnIndexTest::getShardNum);
+        index.put("a", "x");
+        index.put("b", "x");
+        index.put("a", "y");
+        index.put("a", "y");
+        index.remove("b");
+        index.remove("b");
+        index.remove("absent");
+        assertEquals(Collections.singletonList("y"), index.getValues());
+        assertEquals(Collections.singletonList("a"), index.getKeys("y"));
+        assertEquals(Collections.emptyList(), index.getKeys("x"));
+    }
+
+    @Test
+    public void dumpedIndexIsLoadedBack() throws Exception {
+        Path tableDir = tempFolder.newFolder().toPath();
+        ColumnIndex index = new ColumnIndex(2, ColumnIndexTest::getShardNum);
+        index.put("b", "1");
+        index.put("a", "1");
+        index.put("c", "ключ\t2");
+        index.dump(tableDir);
+        assertFalse(index.isDirty());
+        assertEquals(Collections.singletonList(2), ColumnIndex.listColumns(tableDir));
+        ColumnIndex loaded = ColumnIndex.load(tableDir, 2, ColumnIndexTest::getShardNum);
+        assertEquals(Arrays.asList("a", "b"), loaded.getKeys("1"));
+        assertEquals(Collections.singletonList("c"), loaded.getKeys("ключ\t2"));
+        assertFalse(loaded.isDirty());
+    }
+
+    @Test(expected = TableCorruptedException.class)
+    public void damagedIndexIsDetected() throws Exception {
+        Path tableDir = tempFolder.newFolder().toPath();
+        ColumnIndex index = new ColumnIndex(0, ColumnIndexTest::getShardNum);
+        index.put("key", "value");
+        index.dump(tableDir);
+        Files.write(tableDir.resolve("index.0").resolve("10.idx"), new byte[] {1}, StandardOpenOption.APPEND);
+        ColumnIndex.load(tableDir, 0, ColumnIndexTest::getShardNum);
+    }
+
+    @Test
+    public void dumpRewritesOnlyChangedShards() throws Exception {
+        Path tableDir = tempFolder.newFolder().toPath();
+        ColumnIndex index = new ColumnIndex(0, ColumnIndexTest::getShardNum);
+        index.put("a1", "x");
+        index.put("b1", "x");
+        index.dump(tableDir);
+        Path indexDir = tableDir.resolve("index.0");
+        Files.delete(indexDir.resolve("0.idx"));
+        index.put("b2", "y");
+        index.dump(tableDir);
+        assertFalse(Files.exists(indexDir.resolve("0.idx")));
+        index.remove("b1");
+        index.remove("b2");
+        index.dump(tableDir);
+        assertFalse(Files.exists(indexDir.resolve("1.idx")));
+        index.put("a1", "z");
+        index.dump(tableDir);
+        ColumnIndex loaded = ColumnIndex.load(tableDir, 0, ColumnIndexTest::getShardNum);
+        assertEquals(Collections.singletonList("z"), loaded.getValues());
+        assertEquals(Collections.singletonList("a1"), loaded.getKeys("z"));
+    }
+
+    private static int getShardNum(final String key) {
+        return key.charAt(0) - 'a';
+    }
+}
@@ -0,0 +1,54 @@
+package ru.fizteh.fivt.students.dmitry_persiyanov.database.db_table;
+
+import ru.fizteh.fivt.storage.structured.Table;
+import ru.fizteh.fivt.students.dmitry_persiyanov.database.db_table_provider.DbTableProvider;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collections;
+
+/**
+ * Measures latency of single-row commits on one thread for every durability: 3000 commits per table,
+ * PERIODIC syncs every 100 ms. The first round warms up and isn't printed.
+ * Usage: CommitLatencyBenchmark <work dir>. The database is created in the work dir and left there.
+ */
+public final class CommitLatencyBenchmark {
+    private static final int COMMITS_COUNT = 3000;
+    private static final int SYNC_INTERVAL_MS = 100;
+    private static final int ROUNDS_COUNT = 2;
+
+    private CommitLatencyBenchmark() {
+    }
+
+    public static void main(final String[] args) throws Exception {
+        if (args.length != 1) {
+            System.err.println("Usage: CommitLatencyBenchmark <work dir>");
+            System.exit(1);
+        }
+        Path workDir = Paths.get(args[0]);
+        Files.createDirectories(workDir);
+        DbTableProvider provider = new DbTableProvider(Files.createTempDirectory(workDir, "commits"));
+        for (int round = 0; round < ROUNDS_COUNT; ++round) {
+            for (TableOptions.Durability durability : TableOptions.Durability.values()) {
+                Table table = provider.createTable(durability.toString() + round,
+                        Collections.<Class<?>>singletonList(String.class),
+                        new TableOptions().setDurability(durability, SYNC_INTERVAL_MS));
+                long[] latencies = new long[COMMITS_COUNT];
+                for (int i = 0; i < COMMITS_COUNT; ++i) {
+                    table.put("key" + i, provider.deserialize(table, "[\"value\"]"));
+                    long start = System.nanoTime();
+                    table.commit();
+                    latencies[i] = System.nanoTime() - start;
+                }
+                Arrays.sort(latencies);
+                if (round == ROUNDS_COUNT - 1) {
+                    System.out.printf("%s: p50 %.1f us, p99 %.1f us%n", durability,
+                            latencies[COMMITS_COUNT / 2] / 1e3, latencies[COMMITS_COUNT * 99 / 100] / 1e3);
+                }
+            }
+        }
+        provider.close();
+    }
+}
@@ -0,0 +1,234 @@
+package ru.fizteh.fivt.students.dmitry_persiyanov.database.db_table;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiConsumer;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of committed diffs. It lives in the table directory next to the shard files.
+ * When appended records are forced to the disk depends on durability of the table (see TableOptions).
+ * Record format: [payload length: int][crc32 of payload: int][payload],
+ * payload: [changes count: int]([key][value])* [deletions count: int]([key])*,
+ * every key or value is written as [length: int][bytes], keys are in UTF-8, values are rows in RowCodec form.
+ */
+final class CommitLog implements AutoCloseable {
+    static final String LOG_FILENAME = "commit.log";
+    private static final String ENCODING = "UTF-8";
+    private static final int RECORD_HEADER_SIZE = 8;
+
+    private final FileChannel channel;
+    private final TableOptions.Durability durability;
+    // Forces the log of PERIODIC durability, null for others.
+    private final ScheduledExecutorService syncer;
+    // True if records were appended since the last force.
+    private final AtomicBoolean unsynced = new AtomicBoolean(false);
+    // Failure to cut off a failed append, the log may end with a torn record. Null if the log is whole.
+    private volatile IOException broken;
+
+    /**
+     * Opens log of the table for appending. Torn record at the end of the log (if any) is cut off.
+     * @param tableDir
+     * @param validLength Length of the log prefix which consists of whole records (see replay()).
+     * @param durability When appended records are forced to the disk.
+     * @param syncIntervalMs Interval of background force of PERIODIC durability.
+     */
+    CommitLog(final Path tableDir, long validLength, final TableOptions.Durability durability,
+              int syncIntervalMs) throws IOException {
+        channel = FileChannel.open(getLogPath(tableDir),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        if (channel.size() > validLength) {
+            channel.truncate(validLength);
+        }
+        channel.position(validLength);
+        this.durability = durability;
+        if (durability == TableOptions.Durability.PERIODIC) {
+            syncer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "syncer[" + tableDir.toString() + "]");
+                thread.setDaemon(true);
+                return thread;
+            });
+            syncer.scheduleWithFixedDelay(() -> {
+                try {
+                    sync();
+                } catch (IOException e) {
+                    // Records stay unsynced, so the next sync will retry.
+                }
+            }, syncIntervalMs, syncIntervalMs, TimeUnit.MILLISECONDS);
+        } else {
+            syncer = null;
+        }
+    }
+
+    /**
+     * Appends one diff to the log. The record is forced to the disk before return only for COMMIT durability,
+     * otherwise sync() forces it (see TableOptions). If the append fails, the record is cut off, so records
+     * appended later aren't lost after a torn one on replay. If it can't be cut off, the log is broken:
+     * appends fail until truncate() empties the log.
+     */
+    void append(final Map<String, byte[]> changesMap, final Set<String> deletionsSet) throws IOException {
+        if (broken != null) {
+            throw new IOException("commit log ends with a torn record", broken);
+        }
+        ByteArrayOutputStream payloadBuf = new ByteArrayOutputStream();
+        try (DataOutputStream payload = new DataOutputStream(payloadBuf)) {
+            payload.writeInt(changesMap.size());
+            for (Map.Entry<String, byte[]> change : changesMap.entrySet()) {
+                writeBytes(payload, change.getKey().getBytes(ENCODING));
+                writeBytes(payload, change.getValue());
+            }
+            payload.writeInt(deletionsSet.size());
+            for (String deletedKey : deletionsSet) {
+                writeBytes(payload, deletedKey.getBytes(ENCODING));
+            }
+        }
+        byte[] payloadBytes = payloadBuf.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(payloadBytes);
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + payloadBytes.length);
+        record.putInt(payloadBytes.length);
+        record.putInt((int) crc.getValue());
+        record.put(payloadBytes);
+        record.flip();
+        long recordStart = channel.position();
+        try {
+            while (record.hasRemaining()) {
+                channel.write(record);
+            }
+            if (durability == TableOptions.Durability.COMMIT) {
+                channel.force(false);
+            } else {
+                unsynced.set(true);
+            }
+        } catch (IOException | RuntimeException e) {
+            try {
+                channel.truncate(recordStart);
+                channel.position(recordStart);
+            } catch (IOException truncateException) {
+                broken = truncateException;
+                e.addSuppressed(truncateException);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Forces records appended since the last force to the disk.
+     */
+    void sync() throws IOException {
+        if (unsynced.getAndSet(false)) {
+            try {
+                channel.force(false);
+            } catch (IOException e) {
+                unsynced.set(true);
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Empties the log. Must be called only when all logged diffs are already in the shard files.
+     */
+    void truncate() throws IOException {
+        channel.truncate(0);
+        channel.position(0);
+        channel.force(false);
+        unsynced.set(false);
+        broken = null;
+    }
+
+    /**
+     * Forces the log of PERIODIC durability for the last time and closes it.
+     */
+    @Override
+    public void close() throws IOException {
+        if (syncer != null) {
+            syncer.shutdown();
+            try {
+                syncer.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                throw new IOException("interrupted while waiting for syncer", e);
+            }
+            sync();
+        }
+        channel.close();
+    }
+
+    /**
+     * Passes every whole record of the log to consumer, in the order they were appended.
+     * @return Length of the log prefix which consists of whole records.
+     */
+    static long replay(final Path tableDir,
+                       BiConsumer<Map<String, byte[]>, Set<String>> consumer) throws IOException {
+        Path logPath = getLogPath(tableDir);
+        if (!Files.exists(logPath)) {
+            return 0;
+        }
+        long logLength = Files.size(logPath);
+        long validLength = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(logPath)))) {
+            while (true) {
+                int payloadLength;
+                int checksum;
+                byte[] payloadBytes;
+                try {
+                    payloadLength = in.readInt();
+                    checksum = in.readInt();
+                    if (payloadLength < 0 || validLength + RECORD_HEADER_SIZE + payloadLength > logLength) {
+                        break;
+                    }
+                    payloadBytes = new byte[payloadLength];
+                    in.readFully(payloadBytes);
+                } catch (EOFException e) {
+                    break;
+                }
+                CRC32 crc = new CRC32();
+                crc.update(payloadBytes);
+                if ((int) crc.getValue() != checksum) {
+                    // Record was torn by a crash in the middle of append.
+                    break;
+                }
+                Map<String, byte[]> changesMap = new HashMap<>();
+                Set<String> deletionsSet = new HashSet<>();
+                try (DataInputStream payload = new DataInputStream(new ByteArrayInputStream(payloadBytes))) {
+                    int changesCount = payload.readInt();
+                    for (int i = 0; i < changesCount; ++i) {
+                        String key = new String(readBytes(payload), ENCODING);
+                        changesMap.put(key, readBytes(payload));
+                    }
+                    int deletionsCount = payload.readInt();
+                    for (int i = 0; i < deletionsCount; ++i) {
+                        deletionsSet.add(new String(readBytes(payload), ENCODING));
+                    }
+                }
+                consumer.accept(changesMap, deletionsSet);
+                validLength += RECORD_HEADER_SIZE + payloadLength;
+            }
+        }
+        return validLength;
+    }
+
+    private static void writeBytes(DataOutputStream out, final byte[] bytes) throws IOException {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    private static Path getLogPath(final Path tableDir) {
+        return tableDir.resolve(LOG_FILENAME);
+    }
+}
@@ -0,0 +1,135 @@
+package ru.fizteh.fivt.students.dmitry_persiyanov.database.db_table;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Committed state of a table made by a commit. Versions are linked from older to newer ones and every
+ * version keeps the values which keys of its commit had before it, so a transaction which holds a version
+ * reads it as it was, while the storage engine keeps only the latest state.
+ * A commit made while nobody holds the latest version is merged into it instead of linking a new one:
+ * older versions read the merged values the same way, so the chain after a held version has a link
+ * per version held later rather than per commit. If no version of the table is held, nobody can read
+ * the previous values, so they are dropped, and the latest version keeps only the values older
+ * transactions still need.
+ * Readers don't take locks. Table keeps only the latest version, so older versions are collected by GC
+ * as soon as no transaction holds them or a version before them.
+ */
+final class CommitVersion {
+    // Marks keys which were absent, ConcurrentHashMap doesn't keep nulls.
+    private static final byte[] ABSENT = new byte[0];
+
+    // Values of the keys changed by the commits of this version, as they were before the earliest of them.
+    private final Map<String, byte[]> previousValues;
+    private final AtomicInteger holders = new AtomicInteger();
+    // Holders of all versions of the table, it's never less than their sum.
+    private final AtomicInteger tableHolders;
+    private volatile CommitVersion next;
+
+    /**
+     * Makes the first version of an opened table.
+     */
+    CommitVersion() {
+        this(new AtomicInteger());
+    }
+
+    private CommitVersion(final AtomicInteger tableHolders) {
+        this.previousValues = new ConcurrentHashMap<>();
+        this.tableHolders = tableHolders;
+    }
+
+    /**
+     * Marks the version as read by a transaction, so later commits don't change it.
+     * Must be called on the latest version under the same lock as append(), or on a version which is held.
+     */
+    void acquire() {
+        tableHolders.incrementAndGet();
+        holders.incrementAndGet();
+    }
+
+    /**
+     * Undoes acquire().
+     */
+    void release() {
+        holders.decrementAndGet();
+        tableHolders.decrementAndGet();
+    }
+
+    /**
+     * Adds the next commit. Must be called on the latest version, by one thread at a time,
+     * before the commit becomes visible in the storage engine, under a lock which excludes acquire().
+     * @param previousValues Committed values of the keys of the commit, null for absent keys.
+     * @return New latest version, it's this version if nobody holds it.
+     */
+    CommitVersion append(final Map<String, byte[]> previousValues) {
+        CommitVersion version = this;
+        if (holders.get() != 0) {
+            version = new CommitVersion(tableHolders);
+            next = version;
+        } else if (tableHolders.get() == 0) {
+            // No version before this one is held, and new holders wait for the lock of append().
+            this.previousValues.clear();
+            return this;
+        }
+        // Values of the earlier commits win: they are the values versions before this one read.
+        for (Map.Entry<String, byte[]> entry : previousValues.entrySet()) {
+            version.previousValues.putIfAbsent(entry.getKey(), entry.getValue() == null ? ABSENT : entry.getValue());
+        }
+        return version;
+    }
+
+    /**
+     * Returns value of the key in this version.
+     * @param key
+     * @param latestValue Reads the latest committed value of the key. Commits are added before
+     * they become visible, so the value is checked against the commits added meanwhile.
+     * @param decoder Converts value kept by a version, which may be null.
+     */
+    <T> T get(final String key, final Supplier<T> latestValue, final Function<byte[], T> decoder) {
+        CommitVersion last = null;
+        for (CommitVersion version = next; version != null; version = version.next) {
+            byte[] value = version.previousValues.get(key);
+            if (value != null) {
+                return decoder.apply(value == ABSENT ? null : value);
+            }
+            last = version;
+        }
+        T value = latestValue.get();
+        // Commits could be merged into the last visited version or linked after it.
+        for (CommitVersion version = last == null ? next : last; version != null; version = version.next) {
+            byte[] previousValue = version.previousValues.get(key);
+            if (previousValue != null) {
+                return decoder.apply(previousValue == ABSENT ? null : previousValue);
+            }
+        }
+        return value;
+    }
+
+    /**
+     * @return Number of previous values the version keeps.
+     */
+    int getPreviousValuesCount() {
+        return previousValues.size();
+    }
+
+    /**
+     * @return Keys changed by the commits after this version, with their values in this version
+     * (null for absent keys). The result matches the latest state only if commits are stopped meanwhile.
+     */
+    Map<String, byte[]> getLaterChanges() {
+        Map<String, byte[]> changes = new HashMap<>();
+        for (CommitVersion version = next; version != null; version = version.next) {
+            version.previousValues.forEach((key, value) -> {
+                // Value of the earliest later commit is the value in this version.
+                if (!changes.containsKey(key)) {
+                    changes.put(key, value == ABSENT ? null : value);
+                }
+            });
+        }
+        return changes;
+    }
+}
@@ -0,0 +1,73 @@
+package ru.fizteh.fivt.students.dmitry_persiyanov.database.db_table;
+
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class CommitVersionTest {
+    private static final String LATEST = "latest";
+
+    @Test
+    public void commitsAreMergedIntoVersionNobodyHolds() {
+        CommitVersion held = new CommitVersion();
+        held.acquire();
+        CommitVersion latest = held.append(Collections.singletonMap("a", bytes("a0")));
+        assertNotSame(held, latest);
+        for (int i = 1; i < 100; ++i) {
+            Map<String, byte[]> previousValues = new HashMap<>();
+            previousValues.put("a", bytes("a" + i));
+            previousValues.put("b", i == 1 ? null : bytes("b" + i));
+            assertSame(latest, latest.append(previousValues));
+        }
+        assertEquals("a0", read(held, "a"));
+        assertNull(read(held, "b"));
+        assertEquals(LATEST, read(held, "c"));
+        assertEquals(LATEST, read(latest, "a"));
+        assertEquals(2, held.getLaterChanges().size());
+
+        latest.acquire();
+        CommitVersion newest = latest.append(Collections.singletonMap("a", bytes("a100")));
+        assertNotSame(latest, newest);
+        assertEquals("a0", read(held, "a"));
+        assertEquals("a100", read(latest, "a"));
+        latest.release();
+        assertSame(newest, newest.append(Collections.singletonMap("c", bytes("c101"))));
+        assertEquals("c101", read(held, "c"));
+    }
+
+    @Test
+    public void previousValuesStayBoundedWhenNobodyHoldsVersions() {
+        CommitVersion latest = new CommitVersion();
+        for (int i = 0; i < 2000; ++i) {
+            assertSame(latest, latest.append(Collections.singletonMap("k" + i, null)));
+            assertSame(latest, latest.append(Collections.singletonMap("k" + i, bytes("v" + i))));
+        }
+        assertEquals(0, latest.getPreviousValuesCount());
+
+        CommitVersion held = latest;
+        held.acquire();
+        latest = held.append(Collections.singletonMap("a", bytes("a0")));
+        for (int i = 0; i < 100; ++i) {
+            assertSame(latest, latest.append(Collections.singletonMap("k" + i, bytes("v" + i))));
+        }
+        assertEquals(101, latest.getPreviousValuesCount());
+        assertEquals("a0", read(held, "a"));
+        held.release();
+        for (int i = 0; i < 2000; ++i) {
+            assertSame(latest, latest.append(Collections.singletonMap("k" + i, bytes("v" + i))));
+        }
+        assertEquals(0, latest.getPreviousValuesCount());
+    }
+
+    private static String read(final CommitVersion version, final String key) {
+        return version.get(key, () -> LATEST, value -> value == null ? null : new String(value));
+    }
+
+    private static byte[] bytes(final String str) {
+        return str.getBytes();
+    }
+}
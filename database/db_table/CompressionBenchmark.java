@@ -0,0 +1,62 @@
+package ru.fizteh.fivt.students.dmitry_persiyanov.database.db_table;
+
+import ru.fizteh.fivt.storage.structured.Table;
+import ru.fizteh.fivt.students.dmitry_persiyanov.database.db_table_provider.DbTableProvider;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.stream.Stream;
+
+/**
+ * Compares shard file sizes and loading of a table for every compression: 200k JSON rows
+ * ("user name N", i, true) with the default sharding, loading is the best of 5 opens of the table.
+ * Usage: CompressionBenchmark <work dir>. Databases are created in the work dir and left there.
+ */
+public final class CompressionBenchmark {
+    private static final int ROWS_COUNT = 200000;
+    private static final int LOADS_COUNT = 5;
+
+    private CompressionBenchmark() {
+    }
+
+    public static void main(final String[] args) throws Exception {
+        if (args.length != 1) {
+            System.err.println("Usage: CompressionBenchmark <work dir>");
+            System.exit(1);
+        }
+        Path workDir = Paths.get(args[0]);
+        Files.createDirectories(workDir);
+        for (TableOptions.Compression compression : TableOptions.Compression.values()) {
+            Path rootDir = Files.createTempDirectory(workDir, compression.toString());
+            DbTableProvider provider = new DbTableProvider(rootDir);
+            Table table = provider.createTable("bench", Arrays.asList(String.class, Integer.class, Boolean.class),
+                    new TableOptions().setRowFormat(TableOptions.RowFormat.JSON).setCompression(compression));
+            for (int i = 0; i < ROWS_COUNT; ++i) {
+                table.put("key" + i, provider.deserialize(table,
+                        "[\"user name " + (i % 1000) + "\", " + i + ", true]"));
+            }
+            table.commit();
+            provider.close();
+            long bestLoadTime = Long.MAX_VALUE;
+            for (int i = 0; i < LOADS_COUNT; ++i) {
+                long start = System.nanoTime();
+                provider = new DbTableProvider(rootDir);
+                provider.getTable("bench").size();
+                bestLoadTime = Math.min(bestLoadTime, System.nanoTime() - start);
+                provider.close();
+            }
+            System.out.printf("%s: shard files %.2f MB, load %d ms%n", compression,
+                    getShardFilesSize(rootDir) / 1e6, bestLoadTime / 1000000);
+        }
+    }
+
+    private static long getShardFilesSize(final Path rootDir) throws IOException {
+        try (Stream<Path> files = Files.walk(rootDir)) {
+            return files.filter(file -> file.toString().endsWith(".dat")).mapToLong(file -> file.toFile().length())
+                    .sum();
+        }
+    }
+}
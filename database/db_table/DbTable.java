@@ -4,10 +4,12 @@ import ru.fizteh.fivt.storage.structured.ColumnFormatException;
 import ru.fizteh.fivt.storage.structured.Storeable;
 import ru.fizteh.fivt.storage.structured.Table;
 import ru.fizteh.fivt.storage.structured.TableProvider;
+import ru.fizteh.fivt.students.dmitry_persiyanov.database.db_table_provider.DbTableProvider;
 import ru.fizteh.fivt.students.dmitry_persiyanov.database.db_table_provider.utils.TypeStringTranslator;
 import ru.fizteh.fivt.students.dmitry_persiyanov.database.db_table_provider.utils.Utility;
 
 import java.io.IOException;
+import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.text.ParseException;
@@ -17,25 +19,41 @@ import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.stream.Collectors;
 
 public final class DbTable implements Table, AutoCloseable {
-    class Diff {
+    // Static, so values of the thread locals below don't keep a closed table reachable from their threads.
+    static class Diff {
         // Important invariant: uncommittedChangesMap doesn't intersect uncommittedDeletionsSet!
-        public Map<String, String> changesMap = new HashMap<>();
+        public Map<String, byte[]> changesMap = new HashMap<>();
         public Set<String> deletionsSet = new HashSet<>();
     }
 
     private final Path tableDir;
     private final List<Class<?>> columnTypes;
     private final TableProvider tableProvider;
+    private final TableOptions options;
+    private final RowCodec rowCodec;
+    // Decoded committed rows, null if the table has no cache. Filled under tableMapLock, see getCommittedValue().
+    private final RowCache rowCache;
 
-    private static final int MAX_DIRS_FOR_TABLE = 16;
-    private static final int MAX_FILES_FOR_DIR = 16;
+    private static final Charset CHARSET = Charset.forName("UTF-8");
+    // Scans read committed rows in batches of this size, every batch under the lock.
+    private static final int SCAN_BATCH_SIZE = 256;
+    public static final int NO_LIMIT = Integer.MAX_VALUE;
 
     private ThreadLocal<Integer> size = ThreadLocal.withInitial(() -> 0);
     private ThreadLocal<Diff> diff = ThreadLocal.withInitial(Diff::new);
+    // Committed version the transaction of this thread reads, null until its first operation.
+    private ThreadLocal<CommitVersion> snapshot = new ThreadLocal<>();
 
+    // Commits take the write lock to publish prepared diff, reads of several committed rows and cache fills
+    // take the read lock, so nobody sees a half-applied commit. Reads of single rows don't take it.
     private ReadWriteLock tableMapLock = new ReentrantReadWriteLock(true);
-    private List<List<Map<String, String>>> lastCommitTableMap;
-    private Integer lastCommitTableMapSize;
+    // Committed rows.
+    private StorageEngine storageEngine;
+    // Version made by the last commit, it's linked before the commit is published. Guarded by commits order.
+    private volatile CommitVersion latestVersion = new CommitVersion();
+    private volatile Integer lastCommitTableMapSize;
+    // Diffs of concurrent commits are written to storageEngine in batches, see writeCommitBatch().
+    private final GroupCommitter groupCommitter = new GroupCommitter(this::writeCommitBatch);
 
     private ReadWriteLock wholeTableLock = new ReentrantReadWriteLock(true);
     private boolean closed = false;
@@ -51,25 +69,87 @@ public final class DbTable implements Table, AutoCloseable {
     public static DbTable createDbTable(final Path tableDir,
                                         final List<Class<?>> columnTypes,
                                         final TableProvider tableProvider) {
-        return new DbTable(tableDir, columnTypes, tableProvider);
+        return new DbTable(tableDir, columnTypes, tableProvider, new TableOptions(), null);
+    }
+
+    /**
+     * Creates empty table. tableDir must be empty directory.
+     * @param tableDir
+     * @param columnTypes
+     * @param tableProvider
+     * @param options Settings of the table, they are stored with the table and can't be changed later.
+     * @return Empty table.
+     */
+    public static DbTable createDbTable(final Path tableDir,
+                                        final List<Class<?>> columnTypes,
+                                        final TableProvider tableProvider,
+                                        final TableOptions options) {
+        return new DbTable(tableDir, columnTypes, tableProvider, options, null);
+    }
+
+    /**
+     * Creates empty table whose loaded shards count against the memory budget.
+     * @param memoryBudget Budget shared by tables of the provider, null if there is no limit.
+     * Tables of the LSM engine don't use it, their memtables are limited by their own flush threshold.
+     * @see #createDbTable(Path, List, TableProvider, TableOptions)
+     */
+    public static DbTable createDbTable(final Path tableDir,
+                                        final List<Class<?>> columnTypes,
+                                        final TableProvider tableProvider,
+                                        final TableOptions options,
+                                        final MemoryBudget memoryBudget) {
+        return new DbTable(tableDir, columnTypes, tableProvider, options, memoryBudget);
     }
 
     public static DbTable loadExistingDbTable(final Path tableDir, final TableProvider tableProvider) {
-        return new DbTable(tableDir, tableProvider);
+        return new DbTable(tableDir, tableProvider, false, null);
+    }
+
+    /**
+     * Loads existing table.
+     * @param tableDir
+     * @param tableProvider
+     * @param lazyLoading If true, shards are read from the disk on the first access instead of here.
+     * @return Loaded table.
+     */
+    public static DbTable loadExistingDbTable(final Path tableDir,
+                                              final TableProvider tableProvider,
+                                              boolean lazyLoading) {
+        return new DbTable(tableDir, tableProvider, lazyLoading, null);
+    }
+
+    /**
+     * Loads existing table whose loaded shards count against the memory budget.
+     * @param memoryBudget Budget shared by tables of the provider, null if there is no limit.
+     * @see #loadExistingDbTable(Path, TableProvider, boolean)
+     */
+    public static DbTable loadExistingDbTable(final Path tableDir,
+                                              final TableProvider tableProvider,
+                                              boolean lazyLoading,
+                                              final MemoryBudget memoryBudget) {
+        return new DbTable(tableDir, tableProvider, lazyLoading, memoryBudget);
     }
 
     // This ctor CREATES non-existent table.
-    private DbTable(final Path tableDir, final List<Class<?>> columnTypes, final TableProvider tableProvider) {
+    private DbTable(final Path tableDir,
+                    final List<Class<?>> columnTypes,
+                    final TableProvider tableProvider,
+                    final TableOptions options,
+                    final MemoryBudget memoryBudget) {
         if (!Files.isDirectory(tableDir)) {
             throw new IllegalArgumentException("is not a directory: " + tableDir.toString());
         } else {
+            options.validate();
             this.tableProvider = tableProvider;
             this.columnTypes = new ArrayList<>();
             this.columnTypes.addAll(columnTypes);
             this.tableDir = tableDir;
-            initHashMaps();
+            this.options = options;
+            this.rowCodec = new RowCodec(columnTypes);
+            this.rowCache = makeRowCache(options);
             try {
-                TableLoaderDumper.createTable(this.tableDir, columnTypes);
+                TableLoaderDumper.createTable(this.tableDir, columnTypes, options);
+                openStorageEngine(false, memoryBudget);
             } catch (IOException e) {
                 throw new RuntimeException("can't create table from \'" + tableDir.toString() + "\'"
                         + ", [" + e.getMessage() + "]");
@@ -80,21 +160,27 @@ public final class DbTable implements Table, AutoCloseable {
     }
 
     // This ctor LOADS existent table.
-    private DbTable(final Path tableDir, final TableProvider tableProvider) {
+    private DbTable(final Path tableDir,
+                    final TableProvider tableProvider,
+                    boolean lazyLoading,
+                    final MemoryBudget memoryBudget) {
         if (!Files.isDirectory(tableDir)) {
             throw new IllegalArgumentException("is not a directory: " + tableDir.toString());
         } else {
             this.tableProvider = tableProvider;
             this.columnTypes = new ArrayList<>();
             this.tableDir = tableDir;
-            initHashMaps();
             try {
-                TableLoaderDumper.loadTable(this.tableDir, lastCommitTableMap, columnTypes);
+                this.options = TableLoaderDumper.loadOptions(this.tableDir);
+                TableLoaderDumper.loadSignature(this.tableDir, columnTypes);
+                this.rowCodec = new RowCodec(columnTypes);
+                this.rowCache = makeRowCache(options);
+                openStorageEngine(lazyLoading, memoryBudget);
+                setSize(storageEngine.size());
             } catch (IOException e) {
                 throw new RuntimeException("can't load table from \'" + tableDir.toString() + "\'"
                         + ", [" + e.getMessage() + "]");
             }
-            calculateTableSize();
             lastCommitTableMapSize = getSize();
         }
     }
@@ -143,13 +229,37 @@ public final class DbTable implements Table, AutoCloseable {
             } else if (getDiffChangesMap().containsKey(key)) {
                 return deserializeWrapper(getDiffChangesMap().get(key));
             } else {
-                tableMapLock.readLock().lock();
-                try {
-                    return deserializeWrapper(getTablePartByKey(key).get(key));
-                } finally {
-                    tableMapLock.readLock().unlock();
-                }
+                return getSnapshotValue(key);
+            }
+        } finally {
+            wholeTableLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Same as get(), but only the given columns of the row are decoded, so reading a few columns
+     * of a wide row doesn't build the whole row.
+     * @param key
+     * @param columns Indexes of the columns, they may go in any order and repeat.
+     * @return Row which column i is the value of column columns[i], null if there is no such key.
+     */
+    public Storeable get(final String key, final int... columns) {
+        wholeTableLock.readLock().lock();
+        try {
+            checkClosed();
+            if (key == null || columns == null) {
+                throw new IllegalArgumentException();
+            }
+            byte[] row;
+            if (getDiffDeletionsSet().contains(key)) {
+                return null;
+            } else if (getDiffChangesMap().containsKey(key)) {
+                row = getDiffChangesMap().get(key);
+            } else {
+                // Row cache keeps whole rows, so it's bypassed.
+                row = getSnapshot().get(key, () -> toRow(storageEngine.get(key)), this::toRow);
             }
+            return row == null ? null : new TableRow(rowCodec.decodeColumns(row, columns));
         } finally {
             wholeTableLock.readLock().unlock();
         }
@@ -165,7 +275,7 @@ public final class DbTable implements Table, AutoCloseable {
             }
             checkStoreableValueValidity(value);
             if (getDiffChangesMap().containsKey(key)) {   // Was changed/added in current commit.
-                String uncommitedValue = getDiffChangesMap().get(key);
+                byte[] uncommitedValue = getDiffChangesMap().get(key);
                 getDiffChangesMap().put(key, serializeWrapper(value));
                 return deserializeWrapper(uncommitedValue);
             } else if (getDiffDeletionsSet().contains(key)) { // Was deleted in current commit.
@@ -174,13 +284,7 @@ public final class DbTable implements Table, AutoCloseable {
                 incSize();
                 return null;
             } else {    // It hasn't been deleted or changed yet. We change/add this key-value pair now.
-                Storeable oldValue;
-                tableMapLock.readLock().lock();
-                try {
-                    oldValue = deserializeWrapper(getTablePartByKey(key).get(key));
-                } finally {
-                    tableMapLock.readLock().unlock();
-                }
+                Storeable oldValue = getSnapshotValue(key);
                 if (oldValue != null) { // Changing.
                     getDiffChangesMap().put(key, serializeWrapper(value));
                     return oldValue;
@@ -200,34 +304,43 @@ public final class DbTable implements Table, AutoCloseable {
         wholeTableLock.readLock().lock();
         try {
             checkClosed();
-            // Append old/changed keys (and not deleted) to list.
-            List<String> keysList = new LinkedList<>();
+            CommitVersion version = getSnapshot();
+            Set<String> committedKeys;
             tableMapLock.readLock().lock();
             try {
-                for (List<Map<String, String>> list : lastCommitTableMap) {
-                    for (Map<String, String> map : list) {
-                        keysList.addAll(
-                                map
-                                .keySet()
-                                .stream()
-                                .filter(key -> !getDiffDeletionsSet().contains(key))
-                                .collect(Collectors.toList()));
-                    }
+                // Commits are stopped, so later versions turn the latest keys into keys of the snapshot.
+                committedKeys = new HashSet<>(storageEngine.keys());
+                if (options.getRowTtlMs() != TableOptions.NO_TTL) {
+                    committedKeys.removeIf(key -> toRow(storageEngine.get(key)) == null);
                 }
-
-                // Append NEW keys to list.
-                keysList.addAll(
-                        getDiffChangesMap()
-                        .keySet()
-                        .stream()
-                        .filter(key -> !lastCommitTableMap.contains(key))
-                        .collect(Collectors.toList()));
-                return keysList;
+                version.getLaterChanges().forEach((key, value) -> {
+                    if (toRow(value) == null) {
+                        committedKeys.remove(key);
+                    } else {
+                        committedKeys.add(key);
+                    }
+                });
             } finally {
                 tableMapLock.readLock().unlock();
             }
+            // Append old/changed keys (and not deleted) to list.
+            List<String> keysList = new LinkedList<>();
+            keysList.addAll(
+                    committedKeys
+                    .stream()
+                    .filter(key -> !getDiffDeletionsSet().contains(key))
+                    .collect(Collectors.toList()));
+
+            // Append NEW keys to list.
+            keysList.addAll(
+                    getDiffChangesMap()
+                    .keySet()
+                    .stream()
+                    .filter(key -> !committedKeys.contains(key))
+                    .collect(Collectors.toList()));
+            return keysList;
         } finally {
-            wholeTableLock.readLock().lock();
+            wholeTableLock.readLock().unlock();
         }
     }
 
@@ -239,28 +352,22 @@ public final class DbTable implements Table, AutoCloseable {
             if (key == null) {
                 throw new IllegalArgumentException();
             }
-            Storeable prevCommitValue;
-            tableMapLock.readLock().lock();
-            try {
-                prevCommitValue = deserializeWrapper(getTablePartByKey(key).get(key));
-                // This pair was deleted in this commit or hasn't been
-                // changed in this commit and was absent in previous commit.
-                if ((prevCommitValue == null && !getDiffChangesMap().containsKey(key))
-                        || getDiffDeletionsSet().contains(key)) {
-                    return null;
+            Storeable prevCommitValue = getSnapshotValue(key);
+            // This pair was deleted in this commit or hasn't been
+            // changed in this commit and was absent in previous commit.
+            if ((prevCommitValue == null && !getDiffChangesMap().containsKey(key))
+                    || getDiffDeletionsSet().contains(key)) {
+                return null;
+            } else {
+                getDiffDeletionsSet().add(key);
+                decSize();
+                if (!getDiffChangesMap().containsKey(key)) {   // Then prevCommitValue != null.
+                    return prevCommitValue;
                 } else {
-                    getDiffDeletionsSet().add(key);
-                    decSize();
-                    if (!getDiffChangesMap().containsKey(key)) {   // Then prevCommitValue != null.
-                        return prevCommitValue;
-                    } else {
-                        Storeable oldValue = deserializeWrapper(getDiffChangesMap().get(key));
-                        getDiffChangesMap().remove(key);
-                        return oldValue;
-                    }
+                    Storeable oldValue = deserializeWrapper(getDiffChangesMap().get(key));
+                    getDiffChangesMap().remove(key);
+                    return oldValue;
                 }
-            } finally {
-                tableMapLock.readLock().unlock();
             }
         } finally {
             wholeTableLock.readLock().unlock();
@@ -272,28 +379,64 @@ public final class DbTable implements Table, AutoCloseable {
         wholeTableLock.readLock().lock();
         try {
             checkClosed();
+            // The next transaction reads the latest version, even if this one is empty or fails.
+            releaseSnapshot();
             if (getDiffDeletionsSet().size() + getDiffChangesMap().size() == 0) {
                 return 0;
             }
-            tableMapLock.writeLock().lock();
             try {
-                commitChangesToTableMap();
-                dump();
-                int res = getDiffChangesMap().size() + getDiffDeletionsSet().size();
-                getDiffChangesMap().clear();
-                getDiffDeletionsSet().clear();
-                lastCommitTableMapSize = getSize();
-                return res;
+                groupCommitter.commit(getDiffChangesMap(), getDiffDeletionsSet());
             } catch (IOException e) {
-                throw new RuntimeException("can't dump table on commit: " + e.getMessage());
-            } finally {
-                tableMapLock.writeLock().unlock();
+                throw new RuntimeException("can't commit to table \'" + tableDir.toString() + "\', ["
+                        + e.getMessage() + "]");
             }
+            int res = getDiffChangesMap().size() + getDiffDeletionsSet().size();
+            getDiffChangesMap().clear();
+            getDiffDeletionsSet().clear();
+            lastCommitTableMapSize = getSize();
+            return res;
         } finally {
             wholeTableLock.readLock().unlock();
         }
     }
 
+    /**
+     * Commits merged diffs of a batch of concurrent commits at once. The batch is written to the disk
+     * while readers keep reading the previous committed rows, they are stopped only to publish it.
+     * Previous values of the batch keys make a new version, so older snapshots keep reading them.
+     */
+    private void writeCommitBatch(final Map<String, byte[]> changesMap, final Set<String> deletionsSet)
+            throws IOException {
+        Map<String, byte[]> storedChanges = changesMap;
+        if (options.getRowTtlMs() != TableOptions.NO_TTL) {
+            long expirationTime = options.getClock().getAsLong() + options.getRowTtlMs();
+            storedChanges = new HashMap<>();
+            for (Map.Entry<String, byte[]> change : changesMap.entrySet()) {
+                storedChanges.put(change.getKey(), ExpiringRow.wrap(change.getValue(), expirationTime));
+            }
+        }
+        // Batches are written one at a time, so committed values can't change until publish().
+        // They are read before prepareCommit(), which must be followed by publish() without anything
+        // that may throw in between.
+        Map<String, byte[]> previousValues = new HashMap<>();
+        for (String key : changesMap.keySet()) {
+            previousValues.put(key, storageEngine.get(key));
+        }
+        for (String key : deletionsSet) {
+            previousValues.put(key, storageEngine.get(key));
+        }
+        StorageEngine.PreparedCommit preparedCommit = storageEngine.prepareCommit(storedChanges, deletionsSet);
+        tableMapLock.writeLock().lock();
+        try {
+            latestVersion = latestVersion.append(previousValues);
+            preparedCommit.publish();
+            invalidateCachedRows(changesMap.keySet());
+            invalidateCachedRows(deletionsSet);
+        } finally {
+            tableMapLock.writeLock().unlock();
+        }
+    }
+
     @Override
     public int rollback() {
         wholeTableLock.readLock().lock();
@@ -311,6 +454,7 @@ public final class DbTable implements Table, AutoCloseable {
     }
 
     private int rollbackWithoutLock() {
+        releaseSnapshot();
         if (getDiffDeletionsSet().size() + getDiffChangesMap().size() == 0) {
             return 0;
         }
@@ -344,6 +488,92 @@ public final class DbTable implements Table, AutoCloseable {
         }
     }
 
+    /**
+     * Keys of the table in [from, to) in ascending order, uncommitted changes of this thread included.
+     * Keys are read lazily from the committed version this thread's transaction reads, so the iterator doesn't
+     * see commits made after the transaction has started (nor uncommitted changes made after the scan has started).
+     * It mustn't be used after the table is closed. Iterator which isn't read to the end must be closed.
+     * @param from The first key, null means the beginning of the table.
+     * @param to The key after the last one, null means the end of the table.
+     * @param limit Maximal number of keys, NO_LIMIT if there is no limit.
+     */
+    public ScanIterator<String> scanKeys(final String from, final String to, int limit) {
+        ScanIterator<Map.Entry<String, byte[]>> rows = scanRows(from, to, limit);
+        return new ScanIterator<String>() {
+            @Override
+            public boolean hasNext() {
+                return rows.hasNext();
+            }
+
+            @Override
+            public String next() {
+                return rows.next().getKey();
+            }
+
+            @Override
+            public void close() {
+                rows.close();
+            }
+        };
+    }
+
+    /**
+     * Same as scanKeys(), but returns rows together with keys.
+     */
+    public ScanIterator<Map.Entry<String, Storeable>> scan(final String from, final String to, int limit) {
+        ScanIterator<Map.Entry<String, byte[]>> rows = scanRows(from, to, limit);
+        return new ScanIterator<Map.Entry<String, Storeable>>() {
+            @Override
+            public boolean hasNext() {
+                return rows.hasNext();
+            }
+
+            @Override
+            public Map.Entry<String, Storeable> next() {
+                Map.Entry<String, byte[]> row = rows.next();
+                return new AbstractMap.SimpleImmutableEntry<>(row.getKey(), deserializeWrapper(row.getValue()));
+            }
+
+            @Override
+            public void close() {
+                rows.close();
+            }
+        };
+    }
+
+    /**
+     * Keys which start with prefix, see scanKeys().
+     */
+    public ScanIterator<String> scanKeysByPrefix(final String prefix, int limit) {
+        return scanKeys(prefix, getPrefixEnd(prefix), limit);
+    }
+
+    /**
+     * Rows which keys start with prefix, see scan().
+     */
+    public ScanIterator<Map.Entry<String, Storeable>> scanByPrefix(final String prefix, int limit) {
+        return scan(prefix, getPrefixEnd(prefix), limit);
+    }
+
+    /**
+     * Ends transaction of this thread which has no uncommitted changes, so its next reads see the latest
+     * commits. Transaction reads the committed state as of its first read until it ends; threads which only
+     * read should end their transactions, otherwise they never see later commits.
+     * @throws IllegalStateException If there are uncommitted changes, they must be committed or rolled back.
+     */
+    public void endTransaction() {
+        wholeTableLock.readLock().lock();
+        try {
+            checkClosed();
+            if (getDiffDeletionsSet().size() + getDiffChangesMap().size() != 0) {
+                throw new IllegalStateException("transaction has uncommitted changes");
+            }
+            releaseSnapshot();
+        } finally {
+            wholeTableLock.readLock().unlock();
+        }
+    }
+
     @Override
     public int getNumberOfUncommittedChanges() {
         wholeTableLock.readLock().lock();
@@ -360,6 +590,355 @@ public final class DbTable implements Table, AutoCloseable {
         }
     }
 
+    /**
+     * @return Counters of the row cache. They are all zeros if the table has no cache.
+     */
+    public RowCache.Stats getRowCacheStats() {
+        wholeTableLock.readLock().lock();
+        try {
+            checkClosed();
+            return rowCache == null ? new RowCache.Stats(0, 0, 0) : rowCache.getStats();
+        } finally {
+            wholeTableLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return Schema shared by rows of the table, see PackedTableRow.
+     */
+    public RowSchema getRowSchema() {
+        return rowCodec.getSchema();
+    }
+
+    /**
+     * @return Approximate number of bytes taken by committed rows which are kept in memory:
+     * loaded shards or the memtable of the LSM engine.
+     */
+    public long getResidentBytes() {
+        wholeTableLock.readLock().lock();
+        try {
+            checkClosed();
+            return storageEngine.getResidentBytes();
+        } finally {
+            wholeTableLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return Counters of Bloom filters which let get() and remove() of absent keys skip shards.
+     */
+    public BloomFilter.Stats getBloomFilterStats() {
+        wholeTableLock.readLock().lock();
+        try {
+            checkClosed();
+            return storageEngine.getBloomFilterStats();
+        } finally {
+            wholeTableLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Creates secondary index of the column, which is kept up to date by commits and stored with the table.
+     * Only tables of the sharded engine have indexes.
+     * @param column
+     * @return Index or null if the column already has one.
+     * @throws UnsupportedOperationException If the engine of the table has no indexes.
+     */
+    public DbTableIndex createIndex(int column) {
+        wholeTableLock.readLock().lock();
+        try {
+            checkClosed();
+            checkColumnIndex(column);
+            if (!storageEngine.createIndex(column)) {
+                return null;
+            }
+            return new DbTableIndex(this, column);
+        } catch (IOException e) {
+            throw new RuntimeException("can't create index of column " + column + " of table \'"
+                    + tableDir.toString() + "\', [" + e.getMessage() + "]");
+        } finally {
+            wholeTableLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return Index of the column or null if the column has no index.
+     */
+    public DbTableIndex getIndex(int column) {
+        wholeTableLock.readLock().lock();
+        try {
+            checkClosed();
+            checkColumnIndex(column);
+            return storageEngine.getIndexedColumns().contains(column) ? new DbTableIndex(this, column) : null;
+        } finally {
+            wholeTableLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return Columns which have indexes, in ascending order.
+     */
+    public List<Integer> getIndexedColumns() {
+        wholeTableLock.readLock().lock();
+        try {
+            checkClosed();
+            return storageEngine.getIndexedColumns();
+        } finally {
+            wholeTableLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return The latest committed row with the least key among rows with the value in the indexed column,
+     * null if there is no such row. Expired rows stay in the index until they are purged, they are skipped.
+     */
+    Storeable getByIndex(int column, final String value) {
+        wholeTableLock.readLock().lock();
+        try {
+            checkClosed();
+            // Index and rows are read under the lock, so commits don't change them in between.
+            // The purge of expired rows may, but it removes only rows which are skipped anyway.
+            tableMapLock.readLock().lock();
+            try {
+                for (String key : storageEngine.getKeysByIndex(column, value)) {
+                    Storeable row = getCommittedValue(key);
+                    if (row != null) {
+                        return row;
+                    }
+                }
+                return null;
+            } finally {
+                tableMapLock.readLock().unlock();
+            }
+        } finally {
+            wholeTableLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return Distinct values of the indexed column in the latest committed rows which haven't expired,
+     * in ascending order.
+     */
+    List<String> getIndexedValues(int column) {
+        wholeTableLock.readLock().lock();
+        try {
+            checkClosed();
+            if (options.getRowTtlMs() == TableOptions.NO_TTL) {
+                return storageEngine.getIndexedValues(column);
+            }
+            tableMapLock.readLock().lock();
+            try {
+                List<String> values = new ArrayList<>();
+                for (String value : storageEngine.getIndexedValues(column)) {
+                    for (String key : storageEngine.getKeysByIndex(column, value)) {
+                        if (toRow(storageEngine.get(key)) != null) {
+                            values.add(value);
+                            break;
+                        }
+                    }
+                }
+                return values;
+            } finally {
+                tableMapLock.readLock().unlock();
+            }
+        } finally {
+            wholeTableLock.readLock().unlock();
+        }
+    }
+
+    private void checkColumnIndex(int column) {
+        if (column < 0 || column >= columnTypes.size()) {
+            throw new IndexOutOfBoundsException("wrong column index: " + column);
+        }
+    }
+
+    private ScanIterator<Map.Entry<String, byte[]>> scanRows(final String from, final String to, int limit) {
+        if (limit < 0) {
+            throw new IllegalArgumentException("negative limit: " + limit);
+        }
+        wholeTableLock.readLock().lock();
+        try {
+            checkClosed();
+            NavigableMap<String, byte[]> changes = new TreeMap<>(getDiffChangesMap());
+            if (from != null) {
+                changes = changes.tailMap(from, true);
+            }
+            if (to != null) {
+                changes = changes.headMap(to, false);
+            }
+            return new RowScanIterator(from, to, limit, getSnapshot(), new TreeMap<>(changes),
+                    new HashSet<>(getDiffDeletionsSet()));
+        } finally {
+            wholeTableLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Merges committed rows, which are read in batches, with uncommitted changes.
+     */
+    private final class RowScanIterator implements ScanIterator<Map.Entry<String, byte[]>> {
+        private final String to;
+        private final CommitVersion version;
+        private final NavigableMap<String, byte[]> changes;
+        private final Set<String> deletions;
+        private int remaining;
+        private String lastCommittedKey;
+        private boolean fromInclusive = true;
+        private boolean committedRowsEnded = false;
+        private Deque<Map.Entry<String, byte[]>> committedRows = new ArrayDeque<>();
+        private Map.Entry<String, byte[]> nextRow;
+        private boolean released = false;
+
+        RowScanIterator(final String from, final String to, int limit, final CommitVersion version,
+                        final NavigableMap<String, byte[]> changes, final Set<String> deletions) {
+            this.lastCommittedKey = from;
+            this.to = to;
+            this.version = version;
+            // Iterator may be read after the transaction ends, so it holds the version until it's exhausted or closed.
+            version.acquire();
+            this.remaining = limit;
+            this.changes = changes;
+            this.deletions = deletions;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (nextRow == null && remaining > 0) {
+                nextRow = findNext();
+                if (nextRow == null) {
+                    remaining = 0;
+                }
+            }
+            if (nextRow == null) {
+                close();
+            }
+            return nextRow != null;
+        }
+
+        @Override
+        public void close() {
+            if (!released) {
+                released = true;
+                remaining = 0;
+                nextRow = null;
+                version.release();
+            }
+        }
+
+        @Override
+        public Map.Entry<String, byte[]> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Map.Entry<String, byte[]> row = nextRow;
+            nextRow = null;
+            --remaining;
+            return row;
+        }
+
+        private Map.Entry<String, byte[]> findNext() {
+            while (true) {
+                Map.Entry<String, byte[]> committed = peekCommitted();
+                Map.Entry<String, byte[]> changed = changes.firstEntry();
+                int order;
+                if (committed == null || changed == null) {
+                    order = committed == null ? -1 : 1;
+                } else {
+                    order = changed.getKey().compareTo(committed.getKey());
+                }
+                if (committed == null && changed == null) {
+                    return null;
+                } else if (order <= 0) {
+                    // Uncommitted value of the key replaces the committed one.
+                    if (order == 0) {
+                        committedRows.poll();
+                    }
+                    return changes.pollFirstEntry();
+                } else {
+                    committedRows.poll();
+                    if (!deletions.contains(committed.getKey())) {
+                        return committed;
+                    }
+                }
+            }
+        }
+
+        private Map.Entry<String, byte[]> peekCommitted() {
+            // Rows of a batch may be all changed by later commits, then the next batch is read.
+            while (committedRows.isEmpty() && !committedRowsEnded) {
+                wholeTableLock.readLock().lock();
+                try {
+                    checkClosed();
+                    tableMapLock.readLock().lock();
+                    try {
+                        readCommittedBatch();
+                    } finally {
+                        tableMapLock.readLock().unlock();
+                    }
+                } finally {
+                    wholeTableLock.readLock().unlock();
+                }
+            }
+            return committedRows.peek();
+        }
+
+        /**
+         * Reads the next batch of the latest rows and turns it into rows of the scanned version.
+         * Caller must hold tableMapLock's read lock.
+         */
+        private void readCommittedBatch() {
+            List<Map.Entry<String, byte[]>> batch = storageEngine.scan(lastCommittedKey, fromInclusive, to,
+                    SCAN_BATCH_SIZE);
+            String batchStart = lastCommittedKey;
+            boolean batchStartInclusive = fromInclusive;
+            committedRowsEnded = batch.size() < SCAN_BATCH_SIZE;
+            if (!batch.isEmpty()) {
+                lastCommittedKey = batch.get(batch.size() - 1).getKey();
+                fromInclusive = false;
+            }
+            // The batch covers keys up to its last one, or up to the end of the range if it's the last batch.
+            String batchEnd = committedRowsEnded ? to : lastCommittedKey;
+            NavigableMap<String, byte[]> rows = new TreeMap<>();
+            batch.forEach(row -> rows.put(row.getKey(), row.getValue()));
+            version.getLaterChanges().forEach((key, value) -> {
+                int startOrder = batchStart == null ? 1 : key.compareTo(batchStart);
+                int endOrder = batchEnd == null ? -1 : key.compareTo(batchEnd);
+                if (startOrder < 0 || (startOrder == 0 && !batchStartInclusive)
+                        || endOrder > 0 || (endOrder == 0 && committedRowsEnded)) {
+                    return;
+                }
+                if (value == null) {
+                    rows.remove(key);
+                } else {
+                    rows.put(key, value);
+                }
+            });
+            rows.forEach((key, value) -> {
+                byte[] row = toRow(value);
+                if (row != null) {
+                    committedRows.add(new AbstractMap.SimpleImmutableEntry<>(key, row));
+                }
+            });
+        }
+    }
+
+    /**
+     * @return The least string which is greater than all strings with the prefix, null if there is no such string.
+     */
+    private static String getPrefixEnd(final String prefix) {
+        if (prefix == null) {
+            throw new IllegalArgumentException();
+        }
+        int end = prefix.length();
+        while (end > 0 && prefix.charAt(end - 1) == Character.MAX_VALUE) {
+            --end;
+        }
+        if (end == 0) {
+            return null;
+        }
+        return prefix.substring(0, end - 1) + (char) (prefix.charAt(end - 1) + 1);
+    }
+
     private void checkClosed() {
         if (closed) {
             throw new IllegalStateException();
@@ -372,46 +951,138 @@ public final class DbTable implements Table, AutoCloseable {
         try {
             checkClosed();
             rollbackWithoutLock();
+            diff.remove();
+            size.remove();
+            try {
+                storageEngine.close();
+            } catch (IOException e) {
+                throw new RuntimeException("can't close table: " + e.getMessage());
+            }
             closed = true;
         } finally {
             wholeTableLock.writeLock().unlock();
         }
     }
 
-    private String serializeWrapper(final Storeable value) {
-        return tableProvider.serialize(this, value);
+    public boolean isClosed() {
+        wholeTableLock.readLock().lock();
+        try {
+            return closed;
+        } finally {
+            wholeTableLock.readLock().unlock();
+        }
+    }
+
+    private byte[] serializeWrapper(final Storeable value) {
+        return rowCodec.encode(value);
     }
 
-    private Storeable deserializeWrapper(final String value) {
+    private Storeable deserializeWrapper(final byte[] value) {
         if (value == null) {
             return null;
         } else {
+            return rowCodec.decode(value);
+        }
+    }
+
+    /**
+     * @return Committed version the transaction of this thread reads, it's taken on the first call.
+     */
+    private CommitVersion getSnapshot() {
+        CommitVersion version = snapshot.get();
+        if (version == null) {
+            // Commits change the latest version under the write lock if nobody holds it.
+            tableMapLock.readLock().lock();
             try {
-                return tableProvider.deserialize(this, value);
-            } catch (ParseException e) {
-                throw new IllegalArgumentException("error while deserializing value \""
-                        + value + "\": " + e.getMessage());
+                version = latestVersion;
+                version.acquire();
+            } finally {
+                tableMapLock.readLock().unlock();
             }
+            snapshot.set(version);
         }
+        return version;
     }
 
-    private void commitChangesToTableMap() {
-        getDiffChangesMap().forEach((key, value) -> getTablePartByKey(key).put(key, value));
-        getDiffDeletionsSet().forEach(deletedKey -> getTablePartByKey(deletedKey).remove(deletedKey));
+    /**
+     * @return Version made by the last commit.
+     */
+    CommitVersion getLatestVersion() {
+        return latestVersion;
     }
 
-    private Map<String, String> getTablePartByKey(final String key) {
-        int dir = getDirNumByKey(key);
-        int file = getFileNumByKey(key);
-        return lastCommitTableMap.get(dir).get(file);
+    private void releaseSnapshot() {
+        CommitVersion version = snapshot.get();
+        if (version != null) {
+            version.release();
+            snapshot.remove();
+        }
+    }
+
+    /**
+     * Returns value of the key in the snapshot of this thread's transaction, without tableMapLock.
+     */
+    private Storeable getSnapshotValue(final String key) {
+        return getSnapshot().get(key, () -> getCommittedValue(key), value -> deserializeWrapper(toRow(value)));
     }
 
-    private void calculateTableSize() {
-        for (List<Map<String, String>> list : lastCommitTableMap) {
-            for (Map<String, String> map : list) {
-                incSize(map.size());
+    /**
+     * Returns the latest committed value of the key. Missed rows are read and cached under tableMapLock's
+     * read lock, so a commit can't slip between reading a row and caching it.
+     */
+    private Storeable getCommittedValue(final String key) {
+        if (rowCache == null) {
+            return deserializeWrapper(toRow(storageEngine.get(key)));
+        }
+        Storeable row = rowCache.get(key);
+        if (row == null) {
+            tableMapLock.readLock().lock();
+            try {
+                row = deserializeWrapper(toRow(storageEngine.get(key)));
+                if (row == null) {
+                    return null;
+                }
+                rowCache.put(key, row);
+            } finally {
+                tableMapLock.readLock().unlock();
             }
         }
+        // Cached row is shared, so every caller gets its own copy. Cached rows are made by RowCodec.decode().
+        return ((PackedTableRow) row).copy();
+    }
+
+    /**
+     * Converts committed row from the form the storage engine keeps it in (see ExpiringRow).
+     * @return Row in RowCodec form or null if there is no row or it has expired.
+     */
+    private byte[] toRow(final byte[] storedRow) {
+        if (storedRow == null || options.getRowTtlMs() == TableOptions.NO_TTL) {
+            return storedRow;
+        }
+        return ExpiringRow.isExpired(storedRow, options.getClock().getAsLong()) ? null : ExpiringRow.unwrap(storedRow);
+    }
+
+    private void invalidateCachedRows(final Collection<String> keys) {
+        if (rowCache != null) {
+            keys.forEach(rowCache::invalidate);
+        }
+    }
+
+    private static RowCache makeRowCache(final TableOptions options) {
+        if (options.getRowCacheCapacity() == 0) {
+            return null;
+        } else {
+            return new RowCache(options.getRowCacheCapacity(), options.getRowCachePolicy());
+        }
+    }
+
+    private void openStorageEngine(boolean lazyLoading, final MemoryBudget memoryBudget) throws IOException {
+        if (options.getEngine() == TableOptions.Engine.LSM) {
+            storageEngine = new LsmEngine(tableDir, options);
+        } else {
+            storageEngine = new ShardedMapEngine(tableDir, options, lazyLoading, this::jsonToRow, this::rowToJson,
+                    this::getIndexedValue, memoryBudget);
+        }
     }
 
     private boolean checkStoreableValueValidity(final Storeable value) {
@@ -426,31 +1097,29 @@ public final class DbTable implements Table, AutoCloseable {
         return true;
     }
 
-    private void dump() throws IOException {
-        TableLoaderDumper.dumpTable(tableDir, lastCommitTableMap);
-    }
-
-    private static int getDirNumByKey(final String key) {
-        char b = key.charAt(0);
-        return b % MAX_DIRS_FOR_TABLE;
+    // Shards may be loaded on the threads of the I/O pool, so it must not wait for the provider or the table either.
+    private byte[] jsonToRow(final byte[] json) {
+        String value = new String(json, CHARSET);
+        try {
+            return rowCodec.encode(DbTableProvider.deserializeRow(rowCodec.getSchema(), value));
+        } catch (ParseException e) {
+            throw new IllegalArgumentException("error while deserializing value \""
+                    + value + "\": " + e.getMessage());
+        }
     }
 
-    private static int getFileNumByKey(final String key) {
-        char b = key.charAt(0);
-        return b / MAX_DIRS_FOR_TABLE % MAX_FILES_FOR_DIR;
+    // Index of a column keeps values of the column serialized as in rows, DbTableIndex.get() takes the same form.
+    private String getIndexedValue(final byte[] storedRow, int column) {
+        byte[] row = options.getRowTtlMs() == TableOptions.NO_TTL ? storedRow : ExpiringRow.unwrap(storedRow);
+        return DbTableProvider.serializeColumn(columnTypes.get(column), rowCodec.decodeColumns(row, column).get(0));
     }
 
-    private void initHashMaps() {
-        lastCommitTableMap = new ArrayList<>(MAX_DIRS_FOR_TABLE);
-        for (int i = 0; i < MAX_DIRS_FOR_TABLE; ++i) {
-            lastCommitTableMap.add(new ArrayList<>(MAX_FILES_FOR_DIR));
-            for (int j = 0; j < MAX_FILES_FOR_DIR; ++j) {
-                lastCommitTableMap.get(i).add(new HashMap<String, String>());
-            }
-        }
+    // Checkpointer calls it, so it must not wait for the provider or the table: their close() waits for checkpointer.
+    private byte[] rowToJson(final byte[] row) {
+        return DbTableProvider.serializeRow(columnTypes, rowCodec.decode(row)).getBytes(CHARSET);
     }
 
-    private Map<String, String> getDiffChangesMap() {
+    private Map<String, byte[]> getDiffChangesMap() {
         return diff.get().changesMap;
     }
 
@@ -0,0 +1,141 @@
+package ru.fizteh.fivt.students.dmitry_persiyanov.database.db_table;
+
+import ru.fizteh.fivt.storage.structured.ColumnFormatException;
+import ru.fizteh.fivt.storage.structured.Storeable;
+import ru.fizteh.fivt.storage.structured.Table;
+import ru.fizteh.fivt.students.dmitry_persiyanov.database.db_table_provider.DbTableProvider;
+import ru.fizteh.fivt.students.dmitry_persiyanov.database.db_table_provider.utils.TypeStringTranslator;
+
+import java.util.List;
+
+/**
+ * Read-only view of a table through the secondary index of a column (see DbTable.createIndex()).
+ * Keys of the index are values of the column serialized as in JSON rows (see DbTableProvider.serializeColumn()),
+ * e.g. "text" with the quotes, 42 or true. get() returns the row which has the value in the column, the row
+ * with the least key if there are several of them. Index reflects the latest commits and doesn't see
+ * uncommitted changes.
+ */
+public final class DbTableIndex implements Table {
+    private final DbTable table;
+    private final int column;
+
+    DbTableIndex(final DbTable table, int column) {
+        this.table = table;
+        this.column = column;
+    }
+
+    public int getColumn() {
+        return column;
+    }
+
+    /**
+     * @return Name of the table followed by the indexed column: table[column].
+     */
+    @Override
+    public String getName() {
+        return table.getName() + "[" + column + "]";
+    }
+
+    /**
+     * @param key Value of the indexed column.
+     * @throws IllegalArgumentException If key is null or isn't a value of the column type.
+     */
+    @Override
+    public Storeable get(final String key) {
+        if (key == null) {
+            throw new IllegalArgumentException();
+        }
+        return table.getByIndex(column, parseColumnValue(key));
+    }
+
+    @Override
+    public Storeable put(final String key, final Storeable value) throws ColumnFormatException {
+        throw new UnsupportedOperationException("index is read-only");
+    }
+
+    @Override
+    public Storeable remove(final String key) {
+        throw new UnsupportedOperationException("index is read-only");
+    }
+
+    /**
+     * @return Number of distinct values of the column.
+     */
+    @Override
+    public int size() {
+        return table.getIndexedValues(column).size();
+    }
+
+    /**
+     * @return Distinct values of the column, in ascending order of their string form.
+     */
+    @Override
+    public List<String> list() {
+        return table.getIndexedValues(column);
+    }
+
+    @Override
+    public int commit() {
+        throw new UnsupportedOperationException("index is read-only");
+    }
+
+    @Override
+    public int rollback() {
+        throw new UnsupportedOperationException("index is read-only");
+    }
+
+    @Override
+    public int getNumberOfUncommittedChanges() {
+        return 0;
+    }
+
+    @Override
+    public int getColumnsCount() {
+        return table.getColumnsCount();
+    }
+
+    @Override
+    public Class<?> getColumnType(int columnIndex) throws IndexOutOfBoundsException {
+        return table.getColumnType(columnIndex);
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "[" + table.toString() + ", column " + column + "]";
+    }
+
+    /**
+     * @return Value in the form the index keeps it, e.g. "42" for " 042".
+     */
+    private String parseColumnValue(final String value) {
+        Class<?> type = table.getColumnType(column);
+        String str = value.trim();
+        Object parsed = null;
+        try {
+            if (type.equals(String.class)) {
+                if (str.length() >= 2 && str.startsWith("\"") && str.endsWith("\"")) {
+                    parsed = str.substring(1, str.length() - 1);
+                }
+            } else if (type.equals(Integer.class)) {
+                parsed = Integer.valueOf(str);
+            } else if (type.equals(Long.class)) {
+                parsed = Long.valueOf(str);
+            } else if (type.equals(Byte.class)) {
+                parsed = Byte.valueOf(str);
+            } else if (type.equals(Float.class)) {
+                parsed = Float.valueOf(str);
+            } else if (type.equals(Double.class)) {
+                parsed = Double.valueOf(str);
+            } else if (type.equals(Boolean.class) && (str.equals("true") || str.equals("false"))) {
+                parsed = Boolean.valueOf(str);
+            }
+        } catch (NumberFormatException e) {
+            // Reported below.
+        }
+        if (parsed != null) {
+            return DbTableProvider.serializeColumn(type, parsed);
+        }
+        throw new IllegalArgumentException("wrong value of " + TypeStringTranslator.getStringNameByType(type)
+                + " column: " + value);
+    }
+}
@@ -5,13 +5,23 @@ import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
+import ru.fizteh.fivt.storage.structured.Storeable;
 import ru.fizteh.fivt.storage.structured.Table;
 import ru.fizteh.fivt.students.dmitry_persiyanov.database.db_table_provider.DbTableProvider;
+import ru.fizteh.fivt.students.dmitry_persiyanov.database.exceptions.TableCorruptedException;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.text.ParseException;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static org.junit.Assert.*;
 
@@ -163,6 +173,712 @@ public class DbTableTest {
         tm.remove(null);
     }
 
+    @Test
+    public void commitRewritesOnlyTouchedShards() throws Exception {
+        tm.put("a", db.deserialize(tm, "[\"a\"]"));
+        tm.put("b", db.deserialize(tm, "[\"b\"]"));
+        tm.commit();
+        reopen();
+        // 'b' lives in 2.dir/6.1.dat, 'a' lives in 1.dir/6.1.dat.
+        Path untouchedShard = dbDir.toPath().resolve("table").resolve("2.dir").resolve("6.1.dat");
+        byte[] untouchedShardBytes = Files.readAllBytes(untouchedShard);
+        Files.write(untouchedShard, new byte[0]);
+        tm.put("a", db.deserialize(tm, "[\"new a\"]"));
+        tm.commit();
+        reopen();
+        assertEquals(0, Files.size(untouchedShard));
+        Files.write(untouchedShard, untouchedShardBytes);
+        reopen();
+        assertEquals("[\"new a\"]", db.serialize(tm, tm.get("a")));
+        assertEquals("[\"b\"]", db.serialize(tm, tm.get("b")));
+    }
+
+    @Test
+    public void removingLastKeyOfDirectoryDeletesIt() throws Exception {
+        tm.put("a", db.deserialize(tm, "[\"a\"]"));
+        tm.commit();
+        tm.remove("a");
+        tm.commit();
+        reopen();
+        assertFalse(Files.exists(dbDir.toPath().resolve("table").resolve("1.dir")));
+    }
+
+    @Test
+    public void committedChangesSurviveWithoutCheckpoint() throws ParseException, IOException {
+        addKeysToTable(tm);
+        tm.commit();
+        tm.remove("key");
+        tm.commit();
+        // Table isn't closed, so the changes are only in the commit log.
+        Table newTm = new DbTableProvider(dbDir.toPath()).getTable("table");
+        assertEquals(2, newTm.size());
+        assertNull(newTm.get("key"));
+        assertEquals(testKeysValues.get("mazafakka"), db.serialize(newTm, newTm.get("mazafakka")));
+    }
+
+    @Test
+    public void tornCommitLogRecordIsIgnored() throws Exception {
+        addKeysToTable(tm);
+        tm.commit();
+        db.close();
+        Path log = dbDir.toPath().resolve("table").resolve(CommitLog.LOG_FILENAME);
+        Files.write(log, new byte[] {0, 0, 0, 42, 1, 2}, StandardOpenOption.APPEND);
+        db = new DbTableProvider(dbDir.toPath());
+        tm = (DbTable) db.getTable("table");
+        assertEquals(3, tm.size());
+        tm.put("new", db.deserialize(tm, "[\"new\"]"));
+        tm.commit();
+        reopen();
+        assertEquals(4, tm.size());
+    }
+
+    @Test
+    public void bigShardIsLoadedCorrectly() throws Exception {
+        // All keys start with 'k', so they get into one shard which is big enough to be mapped on load.
+        for (int i = 0; i < 2000; ++i) {
+            tm.put("key" + i, db.deserialize(tm, "[\"значение номер " + i + "\"]"));
+        }
+        tm.commit();
+        reopen();
+        assertEquals(2000, tm.size());
+        assertEquals("[\"значение номер 1999\"]", db.serialize(tm, tm.get("key1999")));
+        assertEquals("[\"значение номер 0\"]", db.serialize(tm, tm.get("key0")));
+    }
+
+    @Test(expected = TableCorruptedException.class)
+    public void lazyTableReadsShardOnFirstAccess() throws Exception {
+        tm.put("a", db.deserialize(tm, "[\"a\"]"));
+        tm.put("b", db.deserialize(tm, "[\"b\"]"));
+        tm.commit();
+        db.close();
+        db = new DbTableProvider(dbDir.toPath(), true);
+        tm = (DbTable) db.getTable("table");
+        assertEquals(2, tm.size());
+        assertEquals("[\"a\"]", db.serialize(tm, tm.get("a")));
+        // Shard of 'b' hasn't been read yet.
+        Files.write(dbDir.toPath().resolve("table").resolve("2.dir").resolve("6.1.dat"), new byte[] {1, 2, 3});
+        tm.get("b");
+    }
+
+    @Test
+    public void lazyTableDoesNotReadShardForAbsentKeys() throws Exception {
+        tm.put("a", db.deserialize(tm, "[\"a\"]"));
+        tm.put("b", db.deserialize(tm, "[\"b\"]"));
+        tm.commit();
+        db.close();
+        assertTrue(Files.exists(dbDir.toPath().resolve("table").resolve("2.dir").resolve("6.1.bloom")));
+        db = new DbTableProvider(dbDir.toPath(), true);
+        tm = (DbTable) db.getTable("table");
+        // Shard of 'b' is corrupted, only its filter can answer.
+        Files.write(dbDir.toPath().resolve("table").resolve("2.dir").resolve("6.1.dat"), new byte[] {1, 2, 3});
+        for (int i = 0; i < 100; ++i) {
+            assertNull(tm.get("b" + i));
+            assertNull(tm.remove("b" + i));
+        }
+        BloomFilter.Stats stats = tm.getBloomFilterStats();
+        assertEquals(200, stats.getNegativeCount());
+        assertEquals(0, stats.getFalsePositiveCount());
+        assertTrue(stats.getSizeInBytes() > 0);
+    }
+
+    @Test
+    public void filtersKeepUpWithCommits() throws Exception {
+        for (int i = 0; i < 1000; ++i) {
+            tm.put("key" + i, db.deserialize(tm, "[\"v\"]"));
+        }
+        tm.commit();
+        for (int i = 0; i < 1000; ++i) {
+            assertNotNull(tm.get("key" + i));
+            assertNull(tm.get("absent" + i));
+        }
+        db.close();
+        db = new DbTableProvider(dbDir.toPath());
+        tm = (DbTable) db.getTable("table");
+        assertEquals(1000, tm.size());
+        assertNotNull(tm.get("key999"));
+    }
+
+    @Test
+    public void lazyTableListsAllKeys() throws Exception {
+        addKeysToTable(tm);
+        tm.commit();
+        db.close();
+        db = new DbTableProvider(dbDir.toPath(), true);
+        tm = (DbTable) db.getTable("table");
+        tm.put("key", db.deserialize(tm, "[\"changed\"]"));
+        tm.put("new", db.deserialize(tm, "[\"new\"]"));
+        List<String> keys = tm.list();
+        Collections.sort(keys);
+        assertEquals(Arrays.asList("12345", "key", "mazafakka", "new"), keys);
+    }
+
+    @Test
+    public void lazyTableEmptiesShardNextToUnloadedOne() throws Exception {
+        // Shards of 'b' and 'r' are 2.dir/6.dat and 2.dir/7.dat.
+        tm.put("b", db.deserialize(tm, "[\"b\"]"));
+        tm.put("r", db.deserialize(tm, "[\"r\"]"));
+        tm.commit();
+        db.close();
+        db = new DbTableProvider(dbDir.toPath(), true);
+        tm = (DbTable) db.getTable("table");
+        tm.remove("r");
+        tm.commit();
+        reopen();
+        assertNull(tm.get("r"));
+        assertEquals("[\"b\"]", db.serialize(tm, tm.get("b")));
+    }
+
+    @Test
+    public void hashShardingSpreadsKeysWithCommonPrefix() throws Exception {
+        TableOptions options = new TableOptions().setSharding(TableOptions.ShardingScheme.HASH, 40);
+        DbTable hashed = db.createTable("hashed", signature, options);
+        for (int i = 0; i < 400; ++i) {
+            hashed.put("user" + i, db.deserialize(hashed, "[\"v" + i + "\"]"));
+        }
+        hashed.commit();
+        db.close();
+        Path tableDir = dbDir.toPath().resolve("hashed");
+        assertTrue(Files.exists(tableDir.resolve("2.dir").resolve("7.1.dat")));
+        assertFalse(Files.exists(tableDir.resolve("3.dir")));
+        db = new DbTableProvider(dbDir.toPath());
+        hashed = (DbTable) db.getTable("hashed");
+        assertEquals(400, hashed.size());
+        assertEquals("[\"v123\"]", db.serialize(hashed, hashed.get("user123")));
+    }
+
+    @Test
+    public void offHeapTableKeepsCommittedRows() throws Exception {
+        TableOptions options = new TableOptions().setStorage(TableOptions.Storage.OFF_HEAP);
+        DbTable offHeap = db.createTable("offheap", signature, options);
+        for (int i = 0; i < 1000; ++i) {
+            offHeap.put("key" + i, db.deserialize(offHeap, "[\"v" + i + "\"]"));
+        }
+        offHeap.commit();
+        offHeap.remove("key0");
+        offHeap.commit();
+        reopen();
+        offHeap = (DbTable) db.getTable("offheap");
+        assertEquals(999, offHeap.size());
+        assertEquals(999, offHeap.list().size());
+        assertNull(offHeap.get("key0"));
+        assertEquals("v999", offHeap.get("key999").getStringAt(0));
+    }
+
+    @Test
+    public void tablesWithParallelIoKeepCommittedRows() throws Exception {
+        for (int parallelism : new int[] {4, TableOptions.COMMON_POOL_PARALLELISM}) {
+            String name = "parallel" + parallelism;
+            TableOptions options = new TableOptions().setRowFormat(TableOptions.RowFormat.JSON)
+                    .setSharding(TableOptions.ShardingScheme.HASH, 64).setIoParallelism(parallelism);
+            DbTable parallel = db.createTable(name, signature, options);
+            for (int i = 0; i < 1000; ++i) {
+                parallel.put("key" + i, db.deserialize(parallel, "[\"v" + i + "\"]"));
+            }
+            parallel.commit();
+            parallel.remove("key0");
+            parallel.commit();
+            reopen();
+            parallel = (DbTable) db.getTable(name);
+            assertEquals(999, parallel.list().size());
+            assertNull(parallel.get("key0"));
+            assertEquals("v999", parallel.get("key999").getStringAt(0));
+        }
+    }
+
+    @Test
+    public void tablesOfEveryDurabilityKeepCommittedRows() throws Exception {
+        for (TableOptions.Durability durability : TableOptions.Durability.values()) {
+            for (TableOptions.Engine engine : TableOptions.Engine.values()) {
+                String name = durability + "_" + engine;
+                TableOptions options = new TableOptions().setEngine(engine).setDurability(durability, 10);
+                DbTable table = db.createTable(name, signature, options);
+                table.put("a", db.deserialize(table, "[\"a\"]"));
+                table.commit();
+                reopen();
+                table = (DbTable) db.getTable(name);
+                assertEquals("[\"a\"]", db.serialize(table, table.get("a")));
+                TableOptions loadedOptions = TableLoaderDumper.loadOptions(dbDir.toPath().resolve(name));
+                assertEquals(durability, loadedOptions.getDurability());
+                assertEquals(10, loadedOptions.getSyncIntervalMs());
+            }
+        }
+    }
+
+    @Test
+    public void lsmTableKeepsCommittedRows() throws Exception {
+        TableOptions options = new TableOptions().setEngine(TableOptions.Engine.LSM);
+        DbTable lsm = db.createTable("lsm", signature, options);
+        for (int i = 0; i < 1000; ++i) {
+            lsm.put("key" + i, db.deserialize(lsm, "[\"v" + i + "\"]"));
+        }
+        lsm.commit();
+        lsm.remove("key0");
+        lsm.commit();
+        reopen();
+        lsm = (DbTable) db.getTable("lsm");
+        assertEquals(999, lsm.size());
+        assertEquals(999, lsm.list().size());
+        assertNull(lsm.get("key0"));
+        assertEquals("v999", lsm.get("key999").getStringAt(0));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void lsmTableWithJsonRowsIsRejected() throws Exception {
+        TableOptions options = new TableOptions().setEngine(TableOptions.Engine.LSM)
+                .setRowFormat(TableOptions.RowFormat.JSON);
+        db.createTable("lsm", signature, options);
+    }
+
+    private void checkScans(final DbTable table) throws Exception {
+        for (String key : Arrays.asList("user:1:a", "user:1:b", "user:2:a", "user:10:a", "other")) {
+            table.put(key, db.deserialize(table, "[\"" + key + "\"]"));
+        }
+        table.commit();
+        table.remove("user:1:b");
+        table.put("user:1:c", db.deserialize(table, "[\"new\"]"));
+        table.put("user:2:a", db.deserialize(table, "[\"changed\"]"));
+
+        List<String> keys = new ArrayList<>();
+        table.scanKeysByPrefix("user:1", DbTable.NO_LIMIT).forEachRemaining(keys::add);
+        assertEquals(Arrays.asList("user:10:a", "user:1:a", "user:1:c"), keys);
+        keys.clear();
+        table.scanKeys("user:1:", "user:2:b", 2).forEachRemaining(keys::add);
+        assertEquals(Arrays.asList("user:1:a", "user:1:c"), keys);
+        Iterator<Map.Entry<String, Storeable>> rows = table.scan("user:2", null, DbTable.NO_LIMIT);
+        assertEquals("user:2:a", rows.next().getKey());
+        rows = table.scanByPrefix("user:2:", DbTable.NO_LIMIT);
+        assertEquals("changed", rows.next().getValue().getStringAt(0));
+        assertFalse(rows.hasNext());
+    }
+
+    @Test
+    public void scansSeeUncommittedChanges() throws Exception {
+        checkScans(tm);
+    }
+
+    @Test
+    public void lsmTableScansSeeUncommittedChanges() throws Exception {
+        checkScans(db.createTable("lsm", signature, new TableOptions().setEngine(TableOptions.Engine.LSM)));
+    }
+
+    @Test
+    public void scanReadsCommittedRowsInBatches() throws Exception {
+        for (int i = 0; i < 1000; ++i) {
+            tm.put(String.format("key%04d", i), db.deserialize(tm, "[\"v\"]"));
+        }
+        tm.commit();
+        Iterator<String> keys = tm.scanKeys(null, null, DbTable.NO_LIMIT);
+        for (int i = 0; i < 1000; ++i) {
+            assertEquals(String.format("key%04d", i), keys.next());
+        }
+        assertFalse(keys.hasNext());
+    }
+
+    @Test
+    public void cachedRowIsInvalidatedOnCommit() throws Exception {
+        TableOptions options = new TableOptions().setRowCache(10, RowCache.EvictionPolicy.TINY_LFU);
+        DbTable cached = db.createTable("cached", signature, options);
+        cached.put("key", db.deserialize(cached, "[\"old\"]"));
+        cached.commit();
+        assertEquals("old", cached.get("key").getStringAt(0));
+        cached.get("key").setColumnAt(0, "changed by reader");
+        assertEquals("old", cached.get("key").getStringAt(0));
+        cached.put("key", db.deserialize(cached, "[\"new\"]"));
+        cached.commit();
+        assertEquals("new", cached.get("key").getStringAt(0));
+        cached.remove("key");
+        cached.commit();
+        assertNull(cached.get("key"));
+        RowCache.Stats stats = cached.getRowCacheStats();
+        assertEquals(4, stats.getHitCount());
+        assertEquals(4, stats.getMissCount());
+    }
+
+    private long fillTableAndMeasure(final String name, final TableOptions.Compression compression) throws Exception {
+        TableOptions options = new TableOptions().setRowFormat(TableOptions.RowFormat.JSON).setCompression(compression);
+        Table table = db.createTable(name, Arrays.asList(String.class, Integer.class, Boolean.class), options);
+        for (int i = 0; i < 2000; ++i) {
+            table.put("key" + i, db.deserialize(table, "[\"repeated value " + i % 10 + "\", " + i + ", true]"));
+        }
+        table.commit();
+        db.close();
+        long[] size = {0};
+        Files.walk(dbDir.toPath().resolve(name)).filter(path -> path.toString().endsWith(".dat"))
+                .forEach(path -> size[0] += path.toFile().length());
+        db = new DbTableProvider(dbDir.toPath(), true);
+        return size[0];
+    }
+
+    @Test
+    public void deflatedTableIsSmallerAndReadsTheSame() throws Exception {
+        long rawSize = fillTableAndMeasure("raw", TableOptions.Compression.NONE);
+        long deflatedSize = fillTableAndMeasure("deflated", TableOptions.Compression.DEFLATE);
+        assertTrue(deflatedSize * 2 < rawSize);
+        Table deflated = db.getTable("deflated");
+        assertEquals(2000, deflated.size());
+        assertEquals("[\"repeated value 7\", 1997, true]", db.serialize(deflated, deflated.get("key1997")));
+        deflated.remove("key0");
+        deflated.commit();
+        db.close();
+        db = new DbTableProvider(dbDir.toPath());
+        deflated = db.getTable("deflated");
+        assertNull(deflated.get("key0"));
+        assertEquals("[\"repeated value 1\", 1, true]", db.serialize(deflated, deflated.get("key1")));
+    }
+
+    @Test
+    public void tableWithJsonValuesIsReadAndWrittenInJson() throws Exception {
+        Path tableDir = dbDir.toPath().resolve("legacy");
+        Files.createDirectories(tableDir.resolve("11.dir"));
+        Files.write(tableDir.resolve("signature.tsv"), "String\tint\t".getBytes("UTF-8"));
+        // 'k' lives in 11.dir/6.dat. Shard file: [key]['\0'][offset of value: int][value].
+        byte[] value = "[\"old\", 1]".getBytes("UTF-8");
+        ByteArrayOutputStream shard = new ByteArrayOutputStream();
+        DataOutputStream shardOut = new DataOutputStream(shard);
+        shardOut.write("key".getBytes("UTF-8"));
+        shardOut.write(0);
+        shardOut.writeInt(8);
+        shardOut.write(value);
+        Files.write(tableDir.resolve("11.dir").resolve("6.dat"), shard.toByteArray());
+        db.close();
+        db = new DbTableProvider(dbDir.toPath());
+
+        Table legacy = db.getTable("legacy");
+        assertEquals("[\"old\", 1]", db.serialize(legacy, legacy.get("key")));
+        legacy.put("key2", db.deserialize(legacy, "[\"new\", 2]"));
+        legacy.commit();
+        db.close();
+        // Legacy shard was replaced by the shard of the next generation.
+        assertFalse(Files.exists(tableDir.resolve("11.dir").resolve("6.dat")));
+        String shardText = new String(Files.readAllBytes(tableDir.resolve("11.dir").resolve("6.1.dat")), "UTF-8");
+        assertTrue(shardText.contains("[\"new\", 2]"));
+        db = new DbTableProvider(dbDir.toPath());
+        legacy = db.getTable("legacy");
+        assertEquals("[\"new\", 2]", db.serialize(legacy, legacy.get("key2")));
+    }
+
+    @Test
+    public void commitPublishesManifestOfLiveShards() throws Exception {
+        tm.put("a", db.deserialize(tm, "[\"a\"]"));
+        tm.put("b", db.deserialize(tm, "[\"b\"]"));
+        tm.commit();
+        reopen();
+        tm.put("a", db.deserialize(tm, "[\"new a\"]"));
+        tm.commit();
+        reopen();
+        Path tableDir = dbDir.toPath().resolve("table");
+        assertEquals(Arrays.asList("1/6\t2\t1", "2/6\t1\t1"),
+                Files.readAllLines(tableDir.resolve("manifest.tsv"), StandardCharsets.UTF_8));
+        assertFalse(Files.exists(tableDir.resolve("1.dir").resolve("6.1.dat")));
+        assertFalse(Files.exists(tableDir.resolve("1.dir").resolve("6.1.bloom")));
+    }
+
+    @Test
+    public void filesOfInterruptedCheckpointAreIgnored() throws Exception {
+        tm.put("a", db.deserialize(tm, "[\"a\"]"));
+        tm.commit();
+        db.close();
+        // Checkpoint crashed after writing the next generation of the shard, but before publishing the manifest.
+        Path shardDir = dbDir.toPath().resolve("table").resolve("1.dir");
+        Files.write(shardDir.resolve("6.2.dat"), new byte[] {1, 2, 3});
+        Files.write(shardDir.resolve("6.2.dat.tmp"), new byte[] {1, 2, 3});
+        db = new DbTableProvider(dbDir.toPath());
+        tm = (DbTable) db.getTable("table");
+        assertEquals(1, tm.size());
+        assertEquals("[\"a\"]", db.serialize(tm, tm.get("a")));
+        tm.put("a", db.deserialize(tm, "[\"new a\"]"));
+        tm.commit();
+        reopen();
+        assertEquals("[\"new a\"]", db.serialize(tm, tm.get("a")));
+        assertFalse(Files.exists(shardDir.resolve("6.1.dat")));
+    }
+
+    @Test
+    public void concurrentCommitsAreAllDurable() throws Exception {
+        int threadCount = 16;
+        int[] committed = new int[threadCount];
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < threadCount; ++t) {
+            int threadNum = t;
+            threads.add(new Thread(() -> {
+                for (int i = 0; i < 20; ++i) {
+                    try {
+                        tm.put("t" + threadNum + "k" + i, db.deserialize(tm, "[\"v" + i + "\"]"));
+                    } catch (ParseException e) {
+                        throw new RuntimeException(e);
+                    }
+                    committed[threadNum] += tm.commit();
+                }
+            }));
+        }
+        threads.forEach(Thread::start);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        reopen();
+        assertEquals(threadCount * 20, tm.size());
+        for (int t = 0; t < threadCount; ++t) {
+            assertEquals(20, committed[t]);
+            assertEquals("[\"v19\"]", db.serialize(tm, tm.get("t" + t + "k19")));
+        }
+    }
+
+    @Test
+    public void expiredRowsAreNotSeen() throws Exception {
+        // Clock is an hour ahead, so rows don't expire after reopening, when the table uses the system clock.
+        AtomicLong now = new AtomicLong(System.currentTimeMillis() + 3600 * 1000);
+        DbTable sessions = db.createTable("sessions", signature,
+                new TableOptions().setRowTtl(300).setClock(now::get));
+        sessions.put("a", db.deserialize(sessions, "[\"first\"]"));
+        sessions.put("b", db.deserialize(sessions, "[\"second\"]"));
+        sessions.commit();
+        now.addAndGet(299);
+        assertEquals("first", sessions.get("a").getStringAt(0));
+        assertEquals(2, sessions.list().size());
+        now.addAndGet(1);
+        assertNull(sessions.get("a"));
+        assertNull(sessions.get("b", 0));
+        assertTrue(sessions.list().isEmpty());
+        assertFalse(sessions.scanKeys(null, null, DbTable.NO_LIMIT).hasNext());
+        assertNull(sessions.put("a", db.deserialize(sessions, "[\"again\"]")));
+        sessions.commit();
+        assertEquals("again", sessions.get("a").getStringAt(0));
+        assertEquals(Collections.singletonList("a"), sessions.list());
+
+        db.close();
+        db = new DbTableProvider(dbDir.toPath());
+        assertEquals(300, TableLoaderDumper.loadOptions(dbDir.toPath().resolve("sessions")).getRowTtlMs());
+        assertEquals("again", db.getTable("sessions").get("a").getStringAt(0));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void expiringJsonRowsAreRejected() {
+        new TableOptions().setRowTtl(1000).setRowFormat(TableOptions.RowFormat.JSON).validate();
+    }
+
+    @Test
+    public void projectedGetReturnsRequestedColumns() throws Exception {
+        DbTable wide = db.createTable("wide", Arrays.asList(String.class, Integer.class, String.class, Boolean.class));
+        wide.put("k", db.deserialize(wide, "[\"a\", 1, \"b\", true]"));
+        assertEquals("b", wide.get("k", 2, 0).getStringAt(0));
+        wide.commit();
+        Storeable row = wide.get("k", 3, 1);
+        assertEquals(true, row.getBooleanAt(0));
+        assertEquals(new Integer(1), row.getIntAt(1));
+        wide.remove("k");
+        assertNull(wide.get("k", 0));
+        assertNull(wide.get("absent", 0));
+    }
+
+    @Test
+    public void indexFindsCommittedRowsByColumnValue() throws Exception {
+        DbTable people = db.createTable("people", Arrays.asList(String.class, Integer.class));
+        people.put("alice", db.deserialize(people, "[\"Alice\", 30]"));
+        people.put("bob", db.deserialize(people, "[\"Bob\", 25]"));
+        people.put("carol", db.deserialize(people, "[\"Carol\", null]"));
+        people.commit();
+        Table byAge = db.createIndex("people", 1);
+        assertNull(db.createIndex("people", 1));
+        assertEquals("Bob", byAge.get(" 025").getStringAt(0));
+        assertEquals(Arrays.asList("25", "30"), byAge.list());
+
+        people.put("bob", db.deserialize(people, "[\"Bob\", 30]"));
+        people.put("dave", db.deserialize(people, "[\"Dave\", 40]"));
+        assertNull(byAge.get("40"));
+        people.commit();
+        people.remove("alice");
+        people.commit();
+        assertNull(byAge.get("25"));
+        assertEquals("Bob", byAge.get("30").getStringAt(0));
+        assertEquals(2, byAge.size());
+
+        db.close();
+        db = new DbTableProvider(dbDir.toPath());
+        byAge = db.getIndex("people", 1);
+        assertEquals("Dave", byAge.get("40").getStringAt(0));
+        assertEquals(Arrays.asList("30", "40"), byAge.list());
+        assertNull(db.getIndex("people", 0));
+        Table byName = db.createIndex("people", 0);
+        assertEquals("Carol", byName.get("\"Carol\"").getStringAt(0));
+        assertEquals(Arrays.asList("\"Bob\"", "\"Carol\"", "\"Dave\""), byName.list());
+        try {
+            byName.get("Carol");
+            fail();
+        } catch (IllegalArgumentException e) {
+            // Strings are quoted as in rows.
+        }
+    }
+
+    @Test
+    public void indexKeysAreSerializedAsInRows() throws Exception {
+        DbTable prices = db.createTable("prices", Arrays.asList(String.class, Double.class));
+        prices.put("tea", db.deserialize(prices, "[\"tea\", 1.50]"));
+        prices.commit();
+        Table byPrice = db.createIndex("prices", 1);
+        assertEquals(Collections.singletonList("1.5"), byPrice.list());
+        assertEquals("tea", byPrice.get(" 1.500").getStringAt(0));
+        assertEquals("[\"tea\", " + byPrice.list().get(0) + "]", db.serialize(prices, prices.get("tea")));
+    }
+
+    @Test
+    public void indexSkipsExpiredRows() throws Exception {
+        AtomicLong now = new AtomicLong(System.currentTimeMillis());
+        DbTable people = db.createTable("people", Arrays.asList(String.class, Integer.class),
+                new TableOptions().setRowTtl(1000).setClock(now::get));
+        Table byAge = db.createIndex("people", 1);
+        people.put("alice", db.deserialize(people, "[\"Alice\", 30]"));
+        people.put("bob", db.deserialize(people, "[\"Bob\", 25]"));
+        people.commit();
+        now.addAndGet(500);
+        people.put("carol", db.deserialize(people, "[\"Carol\", 30]"));
+        people.commit();
+        now.addAndGet(500);
+        // Purge may not have run yet, rows of alice and bob are still in the index.
+        assertEquals("Carol", byAge.get("30").getStringAt(0));
+        assertNull(byAge.get("25"));
+        assertEquals(Collections.singletonList("30"), byAge.list());
+        assertEquals(1, byAge.size());
+    }
+
+    private void runInOtherThread(final Runnable action) throws Exception {
+        Thread thread = new Thread(action);
+        thread.start();
+        thread.join();
+    }
+
+    @Test
+    public void transactionReadsSnapshotTakenAtItsStart() throws Exception {
+        addKeysToTable(tm);
+        tm.commit();
+        assertEquals("value", tm.get("key").getStringAt(0));
+        runInOtherThread(() -> {
+            try {
+                tm.put("key", db.deserialize(tm, "[\"changed\"]"));
+                tm.put("new", db.deserialize(tm, "[\"added\"]"));
+            } catch (ParseException e) {
+                throw new RuntimeException(e);
+            }
+            tm.remove("12345");
+            tm.commit();
+        });
+        assertEquals("value", tm.get("key").getStringAt(0));
+        assertNull(tm.get("new"));
+        assertNotNull(tm.remove("12345"));
+        List<String> keys = tm.list();
+        Collections.sort(keys);
+        assertEquals(Arrays.asList("key", "mazafakka"), keys);
+        tm.rollback();
+        assertEquals("changed", tm.get("key").getStringAt(0));
+        assertEquals("added", tm.get("new").getStringAt(0));
+        assertNull(tm.get("12345"));
+    }
+
+    @Test
+    public void endedReadOnlyTransactionSeesLaterCommits() throws Exception {
+        addKeysToTable(tm);
+        tm.commit();
+        assertEquals("value", tm.get("key").getStringAt(0));
+        runInOtherThread(() -> {
+            try {
+                tm.put("key", db.deserialize(tm, "[\"changed\"]"));
+            } catch (ParseException e) {
+                throw new RuntimeException(e);
+            }
+            tm.commit();
+        });
+        assertEquals("value", tm.get("key").getStringAt(0));
+        tm.endTransaction();
+        assertEquals("changed", tm.get("key").getStringAt(0));
+        tm.remove("key");
+        try {
+            tm.endTransaction();
+            fail();
+        } catch (IllegalStateException e) {
+            assertEquals(1, tm.getNumberOfUncommittedChanges());
+        }
+    }
+
+    @Test
+    public void scanReadsSnapshotAcrossBatches() throws Exception {
+        for (int i = 0; i < 1000; ++i) {
+            tm.put(String.format("key%04d", i), db.deserialize(tm, "[\"v\"]"));
+        }
+        tm.commit();
+        Iterator<String> keys = tm.scanKeys(null, null, DbTable.NO_LIMIT);
+        assertEquals("key0000", keys.next());
+        runInOtherThread(() -> {
+            for (int i = 0; i < 1000; i += 2) {
+                tm.remove(String.format("key%04d", i));
+            }
+            try {
+                tm.put("key0500a", db.deserialize(tm, "[\"v\"]"));
+            } catch (ParseException e) {
+                throw new RuntimeException(e);
+            }
+            tm.commit();
+        });
+        for (int i = 1; i < 1000; ++i) {
+            assertEquals(String.format("key%04d", i), keys.next());
+        }
+        assertFalse(keys.hasNext());
+        tm.commit();
+        assertEquals(501, tm.list().size());
+        assertEquals("key0500a", tm.scanKeys("key0500", "key0501", DbTable.NO_LIMIT).next());
+    }
+
+    @Test
+    public void versionKeepsNoPreviousValuesWhenNobodyReadsThem() throws Exception {
+        for (int i = 0; i < 2000; ++i) {
+            tm.put("key" + i, db.deserialize(tm, "[\"v\"]"));
+            tm.commit();
+            tm.remove("key" + i);
+            tm.commit();
+        }
+        assertEquals(0, tm.size());
+        assertEquals(0, tm.getLatestVersion().getPreviousValuesCount());
+    }
+
+    @Test
+    public void closedScanReleasesVersion() throws Exception {
+        for (int i = 0; i < 10; ++i) {
+            tm.put("key" + i, db.deserialize(tm, "[\"v\"]"));
+        }
+        tm.commit();
+        ScanIterator<String> keys = tm.scanKeys(null, null, DbTable.NO_LIMIT);
+        assertEquals("key0", keys.next());
+        keys.close();
+        assertFalse(keys.hasNext());
+        tm.endTransaction();
+        for (int i = 0; i < 10; ++i) {
+            tm.remove("key" + i);
+            tm.commit();
+        }
+        assertEquals(0, tm.getLatestVersion().getPreviousValuesCount());
+    }
+
+    @Test
+    public void closedTableIsNotKeptByItsThreads() throws Exception {
+        DbTable table = DbTable.createDbTable(tempFolder.newFolder().toPath(), signature, db);
+        table.put("a", db.deserialize(table, "[\"a\"]"));
+        table.commit();
+        table.put("b", db.deserialize(table, "[\"b\"]"));
+        assertEquals("a", table.get("a").getStringAt(0));
+        table.close();
+        WeakReference<DbTable> reference = new WeakReference<>(table);
+        table = null;
+        for (int i = 0; i < 10 && reference.get() != null; ++i) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertNull(reference.get());
+    }
+
+    private void reopen() throws Exception {
+        db.close();
+        db = new DbTableProvider(dbDir.toPath());
+        tm = (DbTable) db.getTable("table");
+    }
+
     @After
     public void tearDown() throws Exception {
         db.close();
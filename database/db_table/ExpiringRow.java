@@ -0,0 +1,32 @@
+package ru.fizteh.fivt.students.dmitry_persiyanov.database.db_table;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Stored form of rows of tables with time-to-live (see TableOptions.setRowTtl()):
+ * [expiration time: long, milliseconds since the epoch][row in RowCodec form].
+ * Storage engines keep rows of such tables in this form, DbTable wraps them on commit.
+ * Times are taken from the clock of the table (see TableOptions.setClock()).
+ */
+final class ExpiringRow {
+    private static final int HEADER_SIZE = 8;
+
+    private ExpiringRow() {
+    }
+
+    static byte[] wrap(final byte[] row, long expirationTime) {
+        return ByteBuffer.allocate(HEADER_SIZE + row.length).putLong(expirationTime).put(row).array();
+    }
+
+    /**
+     * @return Row in RowCodec form.
+     */
+    static byte[] unwrap(final byte[] storedRow) {
+        return Arrays.copyOfRange(storedRow, HEADER_SIZE, storedRow.length);
+    }
+
+    static boolean isExpired(final byte[] storedRow, long now) {
+        return ByteBuffer.wrap(storedRow).getLong(0) <= now;
+    }
+}
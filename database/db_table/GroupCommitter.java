@@ -0,0 +1,131 @@
+package ru.fizteh.fivt.students.dmitry_persiyanov.database.db_table;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Coalesces diffs committed concurrently into batches. Committer which finds no batch being written
+ * becomes the leader: it writes its batch and everything other committers added to it by then with one
+ * BatchWriter call, so the table pays one log write and fsync for the whole batch. Others wait until
+ * the batch they joined is written. While a batch is written, new diffs form the next batch.
+ * It's thread-safe.
+ */
+final class GroupCommitter {
+    /**
+     * Persists merged diff of a batch. Calls never overlap.
+     */
+    interface BatchWriter {
+        void write(Map<String, byte[]> changesMap, Set<String> deletionsSet) throws IOException;
+    }
+
+    private static final class Batch {
+        // Diffs merged in the order they joined, so the later diff wins. Maps don't intersect.
+        private final Map<String, byte[]> changesMap = new HashMap<>();
+        private final Set<String> deletionsSet = new HashSet<>();
+        private int diffCount = 0;
+        private boolean written = false;
+        private IOException error;
+
+        private void add(final Map<String, byte[]> changes, final Set<String> deletions) {
+            changes.forEach((key, value) -> {
+                deletionsSet.remove(key);
+                changesMap.put(key, value);
+            });
+            deletions.forEach(key -> {
+                changesMap.remove(key);
+                deletionsSet.add(key);
+            });
+            ++diffCount;
+        }
+    }
+
+    private final BatchWriter writer;
+    private final Object lock = new Object();
+    // Batch which accepts new diffs, null if there are no waiting diffs. Guarded by lock.
+    private Batch openBatch;
+    // True while some leader writes a batch. Guarded by lock, as the counters are.
+    private boolean writing = false;
+    private long batchCount = 0;
+    private long diffCount = 0;
+
+    GroupCommitter(final BatchWriter writer) {
+        this.writer = writer;
+    }
+
+    /**
+     * Adds diff to the open batch and returns when the batch is written. The diff is copied,
+     * so the caller may clear it afterwards.
+     * @throws IOException If the batch wasn't written, then none of its diffs is committed.
+     */
+    void commit(final Map<String, byte[]> changesMap, final Set<String> deletionsSet) throws IOException {
+        Batch batch;
+        boolean leader = false;
+        boolean interrupted = false;
+        synchronized (lock) {
+            if (openBatch == null) {
+                openBatch = new Batch();
+            }
+            batch = openBatch;
+            batch.add(changesMap, deletionsSet);
+            // Diff can't be withdrawn from the batch, so the committer waits even if it's interrupted.
+            while (writing && !batch.written) {
+                try {
+                    lock.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (!batch.written) {
+                leader = true;
+                writing = true;
+                openBatch = null;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (leader) {
+            writeAsLeader(batch);
+        }
+        if (batch.error != null) {
+            throw batch.error;
+        }
+    }
+
+    long getBatchCount() {
+        synchronized (lock) {
+            return batchCount;
+        }
+    }
+
+    /**
+     * @return Number of diffs in the written batches.
+     */
+    long getDiffCount() {
+        synchronized (lock) {
+            return diffCount;
+        }
+    }
+
+    private void writeAsLeader(final Batch batch) {
+        IOException error = null;
+        try {
+            writer.write(batch.changesMap, batch.deletionsSet);
+        } catch (IOException e) {
+            error = e;
+        } catch (RuntimeException e) {
+            error = new IOException(e.getMessage(), e);
+        }
+        synchronized (lock) {
+            batch.error = error;
+            batch.written = true;
+            writing = false;
+            ++batchCount;
+            diffCount += batch.diffCount;
+            lock.notifyAll();
+        }
+    }
+}
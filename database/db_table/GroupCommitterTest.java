@@ -0,0 +1,79 @@
+package ru.fizteh.fivt.students.dmitry_persiyanov.database.db_table;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.*;
+
+public class GroupCommitterTest {
+    private final List<Map<String, byte[]>> writtenChanges = new ArrayList<>();
+    private final List<Set<String>> writtenDeletions = new ArrayList<>();
+    private final CountDownLatch firstWriteReleased = new CountDownLatch(1);
+    private final GroupCommitter committer = new GroupCommitter((changesMap, deletionsSet) -> {
+        synchronized (writtenChanges) {
+            writtenChanges.add(new HashMap<>(changesMap));
+            writtenDeletions.add(new HashSet<>(deletionsSet));
+        }
+        try {
+            firstWriteReleased.await();
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        }
+    });
+
+    private Thread startCommit(final Map<String, byte[]> changesMap, final Set<String> deletionsSet) {
+        Thread thread = new Thread(() -> {
+            try {
+                committer.commit(changesMap, deletionsSet);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        thread.start();
+        return thread;
+    }
+
+    private static void awaitWaiting(final Thread thread) throws InterruptedException {
+        while (thread.getState() != Thread.State.WAITING) {
+            Thread.sleep(1);
+        }
+    }
+
+    @Test
+    public void commitsWaitingForLeaderAreWrittenInOneBatch() throws Exception {
+        Thread leader = startCommit(Collections.singletonMap("first", new byte[] {0}), Collections.emptySet());
+        awaitWaiting(leader);
+        List<Thread> followers = new ArrayList<>();
+        for (int i = 0; i < 10; ++i) {
+            Thread follower = startCommit(Collections.singletonMap("key" + i, new byte[] {(byte) i}),
+                    Collections.emptySet());
+            awaitWaiting(follower);
+            followers.add(follower);
+        }
+        firstWriteReleased.countDown();
+        leader.join();
+        for (Thread follower : followers) {
+            follower.join();
+        }
+        assertEquals(2, committer.getBatchCount());
+        assertEquals(11, committer.getDiffCount());
+        assertEquals(10, writtenChanges.get(1).size());
+    }
+
+    @Test
+    public void laterDiffOfBatchWins() throws Exception {
+        awaitWaiting(startCommit(Collections.singletonMap("first", new byte[] {0}), Collections.emptySet()));
+        Thread put = startCommit(Collections.singletonMap("k", new byte[] {1}), Collections.singleton("d"));
+        awaitWaiting(put);
+        Thread remove = startCommit(Collections.singletonMap("d", new byte[] {2}), Collections.singleton("k"));
+        awaitWaiting(remove);
+        firstWriteReleased.countDown();
+        put.join();
+        remove.join();
+        assertEquals(Collections.singleton("d"), writtenChanges.get(1).keySet());
+        assertEquals(Collections.singleton("k"), writtenDeletions.get(1));
+    }
+}
@@ -0,0 +1,530 @@
+package ru.fizteh.fivt.students.dmitry_persiyanov.database.db_table;
+
+import ru.fizteh.fivt.students.dmitry_persiyanov.database.exceptions.TableCorruptedException;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+
+/**
+ * Log-structured merge engine. Commits are appended to the commit log and applied to the memtable
+ * (sorted map in memory). When the memtable grows over memtableFlushSize, it's written to a new immutable
+ * segment (see LsmSegment) and the log is emptied, so the cost of a commit doesn't depend on the size of the table,
+ * and the table doesn't have to fit in memory.
+ * Lookups go from the memtable to the newest segment and further to the oldest one.
+ * Compactor merges runs of the newest segments in background, so their number stays logarithmic.
+ * Segments live in SEGMENTS_DIRNAME directory of the table, every segment is named
+ * [generation of its oldest flush]-[generation of its newest flush].seg.
+ */
+final class LsmEngine implements StorageEngine {
+    static final String SEGMENTS_DIRNAME = "segments";
+    // Marks deleted keys in the memtable and in segments. Compared by reference.
+    static final byte[] TOMBSTONE = new byte[0];
+
+    private static final String SEGMENT_EXTENSION = ".seg";
+    private static final long DEFAULT_MEMTABLE_FLUSH_SIZE = 4 * 1024 * 1024;
+    // Approximate memory taken by an entry of TreeMap besides its key and value.
+    private static final int MEMTABLE_ENTRY_OVERHEAD = 64;
+    private static final int MIN_SEGMENTS_TO_COMPACT = 4;
+    // Older segment joins compacted run if it's not bigger than the run multiplied by this factor.
+    private static final int COMPACTION_SIZE_RATIO = 2;
+
+    private final Path tableDir;
+    private final Path segmentsDir;
+    private final long memtableFlushSize;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock(true);
+    // Serializes commits and flushes. Commit holds it from prepareCommit() until publish(),
+    // so the memtable changes only under both locks. It's taken before lock.
+    private final ReentrantLock commitLock = new ReentrantLock();
+    // Guarded by lock.
+    private TreeMap<String, byte[]> memtable = new TreeMap<>();
+    private long memtableSize = 0;
+    // From the newest to the oldest. Guarded by lock, the list is replaced and never changed.
+    private List<SegmentFile> segments;
+    private long nextGeneration;
+    private final CommitLog commitLog;
+    private final ExecutorService compactor;
+    private boolean compactionScheduled = false;
+
+    private static final class SegmentFile {
+        final LsmSegment segment;
+        final long firstGeneration;
+        final long lastGeneration;
+
+        SegmentFile(final LsmSegment segment, long firstGeneration, long lastGeneration) {
+            this.segment = segment;
+            this.firstGeneration = firstGeneration;
+            this.lastGeneration = lastGeneration;
+        }
+
+        boolean covers(final SegmentFile other) {
+            return this != other && firstGeneration <= other.firstGeneration
+                    && other.lastGeneration <= lastGeneration;
+        }
+    }
+
+    LsmEngine(final Path tableDir, final TableOptions options) throws IOException {
+        this(tableDir, DEFAULT_MEMTABLE_FLUSH_SIZE, options);
+    }
+
+    LsmEngine(final Path tableDir, long memtableFlushSize) throws IOException {
+        this(tableDir, memtableFlushSize, new TableOptions());
+    }
+
+    /**
+     * @param tableDir
+     * @param memtableFlushSize Approximate size of memtable in bytes when it's written to a segment.
+     * @param options Options of the table, the engine uses only durability.
+     */
+    LsmEngine(final Path tableDir, long memtableFlushSize, final TableOptions options) throws IOException {
+        this.tableDir = tableDir;
+        this.memtableFlushSize = memtableFlushSize;
+        this.segmentsDir = tableDir.resolve(SEGMENTS_DIRNAME);
+        if (!Files.exists(segmentsDir)) {
+            Files.createDirectory(segmentsDir);
+        }
+        segments = openSegments();
+        nextGeneration = segments.isEmpty() ? 0 : segments.get(0).lastGeneration + 1;
+        long validLogLength = CommitLog.replay(tableDir, this::applyToMemtable);
+        commitLog = new CommitLog(tableDir, validLogLength, options.getDurability(), options.getSyncIntervalMs());
+        compactor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "compactor[" + tableDir.toString() + "]");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduleCompactionIfNeeded();
+    }
+
+    @Override
+    public long getResidentBytes() {
+        lock.readLock().lock();
+        try {
+            return memtableSize;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public byte[] get(final String key) {
+        lock.readLock().lock();
+        try {
+            byte[] value = memtable.get(key);
+            for (int i = 0; value == null && i < segments.size(); ++i) {
+                value = segments.get(i).segment.get(key);
+            }
+            return value == TOMBSTONE ? null : value;
+        } catch (IOException e) {
+            throw new RuntimeException("can't read table \'" + tableDir.toString() + "\', [" + e.getMessage() + "]");
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean containsKey(final String key) {
+        return get(key) != null;
+    }
+
+    @Override
+    public List<String> keys() {
+        List<String> keys = new ArrayList<>();
+        forEachLiveKey(keys::add);
+        return keys;
+    }
+
+    @Override
+    public int size() {
+        int[] size = {0};
+        forEachLiveKey(key -> ++size[0]);
+        return size[0];
+    }
+
+    // Segments have only sparse indexes, lookups of absent keys read a block of every segment.
+    @Override
+    public BloomFilter.Stats getBloomFilterStats() {
+        return new BloomFilter.Stats(0, 0, 0, 0, 0);
+    }
+
+    @Override
+    public List<Map.Entry<String, byte[]>> scan(final String from, boolean fromInclusive, final String to, int limit) {
+        lock.readLock().lock();
+        try {
+            List<Map.Entry<String, byte[]>> entries = new ArrayList<>();
+            Iterator<Map.Entry<String, byte[]>> it = liveEntriesFrom(from);
+            while (it.hasNext() && entries.size() < limit) {
+                Map.Entry<String, byte[]> entry = it.next();
+                if (to != null && entry.getKey().compareTo(to) >= 0) {
+                    break;
+                } else if (fromInclusive || !entry.getKey().equals(from)) {
+                    entries.add(entry);
+                }
+            }
+            return entries;
+        } catch (UncheckedIOException e) {
+            throw new RuntimeException("can't read table \'" + tableDir.toString() + "\', [" + e.getMessage() + "]");
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public PreparedCommit prepareCommit(final Map<String, byte[]> changesMap,
+                                        final Set<String> deletionsSet) throws IOException {
+        commitLock.lock();
+        try {
+            // Memtable filled by the previous commits is flushed before the log gets records of the next one.
+            if (memtableSize >= memtableFlushSize) {
+                flushMemtable();
+            }
+            commitLog.append(changesMap, deletionsSet);
+        } catch (IOException | RuntimeException e) {
+            commitLock.unlock();
+            throw e;
+        }
+        return () -> {
+            lock.writeLock().lock();
+            try {
+                applyToMemtable(changesMap, deletionsSet);
+            } finally {
+                lock.writeLock().unlock();
+                commitLock.unlock();
+            }
+        };
+    }
+
+    @Override
+    public void close() throws IOException {
+        // Under the lock, so that finished compaction doesn't schedule the next one in the meantime.
+        lock.writeLock().lock();
+        try {
+            compactor.shutdown();
+        } finally {
+            lock.writeLock().unlock();
+        }
+        try {
+            compactor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            throw new IOException("interrupted while waiting for compactor", e);
+        }
+        commitLock.lock();
+        lock.writeLock().lock();
+        try {
+            if (!memtable.isEmpty()) {
+                flushMemtable();
+            }
+            commitLog.close();
+            for (SegmentFile segmentFile : segments) {
+                segmentFile.segment.close();
+            }
+        } finally {
+            lock.writeLock().unlock();
+            commitLock.unlock();
+        }
+    }
+
+    private void applyToMemtable(final Map<String, byte[]> changesMap, final Set<String> deletionsSet) {
+        changesMap.forEach((key, value) -> {
+            memtable.put(key, value);
+            memtableSize += MEMTABLE_ENTRY_OVERHEAD + 2 * key.length() + value.length;
+        });
+        deletionsSet.forEach(key -> {
+            memtable.put(key, TOMBSTONE);
+            memtableSize += MEMTABLE_ENTRY_OVERHEAD + 2 * key.length();
+        });
+    }
+
+    /**
+     * Writes the memtable to a new segment while readers keep reading the memtable, then swaps them.
+     * Must be called under commitLock, so the memtable doesn't change in the meantime.
+     */
+    private void flushMemtable() throws IOException {
+        long generation = nextGeneration++;
+        Path path = makeSegmentPath(generation, generation);
+        LsmSegment.write(path, memtable.entrySet().iterator());
+        SegmentFile flushed = new SegmentFile(new LsmSegment(path), generation, generation);
+        lock.writeLock().lock();
+        try {
+            List<SegmentFile> newSegments = new ArrayList<>();
+            newSegments.add(flushed);
+            newSegments.addAll(segments);
+            segments = newSegments;
+            memtable = new TreeMap<>();
+            memtableSize = 0;
+            scheduleCompactionIfNeeded();
+        } finally {
+            lock.writeLock().unlock();
+        }
+        commitLog.truncate();
+    }
+
+    // Must be called under lock's write lock or before the engine is shared.
+    private void scheduleCompactionIfNeeded() {
+        if (!compactionScheduled && segments.size() >= MIN_SEGMENTS_TO_COMPACT && !compactor.isShutdown()) {
+            compactionScheduled = true;
+            compactor.execute(this::compact);
+        }
+    }
+
+    /**
+     * Merges the newest MIN_SEGMENTS_TO_COMPACT segments and older segments which are not much bigger than
+     * the merged ones. Segments don't change, so they are merged without lock; new segments
+     * flushed in the meantime are newer than the merged ones and stay in front of them.
+     */
+    private void compact() {
+        try {
+            List<SegmentFile> run;
+            boolean runHasOldest;
+            lock.readLock().lock();
+            try {
+                List<SegmentFile> current = segments;
+                long runSize = 0;
+                int runLength = 0;
+                while (runLength < current.size()) {
+                    long segmentSize = current.get(runLength).segment.getFileSize();
+                    if (runLength >= MIN_SEGMENTS_TO_COMPACT && segmentSize > COMPACTION_SIZE_RATIO * runSize) {
+                        break;
+                    }
+                    runSize += segmentSize;
+                    ++runLength;
+                }
+                run = new ArrayList<>(current.subList(0, runLength));
+                runHasOldest = runLength == current.size();
+            } finally {
+                lock.readLock().unlock();
+            }
+            long firstGeneration = run.get(run.size() - 1).firstGeneration;
+            long lastGeneration = run.get(0).lastGeneration;
+            Path path = makeSegmentPath(firstGeneration, lastGeneration);
+            List<Iterator<Map.Entry<String, byte[]>>> sources = new ArrayList<>();
+            for (SegmentFile segmentFile : run) {
+                sources.add(segmentFile.segment.iterator());
+            }
+            Iterator<Map.Entry<String, byte[]>> merged = new MergingIterator(sources);
+            if (runHasOldest) {
+                // Nothing older can be shadowed by deleted keys, so they are dropped.
+                merged = new LiveEntriesIterator(merged);
+            }
+            LsmSegment.write(path, merged);
+            SegmentFile compacted = new SegmentFile(new LsmSegment(path), firstGeneration, lastGeneration);
+            lock.writeLock().lock();
+            try {
+                List<SegmentFile> newSegments = new ArrayList<>();
+                for (SegmentFile segmentFile : segments) {
+                    if (run.contains(segmentFile)) {
+                        if (segmentFile == run.get(0)) {
+                            newSegments.add(compacted);
+                        }
+                    } else {
+                        newSegments.add(segmentFile);
+                    }
+                }
+                segments = newSegments;
+                for (SegmentFile segmentFile : run) {
+                    segmentFile.segment.close();
+                    Files.delete(segmentFile.segment.getPath());
+                }
+                compactionScheduled = false;
+                scheduleCompactionIfNeeded();
+            } finally {
+                lock.writeLock().unlock();
+            }
+        } catch (IOException | RuntimeException e) {
+            // Segments are still consistent, compaction will be retried after the next flush.
+            lock.writeLock().lock();
+            compactionScheduled = false;
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void forEachLiveKey(final Consumer<String> consumer) {
+        lock.readLock().lock();
+        try {
+            Iterator<Map.Entry<String, byte[]>> entries = liveEntriesFrom(null);
+            while (entries.hasNext()) {
+                consumer.accept(entries.next().getKey());
+            }
+        } catch (UncheckedIOException e) {
+            throw new RuntimeException("can't read table \'" + tableDir.toString() + "\', [" + e.getMessage() + "]");
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Must be called under lock's read lock, the iterator mustn't be used after it's released.
+     * @param from The first key, null means the first key of the table.
+     * @return Iterator over live entries of the memtable and all segments in key order.
+     */
+    private Iterator<Map.Entry<String, byte[]>> liveEntriesFrom(final String from) {
+        List<Iterator<Map.Entry<String, byte[]>>> sources = new ArrayList<>();
+        sources.add((from == null ? memtable : memtable.tailMap(from, true)).entrySet().iterator());
+        for (SegmentFile segmentFile : segments) {
+            sources.add(segmentFile.segment.iterator(from));
+        }
+        return new LiveEntriesIterator(new MergingIterator(sources));
+    }
+
+    /**
+     * Opens segments of the table. Segments which are covered by a compacted segment (it happens if the engine
+     * was stopped between writing compacted segment and deleting its sources) and temporary files are deleted.
+     */
+    private List<SegmentFile> openSegments() throws IOException {
+        List<SegmentFile> found = new ArrayList<>();
+        List<Path> tempFiles = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(segmentsDir)) {
+            for (Path path : stream) {
+                if (LsmSegment.isTempFile(path)) {
+                    tempFiles.add(path);
+                } else {
+                    long[] generations = parseSegmentName(path);
+                    found.add(new SegmentFile(new LsmSegment(path), generations[0], generations[1]));
+                }
+            }
+        }
+        for (Path tempFile : tempFiles) {
+            Files.delete(tempFile);
+        }
+        List<SegmentFile> live = new ArrayList<>();
+        for (SegmentFile segmentFile : found) {
+            boolean covered = false;
+            for (SegmentFile other : found) {
+                covered |= other.covers(segmentFile);
+            }
+            if (covered) {
+                segmentFile.segment.close();
+                Files.delete(segmentFile.segment.getPath());
+            } else {
+                live.add(segmentFile);
+            }
+        }
+        live.sort((a, b) -> Long.compare(b.lastGeneration, a.lastGeneration));
+        return live;
+    }
+
+    private Path makeSegmentPath(long firstGeneration, long lastGeneration) {
+        return segmentsDir.resolve(firstGeneration + "-" + lastGeneration + SEGMENT_EXTENSION);
+    }
+
+    private long[] parseSegmentName(final Path path) {
+        String name = path.getFileName().toString();
+        try {
+            if (!name.endsWith(SEGMENT_EXTENSION)) {
+                throw new NumberFormatException(name);
+            }
+            String[] generations = name.substring(0, name.length() - SEGMENT_EXTENSION.length()).split("-");
+            if (generations.length != 2) {
+                throw new NumberFormatException(name);
+            }
+            return new long[] {Long.parseLong(generations[0]), Long.parseLong(generations[1])};
+        } catch (NumberFormatException e) {
+            throw new TableCorruptedException(path.toString(), e);
+        }
+    }
+
+    /**
+     * Merges sorted sources into one sorted sequence. If a key is in several sources,
+     * the entry of the first (the newest) source is taken.
+     */
+    private static final class MergingIterator implements Iterator<Map.Entry<String, byte[]>> {
+        private final List<Iterator<Map.Entry<String, byte[]>>> sources;
+        // Heads of sources ordered by key and then by number of the source.
+        private final PriorityQueue<Head> heads = new PriorityQueue<>();
+
+        private static final class Head implements Comparable<Head> {
+            final Map.Entry<String, byte[]> entry;
+            final int sourceNum;
+
+            Head(final Map.Entry<String, byte[]> entry, int sourceNum) {
+                this.entry = entry;
+                this.sourceNum = sourceNum;
+            }
+
+            @Override
+            public int compareTo(final Head other) {
+                int keysComparison = entry.getKey().compareTo(other.entry.getKey());
+                return keysComparison != 0 ? keysComparison : Integer.compare(sourceNum, other.sourceNum);
+            }
+        }
+
+        MergingIterator(final List<Iterator<Map.Entry<String, byte[]>>> sources) {
+            this.sources = sources;
+            for (int i = 0; i < sources.size(); ++i) {
+                advance(i);
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !heads.isEmpty();
+        }
+
+        @Override
+        public Map.Entry<String, byte[]> next() {
+            Head head = heads.poll();
+            if (head == null) {
+                throw new NoSuchElementException();
+            }
+            advance(head.sourceNum);
+            // Older versions of the key are skipped.
+            while (!heads.isEmpty() && heads.peek().entry.getKey().equals(head.entry.getKey())) {
+                advance(heads.poll().sourceNum);
+            }
+            return head.entry;
+        }
+
+        private void advance(int sourceNum) {
+            if (sources.get(sourceNum).hasNext()) {
+                heads.add(new Head(sources.get(sourceNum).next(), sourceNum));
+            }
+        }
+    }
+
+    /**
+     * Skips entries of deleted keys.
+     */
+    private static final class LiveEntriesIterator implements Iterator<Map.Entry<String, byte[]>> {
+        private final Iterator<Map.Entry<String, byte[]>> entries;
+        private Map.Entry<String, byte[]> nextEntry;
+
+        LiveEntriesIterator(final Iterator<Map.Entry<String, byte[]>> entries) {
+            this.entries = entries;
+            findNext();
+        }
+
+        @Override
+        public boolean hasNext() {
+            return nextEntry != null;
+        }
+
+        @Override
+        public Map.Entry<String, byte[]> next() {
+            if (nextEntry == null) {
+                throw new NoSuchElementException();
+            }
+            Map.Entry<String, byte[]> entry = nextEntry;
+            findNext();
+            return entry;
+        }
+
+        private void findNext() {
+            nextEntry = null;
+            while (nextEntry == null && entries.hasNext()) {
+                Map.Entry<String, byte[]> entry = entries.next();
+                if (entry.getValue() != TOMBSTONE) {
+                    nextEntry = entry;
+                }
+            }
+        }
+    }
+}
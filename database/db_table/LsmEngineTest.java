@@ -0,0 +1,129 @@
+package ru.fizteh.fivt.students.dmitry_persiyanov.database.db_table;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class LsmEngineTest {
+    // Memtable is flushed every few commits.
+    private static final long FLUSH_SIZE = 4096;
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+    private Path tableDir;
+    private LsmEngine engine;
+
+    @Before
+    public void setUp() throws Exception {
+        tableDir = tempFolder.newFolder().toPath();
+        engine = new LsmEngine(tableDir, FLUSH_SIZE);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        engine.close();
+    }
+
+    private void put(final String key, final String value) throws Exception {
+        engine.commit(Collections.singletonMap(key, value.getBytes("UTF-8")), Collections.emptySet());
+    }
+
+    private void remove(final String key) throws Exception {
+        engine.commit(Collections.emptyMap(), Collections.singleton(key));
+    }
+
+    private String get(final String key) throws Exception {
+        byte[] value = engine.get(key);
+        return value == null ? null : new String(value, "UTF-8");
+    }
+
+    private long segmentsCount() throws Exception {
+        return Files.list(tableDir.resolve(LsmEngine.SEGMENTS_DIRNAME)).count();
+    }
+
+    @Test
+    public void preparedCommitIsInvisibleUntilPublished() throws Exception {
+        engine.close();
+        // Every commit fills the memtable.
+        engine = new LsmEngine(tableDir, 1);
+        put("key1", "old");
+        put("key2", "old");
+        long segmentsBefore = segmentsCount();
+        StorageEngine.PreparedCommit preparedCommit = engine.prepareCommit(
+                Collections.singletonMap("key1", "new".getBytes("UTF-8")), Collections.singleton("key2"));
+        // Filled memtable was flushed by prepareCommit(), readers still see it.
+        assertTrue(segmentsCount() > segmentsBefore);
+        assertEquals("old", get("key1"));
+        assertEquals("old", get("key2"));
+        preparedCommit.publish();
+        assertEquals("new", get("key1"));
+        assertNull(get("key2"));
+    }
+
+    @Test
+    public void newerValuesShadowOlderSegments() throws Exception {
+        Map<String, String> expected = new HashMap<>();
+        Random random = new Random(7);
+        for (int i = 0; i < 5000; ++i) {
+            String key = "key" + random.nextInt(500);
+            if (random.nextInt(4) == 0) {
+                remove(key);
+                expected.remove(key);
+            } else {
+                String value = "value" + i;
+                put(key, value);
+                expected.put(key, value);
+            }
+        }
+        for (int i = 0; i < 500; ++i) {
+            assertEquals(expected.get("key" + i), get("key" + i));
+        }
+        assertEquals(expected.size(), engine.size());
+        assertEquals(expected.keySet(), new HashSet<>(engine.keys()));
+    }
+
+    @Test
+    public void tableIsReadAfterReopen() throws Exception {
+        for (int i = 0; i < 1000; ++i) {
+            put("key" + i, "value" + i);
+        }
+        remove("key0");
+        engine.close();
+        engine = new LsmEngine(tableDir, FLUSH_SIZE);
+        assertNull(get("key0"));
+        assertEquals("value999", get("key999"));
+        assertEquals(999, engine.size());
+    }
+
+    @Test
+    public void uncheckpointedCommitsAreReplayed() throws Exception {
+        put("key", "value");
+        // Engine is abandoned without close(), as if the process died. Its commit log is still there.
+        LsmEngine reopened = new LsmEngine(tableDir, FLUSH_SIZE);
+        try {
+            assertArrayEquals("value".getBytes("UTF-8"), reopened.get("key"));
+        } finally {
+            reopened.close();
+        }
+    }
+
+    @Test
+    public void compactionKeepsSegmentsCountSmall() throws Exception {
+        for (int i = 0; i < 20000; ++i) {
+            put("key" + (i % 3000), "value" + i);
+        }
+        engine.close();
+        engine = new LsmEngine(tableDir, FLUSH_SIZE);
+        assertTrue("segments: " + segmentsCount(), segmentsCount() < 20);
+        assertEquals(3000, engine.size());
+        assertEquals("value19999", get("key" + (19999 % 3000)));
+    }
+}
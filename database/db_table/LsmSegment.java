@@ -0,0 +1,250 @@
+package ru.fizteh.fivt.students.dmitry_persiyanov.database.db_table;
+
+import ru.fizteh.fivt.students.dmitry_persiyanov.database.exceptions.TableCorruptedException;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * Immutable sorted file of LsmEngine.
+ * File format: entries sorted by key: ([key length: int][value length: int, -1 if the key is deleted][key][value])*,
+ * sparse index with every INDEX_INTERVAL-th entry: ([key length: int][key][offset of the entry: long])*,
+ * footer: [offset of the index: long][index entries count: int][entries count: int][magic: int].
+ * Keys are in UTF-8. Only the sparse index is kept in memory, lookup reads at most INDEX_INTERVAL entries.
+ */
+final class LsmSegment implements Closeable {
+    private static final Charset CHARSET = Charset.forName("UTF-8");
+    private static final int INDEX_INTERVAL = 16;
+    private static final int FOOTER_SIZE = 20;
+    private static final int MAGIC = 0x4c534d31;
+    private static final int DELETED_VALUE_LENGTH = -1;
+    private static final String TEMP_EXTENSION = ".tmp";
+
+    private final Path path;
+    private final FileChannel channel;
+    private final String[] indexKeys;
+    private final long[] indexOffsets;
+    private final long dataEnd;
+
+    /**
+     * Writes segment atomically: the file appears under its name only when it's complete and forced to the disk.
+     * @param path
+     * @param entries Entries sorted by key. Value LsmEngine.TOMBSTONE means that the key is deleted.
+     */
+    static void write(final Path path, final Iterator<Map.Entry<String, byte[]>> entries) throws IOException {
+        Path tempPath = path.resolveSibling(path.getFileName().toString() + TEMP_EXTENSION);
+        List<byte[]> indexKeys = new ArrayList<>();
+        List<Long> indexOffsets = new ArrayList<>();
+        int entriesCount = 0;
+        try (FileOutputStream fileOut = new FileOutputStream(tempPath.toFile());
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut))) {
+            while (entries.hasNext()) {
+                Map.Entry<String, byte[]> entry = entries.next();
+                byte[] keyBytes = entry.getKey().getBytes(CHARSET);
+                if (entriesCount % INDEX_INTERVAL == 0) {
+                    indexKeys.add(keyBytes);
+                    indexOffsets.add((long) out.size());
+                }
+                boolean deleted = entry.getValue() == LsmEngine.TOMBSTONE;
+                out.writeInt(keyBytes.length);
+                out.writeInt(deleted ? DELETED_VALUE_LENGTH : entry.getValue().length);
+                out.write(keyBytes);
+                if (!deleted) {
+                    out.write(entry.getValue());
+                }
+                ++entriesCount;
+            }
+            // DataOutputStream counts written bytes in int, so segments are limited by 2 GB.
+            long indexOffset = out.size();
+            for (int i = 0; i < indexKeys.size(); ++i) {
+                out.writeInt(indexKeys.get(i).length);
+                out.write(indexKeys.get(i));
+                out.writeLong(indexOffsets.get(i));
+            }
+            out.writeLong(indexOffset);
+            out.writeInt(indexKeys.size());
+            out.writeInt(entriesCount);
+            out.writeInt(MAGIC);
+            out.flush();
+            fileOut.getChannel().force(false);
+        }
+        Files.move(tempPath, path, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    static boolean isTempFile(final Path path) {
+        return path.getFileName().toString().endsWith(TEMP_EXTENSION);
+    }
+
+    LsmSegment(final Path path) throws IOException {
+        this.path = path;
+        channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            long fileSize = channel.size();
+            if (fileSize < FOOTER_SIZE) {
+                throw new TableCorruptedException(path.toString());
+            }
+            ByteBuffer footer = readFully(fileSize - FOOTER_SIZE, FOOTER_SIZE);
+            dataEnd = footer.getLong();
+            int indexCount = footer.getInt();
+            int entriesCount = footer.getInt();
+            if (footer.getInt() != MAGIC || dataEnd < 0 || dataEnd > fileSize - FOOTER_SIZE || indexCount < 0
+                    || entriesCount < indexCount) {
+                throw new TableCorruptedException(path.toString());
+            }
+            ByteBuffer index = readFully(dataEnd, (int) (fileSize - FOOTER_SIZE - dataEnd));
+            indexKeys = new String[indexCount];
+            indexOffsets = new long[indexCount];
+            for (int i = 0; i < indexCount; ++i) {
+                byte[] keyBytes = new byte[index.getInt()];
+                index.get(keyBytes);
+                indexKeys[i] = new String(keyBytes, CHARSET);
+                indexOffsets[i] = index.getLong();
+            }
+        } catch (RuntimeException | IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    Path getPath() {
+        return path;
+    }
+
+    long getFileSize() throws IOException {
+        return channel.size();
+    }
+
+    /**
+     * @return Value of the key, LsmEngine.TOMBSTONE if the key is deleted in this segment,
+     * null if the segment doesn't contain the key.
+     */
+    byte[] get(final String key) throws IOException {
+        int block = findBlock(key);
+        if (block < 0) {
+            return null;
+        }
+        ByteBuffer buf = readBlock(block);
+        byte[] keyBytes = key.getBytes(CHARSET);
+        while (buf.hasRemaining()) {
+            int keyLength = buf.getInt();
+            int valueLength = buf.getInt();
+            boolean keyMatches = keyLength == keyBytes.length && regionEquals(buf, keyBytes);
+            buf.position(buf.position() + keyLength);
+            if (keyMatches) {
+                if (valueLength == DELETED_VALUE_LENGTH) {
+                    return LsmEngine.TOMBSTONE;
+                }
+                byte[] value = new byte[valueLength];
+                buf.get(value);
+                return value;
+            }
+            buf.position(buf.position() + Math.max(valueLength, 0));
+        }
+        return null;
+    }
+
+    /**
+     * @return Iterator over all entries in key order.
+     */
+    Iterator<Map.Entry<String, byte[]>> iterator() {
+        return iterator(null);
+    }
+
+    /**
+     * @param from The first key of the range, null means the beginning of the segment.
+     * @return Iterator over entries with keys not less than from, in key order. It reads the file
+     * block by block, so it holds no resources and may be dropped before the end.
+     */
+    Iterator<Map.Entry<String, byte[]>> iterator(final String from) {
+        int firstBlock = from == null ? 0 : Math.max(findBlock(from), 0);
+        return new Iterator<Map.Entry<String, byte[]>>() {
+            private int nextBlock = firstBlock;
+            private Deque<Map.Entry<String, byte[]>> blockEntries = new ArrayDeque<>();
+
+            @Override
+            public boolean hasNext() {
+                while (blockEntries.isEmpty() && nextBlock < indexOffsets.length) {
+                    try {
+                        ByteBuffer buf = readBlock(nextBlock++);
+                        while (buf.hasRemaining()) {
+                            Map.Entry<String, byte[]> entry = readEntry(buf);
+                            if (from == null || entry.getKey().compareTo(from) >= 0) {
+                                blockEntries.add(entry);
+                            }
+                        }
+                    } catch (IOException e) {
+                        throw new UncheckedIOException("can't read segment " + path.toString(), e);
+                    }
+                }
+                return !blockEntries.isEmpty();
+            }
+
+            @Override
+            public Map.Entry<String, byte[]> next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return blockEntries.poll();
+            }
+        };
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * @return Number of the block which may contain the key, -1 if the key is less than all keys of the segment.
+     */
+    private int findBlock(final String key) {
+        int block = Arrays.binarySearch(indexKeys, key);
+        return block >= 0 ? block : -block - 2;
+    }
+
+    private ByteBuffer readBlock(int block) throws IOException {
+        long blockStart = indexOffsets[block];
+        long blockEnd = block + 1 < indexOffsets.length ? indexOffsets[block + 1] : dataEnd;
+        return readFully(blockStart, (int) (blockEnd - blockStart));
+    }
+
+    private static Map.Entry<String, byte[]> readEntry(ByteBuffer buf) {
+        byte[] keyBytes = new byte[buf.getInt()];
+        int valueLength = buf.getInt();
+        buf.get(keyBytes);
+        byte[] value = LsmEngine.TOMBSTONE;
+        if (valueLength != DELETED_VALUE_LENGTH) {
+            value = new byte[valueLength];
+            buf.get(value);
+        }
+        return new AbstractMap.SimpleImmutableEntry<>(new String(keyBytes, CHARSET), value);
+    }
+
+    private ByteBuffer readFully(long position, int length) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(length);
+        while (buf.hasRemaining()) {
+            if (channel.read(buf, position + buf.position()) == -1) {
+                throw new TableCorruptedException(path.toString());
+            }
+        }
+        buf.flip();
+        return buf;
+    }
+
+    private static boolean regionEquals(final ByteBuffer buf, final byte[] bytes) {
+        int start = buf.position();
+        for (int i = 0; i < bytes.length; ++i) {
+            if (buf.get(start + i) != bytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
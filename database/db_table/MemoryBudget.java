@@ -0,0 +1,109 @@
+package ru.fizteh.fivt.students.dmitry_persiyanov.database.db_table;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limit of memory taken by loaded shards of all tables of a provider. Tables report how many bytes their
+ * shards take, and when the total exceeds the limit, the evictor thread unloads the least recently used
+ * shards of all tables until the total fits. Only shards which are the same as their files are unloaded,
+ * they are read again on the next access. The limit is soft: loads don't wait for the evictor,
+ * and shards with committed changes which haven't been checkpointed yet stay in memory.
+ * It's thread-safe.
+ */
+public final class MemoryBudget implements AutoCloseable {
+    /**
+     * Table whose shards can be unloaded.
+     */
+    interface Participant {
+        /**
+         * @return Last access time (System.nanoTime()) of the least recently used shard which can be
+         * unloaded, Long.MAX_VALUE if there is no such shard.
+         */
+        long getColdestShardAccessTime();
+
+        /**
+         * Unloads the least recently used shard which can be unloaded.
+         * @return False if there is no such shard.
+         */
+        boolean evictColdestShard();
+    }
+
+    private final long limitBytes;
+    private final AtomicLong residentBytes = new AtomicLong();
+    private final List<Participant> participants = new CopyOnWriteArrayList<>();
+    private final AtomicBoolean evictionScheduled = new AtomicBoolean(false);
+    private final ExecutorService evictor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "shard evictor");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * @param limitBytes Approximate size of loaded shards of all tables.
+     */
+    public MemoryBudget(long limitBytes) {
+        if (limitBytes <= 0) {
+            throw new IllegalArgumentException("memory budget isn't positive: " + limitBytes);
+        }
+        this.limitBytes = limitBytes;
+    }
+
+    public long getLimitBytes() {
+        return limitBytes;
+    }
+
+    /**
+     * @return Approximate size of loaded shards of all tables.
+     */
+    public long getResidentBytes() {
+        return residentBytes.get();
+    }
+
+    void register(final Participant participant) {
+        participants.add(participant);
+    }
+
+    void unregister(final Participant participant) {
+        participants.remove(participant);
+    }
+
+    /**
+     * Changes the total size of loaded shards. Growth over the limit schedules eviction, it never runs
+     * on the calling thread, which may hold locks of its table.
+     */
+    void add(long bytes) {
+        if (residentBytes.addAndGet(bytes) > limitBytes && evictionScheduled.compareAndSet(false, true)) {
+            evictor.execute(this::evict);
+        }
+    }
+
+    @Override
+    public void close() {
+        evictor.shutdown();
+    }
+
+    private void evict() {
+        evictionScheduled.set(false);
+        while (residentBytes.get() > limitBytes) {
+            Participant coldest = null;
+            long coldestAccessTime = Long.MAX_VALUE;
+            for (Participant participant : participants) {
+                long accessTime = participant.getColdestShardAccessTime();
+                // nanoTime() values are compared by difference, they may overflow.
+                if (accessTime != Long.MAX_VALUE
+                        && (coldest == null || accessTime - coldestAccessTime < 0)) {
+                    coldest = participant;
+                    coldestAccessTime = accessTime;
+                }
+            }
+            if (coldest == null || !coldest.evictColdestShard()) {
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package ru.fizteh.fivt.students.dmitry_persiyanov.database.db_table;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Measures full GC pauses and live heap when committed rows are kept in heap maps or in OffHeapShardMap:
+ * 2M rows with 40-byte values spread over 256 shards, GC time is averaged over 5 full collections.
+ * Usage: OffHeapGcBenchmark heap|off-heap. The collector should be fixed, e.g. -XX:+UseParallelGC,
+ * and the heap large enough for heap maps, e.g. -Xmx1g.
+ */
+public final class OffHeapGcBenchmark {
+    private static final int ROWS_COUNT = 2000000;
+    private static final int SHARDS_COUNT = 256;
+    private static final int VALUE_SIZE = 40;
+    private static final int WARM_UP_GCS = 3;
+    private static final int MEASURED_GCS = 5;
+
+    private OffHeapGcBenchmark() {
+    }
+
+    public static void main(final String[] args) {
+        if (args.length != 1 || !(args[0].equals("heap") || args[0].equals("off-heap"))) {
+            System.err.println("Usage: OffHeapGcBenchmark heap|off-heap");
+            System.exit(1);
+        }
+        boolean offHeap = args[0].equals("off-heap");
+        List<Map<String, byte[]>> shards = new ArrayList<>();
+        for (int i = 0; i < SHARDS_COUNT; ++i) {
+            shards.add(offHeap ? new OffHeapShardMap() : new HashMap<>());
+        }
+        for (int i = 0; i < ROWS_COUNT; ++i) {
+            String key = "key" + i;
+            shards.get((key.hashCode() & Integer.MAX_VALUE) % SHARDS_COUNT).put(key, new byte[VALUE_SIZE]);
+        }
+        // Warm-up collections leave only live objects, so measured ones only trace them.
+        for (int i = 0; i < WARM_UP_GCS; ++i) {
+            System.gc();
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < MEASURED_GCS; ++i) {
+            System.gc();
+        }
+        long gcTime = System.nanoTime() - start;
+        Runtime runtime = Runtime.getRuntime();
+        System.out.printf("%s maps: %.1f ms per full GC, %d MB live heap, %d rows%n", args[0],
+                gcTime / 1e6 / MEASURED_GCS, (runtime.totalMemory() - runtime.freeMemory()) >> 20,
+                shards.stream().mapToInt(Map::size).sum());
+    }
+}
@@ -0,0 +1,376 @@
+package ru.fizteh.fivt.students.dmitry_persiyanov.database.db_table;
+
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.charset.Charset;
+import java.util.*;
+
+/**
+ * Shard of committed rows which keeps keys and values outside of the Java heap, so the garbage collector
+ * doesn't have to trace them: the map itself consists of a few objects whatever its size is.
+ * Entries are appended to a direct buffer (arena): [key length: int][value length: int][key in UTF-8][value].
+ * Index is an open addressing hash table (linear probing) in another direct buffer,
+ * every slot is [hash of the key: 32 bits][offset of the entry in the arena + 1: 32 bits], 0 is an empty slot.
+ * Overwritten and removed entries stay in the arena until it's compacted on growth.
+ * It isn't thread-safe, DbTable guards shards with its locks.
+ */
+final class OffHeapShardMap extends AbstractMap<String, byte[]> {
+    private static final Charset CHARSET = Charset.forName("UTF-8");
+    private static final int ENTRY_HEADER_SIZE = 8;
+    private static final int INITIAL_ARENA_SIZE = 4096;
+    private static final int INITIAL_INDEX_SLOTS = 64;
+    private static final long OFFSET_MASK = 0xffffffffL;
+
+    private ByteBuffer arena = ByteBuffer.allocateDirect(INITIAL_ARENA_SIZE);
+    private LongBuffer index = ByteBuffer.allocateDirect(INITIAL_INDEX_SLOTS * 8).asLongBuffer();
+    private int arenaEnd = 0;
+    // Bytes of overwritten and removed entries.
+    private int garbageSize = 0;
+    private int size = 0;
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public boolean containsKey(final Object key) {
+        return key instanceof String && findSlot(((String) key).getBytes(CHARSET)) >= 0;
+    }
+
+    @Override
+    public byte[] get(final Object key) {
+        if (!(key instanceof String)) {
+            return null;
+        }
+        int slot = findSlot(((String) key).getBytes(CHARSET));
+        return slot < 0 ? null : readValue(getOffset(index.get(slot)));
+    }
+
+    @Override
+    public byte[] put(final String key, final byte[] value) {
+        if (key == null || value == null) {
+            throw new NullPointerException();
+        }
+        byte[] keyBytes = key.getBytes(CHARSET);
+        long entrySize = ENTRY_HEADER_SIZE + (long) keyBytes.length + value.length;
+        if (arenaEnd + entrySize > arena.capacity()) {
+            growArena(entrySize);
+        }
+        int slot = findSlot(keyBytes);
+        if (slot >= 0) {
+            int oldOffset = getOffset(index.get(slot));
+            byte[] oldValue = readValue(oldOffset);
+            garbageSize += getEntrySize(oldOffset);
+            index.put(slot, makeSlot(hash(keyBytes), append(keyBytes, value)));
+            return oldValue;
+        }
+        if ((size + 1) * 4L > index.capacity() * 3L) {
+            resizeIndex(index.capacity() * 2);
+            slot = findSlot(keyBytes);
+        }
+        index.put(-slot - 1, makeSlot(hash(keyBytes), append(keyBytes, value)));
+        ++size;
+        return null;
+    }
+
+    @Override
+    public byte[] remove(final Object key) {
+        if (!(key instanceof String)) {
+            return null;
+        }
+        int slot = findSlot(((String) key).getBytes(CHARSET));
+        if (slot < 0) {
+            return null;
+        }
+        int offset = getOffset(index.get(slot));
+        byte[] oldValue = readValue(offset);
+        garbageSize += getEntrySize(offset);
+        removeSlot(slot);
+        --size;
+        return oldValue;
+    }
+
+    @Override
+    public void clear() {
+        for (int i = 0; i < index.capacity(); ++i) {
+            index.put(i, 0);
+        }
+        arenaEnd = 0;
+        garbageSize = 0;
+        size = 0;
+    }
+
+    @Override
+    public Set<Map.Entry<String, byte[]>> entrySet() {
+        return new AbstractSet<Map.Entry<String, byte[]>>() {
+            @Override
+            public int size() {
+                return size;
+            }
+
+            @Override
+            public Iterator<Map.Entry<String, byte[]>> iterator() {
+                return new SlotIterator<Map.Entry<String, byte[]>>() {
+                    @Override
+                    Map.Entry<String, byte[]> read(int offset) {
+                        return new Entry(readKey(offset), readValue(offset));
+                    }
+                };
+            }
+        };
+    }
+
+    // Values aren't copied to the heap while keys are iterated.
+    @Override
+    public Set<String> keySet() {
+        return new AbstractSet<String>() {
+            @Override
+            public int size() {
+                return size;
+            }
+
+            @Override
+            public boolean contains(final Object key) {
+                return containsKey(key);
+            }
+
+            @Override
+            public Iterator<String> iterator() {
+                return new SlotIterator<String>() {
+                    @Override
+                    String read(int offset) {
+                        return readKey(offset);
+                    }
+                };
+            }
+        };
+    }
+
+    /**
+     * Iterates over index slots. It doesn't support remove(): backward shift deletion may move
+     * an entry which has already been visited to a slot which hasn't.
+     */
+    private abstract class SlotIterator<T> implements Iterator<T> {
+        private int nextSlot = 0;
+        private int remaining = size;
+
+        @Override
+        public boolean hasNext() {
+            return remaining > 0;
+        }
+
+        @Override
+        public T next() {
+            if (remaining == 0) {
+                throw new NoSuchElementException();
+            }
+            while (index.get(nextSlot) == 0) {
+                ++nextSlot;
+            }
+            --remaining;
+            return read(getOffset(index.get(nextSlot++)));
+        }
+
+        abstract T read(int offset);
+    }
+
+    /**
+     * Implements Map.Entry itself: entries are bound to the map, so they aren't Serializable as SimpleEntry is.
+     */
+    private final class Entry implements Map.Entry<String, byte[]> {
+        private final String key;
+        private byte[] value;
+
+        Entry(final String key, final byte[] value) {
+            this.key = key;
+            this.value = value;
+        }
+
+        @Override
+        public String getKey() {
+            return key;
+        }
+
+        @Override
+        public byte[] getValue() {
+            return value;
+        }
+
+        @Override
+        public byte[] setValue(final byte[] value) {
+            // Key already has a slot, so put() only updates it and doesn't move other slots.
+            put(key, value);
+            byte[] oldValue = this.value;
+            this.value = value;
+            return oldValue;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (!(o instanceof Map.Entry)) {
+                return false;
+            }
+            Map.Entry<?, ?> other = (Map.Entry<?, ?>) o;
+            return key.equals(other.getKey()) && Objects.equals(value, other.getValue());
+        }
+
+        @Override
+        public int hashCode() {
+            return key.hashCode() ^ Objects.hashCode(value);
+        }
+
+        @Override
+        public String toString() {
+            return key + "=" + value;
+        }
+    }
+
+    /**
+     * @return Slot of the key or (-(free slot where the key would be inserted) - 1).
+     */
+    private int findSlot(final byte[] keyBytes) {
+        int hash = hash(keyBytes);
+        int mask = index.capacity() - 1;
+        for (int slot = hash & mask;; slot = (slot + 1) & mask) {
+            long slotValue = index.get(slot);
+            if (slotValue == 0) {
+                return -slot - 1;
+            }
+            if ((int) (slotValue >>> 32) == hash && keyEquals(getOffset(slotValue), keyBytes)) {
+                return slot;
+            }
+        }
+    }
+
+    // Backward shift deletion: entries of the probe sequence after the removed one are moved back,
+    // so lookups never meet a hole before their key.
+    private void removeSlot(int slot) {
+        int mask = index.capacity() - 1;
+        int hole = slot;
+        for (int next = (hole + 1) & mask;; next = (next + 1) & mask) {
+            long slotValue = index.get(next);
+            if (slotValue == 0) {
+                break;
+            }
+            int home = (int) (slotValue >>> 32) & mask;
+            // Entry can be moved to the hole if its home slot isn't in (hole, next].
+            boolean homeInRange = hole <= next ? (hole < home && home <= next) : (hole < home || home <= next);
+            if (!homeInRange) {
+                index.put(hole, slotValue);
+                hole = next;
+            }
+        }
+        index.put(hole, 0);
+    }
+
+    // Caller must make sure that the arena has room for the entry.
+    private int append(final byte[] keyBytes, final byte[] value) {
+        int offset = arenaEnd;
+        arena.putInt(offset, keyBytes.length);
+        arena.putInt(offset + 4, value.length);
+        arena.position(offset + ENTRY_HEADER_SIZE);
+        arena.put(keyBytes);
+        arena.put(value);
+        arenaEnd = arena.position();
+        return offset;
+    }
+
+    /**
+     * Makes room for an entry: copies live entries to a new arena, which is twice bigger
+     * unless more than a half of the old one was garbage. Entries keep their index slots,
+     * so iteration may go on after setValue().
+     */
+    private void growArena(long entrySize) {
+        long liveSize = arenaEnd - garbageSize;
+        long newCapacity = arena.capacity();
+        while (newCapacity < 2 * (liveSize + entrySize)) {
+            newCapacity *= 2;
+        }
+        if (newCapacity > Integer.MAX_VALUE) {
+            throw new IllegalStateException("off-heap shard is larger than 2 GB");
+        }
+        ByteBuffer newArena = ByteBuffer.allocateDirect((int) newCapacity);
+        for (int slot = 0; slot < index.capacity(); ++slot) {
+            long slotValue = index.get(slot);
+            if (slotValue != 0) {
+                int offset = getOffset(slotValue);
+                int entryLength = getEntrySize(offset);
+                int newOffset = newArena.position();
+                ByteBuffer entry = arena.duplicate();
+                entry.limit(offset + entryLength);
+                entry.position(offset);
+                newArena.put(entry);
+                index.put(slot, makeSlot((int) (slotValue >>> 32), newOffset));
+            }
+        }
+        arenaEnd = newArena.position();
+        arena = newArena;
+        garbageSize = 0;
+    }
+
+    private void resizeIndex(int newSlotsCount) {
+        LongBuffer newIndex = ByteBuffer.allocateDirect(newSlotsCount * 8).asLongBuffer();
+        int mask = newSlotsCount - 1;
+        for (int slot = 0; slot < index.capacity(); ++slot) {
+            long slotValue = index.get(slot);
+            if (slotValue != 0) {
+                int newSlot = (int) (slotValue >>> 32) & mask;
+                while (newIndex.get(newSlot) != 0) {
+                    newSlot = (newSlot + 1) & mask;
+                }
+                newIndex.put(newSlot, slotValue);
+            }
+        }
+        index = newIndex;
+    }
+
+    private boolean keyEquals(int offset, final byte[] keyBytes) {
+        if (arena.getInt(offset) != keyBytes.length) {
+            return false;
+        }
+        int keyOffset = offset + ENTRY_HEADER_SIZE;
+        for (int i = 0; i < keyBytes.length; ++i) {
+            if (arena.get(keyOffset + i) != keyBytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private String readKey(int offset) {
+        byte[] keyBytes = new byte[arena.getInt(offset)];
+        ByteBuffer entry = arena.duplicate();
+        entry.position(offset + ENTRY_HEADER_SIZE);
+        entry.get(keyBytes);
+        return new String(keyBytes, CHARSET);
+    }
+
+    private byte[] readValue(int offset) {
+        byte[] value = new byte[arena.getInt(offset + 4)];
+        ByteBuffer entry = arena.duplicate();
+        entry.position(offset + ENTRY_HEADER_SIZE + arena.getInt(offset));
+        entry.get(value);
+        return value;
+    }
+
+    private int getEntrySize(int offset) {
+        return ENTRY_HEADER_SIZE + arena.getInt(offset) + arena.getInt(offset + 4);
+    }
+
+    private static int getOffset(long slotValue) {
+        return (int) (slotValue & OFFSET_MASK) - 1;
+    }
+
+    private static long makeSlot(int hash, int offset) {
+        return ((long) hash << 32) | ((offset + 1) & OFFSET_MASK);
+    }
+
+    private static int hash(final byte[] keyBytes) {
+        int h = Arrays.hashCode(keyBytes);
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        return h;
+    }
+}
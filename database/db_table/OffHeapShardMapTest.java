@@ -0,0 +1,78 @@
+package ru.fizteh.fivt.students.dmitry_persiyanov.database.db_table;
+
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class OffHeapShardMapTest {
+    private static byte[] bytes(final String s) {
+        return s.getBytes();
+    }
+
+    @Test
+    public void putGetRemove() {
+        Map<String, byte[]> map = new OffHeapShardMap();
+        assertNull(map.put("key", bytes("value")));
+        assertArrayEquals(bytes("value"), map.get("key"));
+        assertArrayEquals(bytes("value"), map.put("key", bytes("new value")));
+        assertArrayEquals(bytes("new value"), map.get("key"));
+        assertTrue(map.containsKey("key"));
+        assertArrayEquals(bytes("new value"), map.remove("key"));
+        assertNull(map.get("key"));
+        assertNull(map.remove("key"));
+        assertTrue(map.isEmpty());
+    }
+
+    @Test
+    public void behavesLikeHashMap() {
+        Map<String, byte[]> expected = new HashMap<>();
+        Map<String, byte[]> map = new OffHeapShardMap();
+        Random random = new Random(42);
+        for (int i = 0; i < 100000; ++i) {
+            String key = "key" + random.nextInt(5000);
+            int action = random.nextInt(3);
+            if (action == 0) {
+                assertArrayEquals(expected.remove(key), map.remove(key));
+            } else {
+                byte[] value = new byte[random.nextInt(100)];
+                random.nextBytes(value);
+                assertArrayEquals(expected.put(key, value), map.put(key, value));
+            }
+        }
+        assertEquals(expected.size(), map.size());
+        assertEquals(expected.keySet(), new HashSet<>(map.keySet()));
+        int entriesCount = 0;
+        for (Map.Entry<String, byte[]> entry : map.entrySet()) {
+            assertArrayEquals(expected.get(entry.getKey()), entry.getValue());
+            ++entriesCount;
+        }
+        assertEquals(expected.size(), entriesCount);
+    }
+
+    @Test
+    public void replaceAllKeepsAllKeys() {
+        Map<String, byte[]> map = new OffHeapShardMap();
+        for (int i = 0; i < 1000; ++i) {
+            map.put("key" + i, bytes("v"));
+        }
+        // New values are longer, so the arena grows in the middle of iteration.
+        map.replaceAll((key, value) -> bytes(key + " has a much longer value than before"));
+        assertEquals(1000, map.size());
+        for (int i = 0; i < 1000; ++i) {
+            assertArrayEquals(bytes("key" + i + " has a much longer value than before"), map.get("key" + i));
+        }
+    }
+
+    @Test
+    public void clearEmptiesMap() {
+        Map<String, byte[]> map = new OffHeapShardMap();
+        map.put("a", bytes("1"));
+        map.clear();
+        assertEquals(0, map.size());
+        assertNull(map.get("a"));
+        map.put("b", bytes("2"));
+        assertArrayEquals(bytes("2"), map.get("b"));
+    }
+}
@@ -0,0 +1,272 @@
+package ru.fizteh.fivt.students.dmitry_persiyanov.database.db_table;
+
+import ru.fizteh.fivt.storage.structured.ColumnFormatException;
+import ru.fizteh.fivt.storage.structured.Storeable;
+import ru.fizteh.fivt.students.dmitry_persiyanov.database.db_table_provider.utils.TypeStringTranslator;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Row of a table which keeps values in arrays laid out by the table's RowSchema instead of boxed objects:
+ * fixed-width columns in a long[] (float and double as their raw bits), String columns in a String[]
+ * and a bit per column for nulls. Columns accept only values of their types.
+ * getInt(), getLong() and others read columns without boxing, get...At() of Storeable box the value.
+ * It isn't thread-safe.
+ */
+public final class PackedTableRow implements Storeable {
+    private static final String[] NO_STRINGS = new String[0];
+
+    private final RowSchema schema;
+    private final long[] primitives;
+    private final String[] strings;
+    // Bit per column, set if the column is null.
+    private final long[] nulls;
+
+    /**
+     * Makes row with all columns null.
+     */
+    public PackedTableRow(final RowSchema schema) {
+        this(schema, new long[schema.getPrimitivesCount()],
+                schema.getStringsCount() == 0 ? NO_STRINGS : new String[schema.getStringsCount()],
+                new long[(schema.getColumnsCount() + 63) / 64]);
+        for (int i = 0; i < schema.getColumnsCount(); ++i) {
+            setNull(i, true);
+        }
+    }
+
+    /**
+     * @throws ColumnFormatException If a value doesn't match the type of its column.
+     * @throws IndexOutOfBoundsException If number of values differs from number of columns.
+     */
+    public PackedTableRow(final RowSchema schema, final List<?> values)
+            throws ColumnFormatException, IndexOutOfBoundsException {
+        this(schema);
+        if (values.size() != schema.getColumnsCount()) {
+            throw new IndexOutOfBoundsException("wrong number of values: " + values.size()
+                    + ", columns: " + schema.getColumnsCount());
+        }
+        for (int i = 0; i < values.size(); ++i) {
+            setColumnAt(i, values.get(i));
+        }
+    }
+
+    /**
+     * Takes the arrays without copying, RowCodec fills them.
+     */
+    PackedTableRow(final RowSchema schema, final long[] primitives, final String[] strings, final long[] nulls) {
+        this.schema = schema;
+        this.primitives = primitives;
+        this.strings = strings;
+        this.nulls = nulls;
+    }
+
+    public RowSchema getSchema() {
+        return schema;
+    }
+
+    /**
+     * @return Independent row with the same values.
+     */
+    public PackedTableRow copy() {
+        return new PackedTableRow(schema, primitives.clone(),
+                strings.length == 0 ? NO_STRINGS : strings.clone(), nulls.clone());
+    }
+
+    @Override
+    public String toString() {
+        List<String> strValues = new ArrayList<>();
+        for (int i = 0; i < schema.getColumnsCount(); ++i) {
+            strValues.add(isNull(i) ? "" : getColumnAt(i).toString());
+        }
+        return getClass().getSimpleName() + "[" + String.join(",", strValues) + "]";
+    }
+
+    @Override
+    public void setColumnAt(int columnIndex, Object value) throws ColumnFormatException, IndexOutOfBoundsException {
+        checkIndex(columnIndex);
+        if (value == null) {
+            setNull(columnIndex, true);
+            return;
+        }
+        Class<?> type = schema.getType(columnIndex);
+        if (value.getClass() != type) {
+            throw new ColumnFormatException("types incompatibility: column index " + columnIndex
+                    + ", table type: " + TypeStringTranslator.getStringNameByType(type)
+                    + ", passed type: " + TypeStringTranslator.getStringNameByType(value.getClass()));
+        }
+        int slot = schema.getSlot(columnIndex);
+        if (type == String.class) {
+            strings[slot] = (String) value;
+        } else if (type == Integer.class) {
+            primitives[slot] = (Integer) value;
+        } else if (type == Long.class) {
+            primitives[slot] = (Long) value;
+        } else if (type == Double.class) {
+            primitives[slot] = Double.doubleToRawLongBits((Double) value);
+        } else if (type == Float.class) {
+            primitives[slot] = Float.floatToRawIntBits((Float) value);
+        } else if (type == Byte.class) {
+            primitives[slot] = (Byte) value;
+        } else {
+            primitives[slot] = (Boolean) value ? 1 : 0;
+        }
+        setNull(columnIndex, false);
+    }
+
+    @Override
+    public Object getColumnAt(int columnIndex) throws IndexOutOfBoundsException {
+        checkIndex(columnIndex);
+        if (isNull(columnIndex)) {
+            return null;
+        }
+        Class<?> type = schema.getType(columnIndex);
+        if (type == String.class) {
+            return strings[schema.getSlot(columnIndex)];
+        }
+        long bits = getBits(columnIndex);
+        if (type == Integer.class) {
+            return (int) bits;
+        } else if (type == Long.class) {
+            return bits;
+        } else if (type == Double.class) {
+            return Double.longBitsToDouble(bits);
+        } else if (type == Float.class) {
+            return Float.intBitsToFloat((int) bits);
+        } else if (type == Byte.class) {
+            return (byte) bits;
+        } else {
+            return bits != 0;
+        }
+    }
+
+    @Override
+    public Integer getIntAt(int columnIndex) throws ColumnFormatException, IndexOutOfBoundsException {
+        return checkType(columnIndex, Integer.class) ? null : (int) getBits(columnIndex);
+    }
+
+    @Override
+    public Long getLongAt(int columnIndex) throws ColumnFormatException, IndexOutOfBoundsException {
+        return checkType(columnIndex, Long.class) ? null : getBits(columnIndex);
+    }
+
+    @Override
+    public Byte getByteAt(int columnIndex) throws ColumnFormatException, IndexOutOfBoundsException {
+        return checkType(columnIndex, Byte.class) ? null : (byte) getBits(columnIndex);
+    }
+
+    @Override
+    public Float getFloatAt(int columnIndex) throws ColumnFormatException, IndexOutOfBoundsException {
+        return checkType(columnIndex, Float.class) ? null : Float.intBitsToFloat((int) getBits(columnIndex));
+    }
+
+    @Override
+    public Double getDoubleAt(int columnIndex) throws ColumnFormatException, IndexOutOfBoundsException {
+        return checkType(columnIndex, Double.class) ? null : Double.longBitsToDouble(getBits(columnIndex));
+    }
+
+    @Override
+    public Boolean getBooleanAt(int columnIndex) throws ColumnFormatException, IndexOutOfBoundsException {
+        return checkType(columnIndex, Boolean.class) ? null : getBits(columnIndex) != 0;
+    }
+
+    @Override
+    public String getStringAt(int columnIndex) throws ColumnFormatException, IndexOutOfBoundsException {
+        return checkType(columnIndex, String.class) ? null : strings[schema.getSlot(columnIndex)];
+    }
+
+    /**
+     * @throws IndexOutOfBoundsException If there is no such column.
+     */
+    public boolean isNull(int columnIndex) throws IndexOutOfBoundsException {
+        checkIndex(columnIndex);
+        return (nulls[columnIndex / 64] & (1L << columnIndex)) != 0;
+    }
+
+    /**
+     * @throws ColumnFormatException If the column isn't int.
+     * @throws NullPointerException If the column is null.
+     */
+    public int getInt(int columnIndex) throws ColumnFormatException, IndexOutOfBoundsException {
+        checkNotNull(columnIndex, Integer.class);
+        return (int) getBits(columnIndex);
+    }
+
+    /**
+     * @see #getInt(int)
+     */
+    public long getLong(int columnIndex) throws ColumnFormatException, IndexOutOfBoundsException {
+        checkNotNull(columnIndex, Long.class);
+        return getBits(columnIndex);
+    }
+
+    /**
+     * @see #getInt(int)
+     */
+    public byte getByte(int columnIndex) throws ColumnFormatException, IndexOutOfBoundsException {
+        checkNotNull(columnIndex, Byte.class);
+        return (byte) getBits(columnIndex);
+    }
+
+    /**
+     * @see #getInt(int)
+     */
+    public float getFloat(int columnIndex) throws ColumnFormatException, IndexOutOfBoundsException {
+        checkNotNull(columnIndex, Float.class);
+        return Float.intBitsToFloat((int) getBits(columnIndex));
+    }
+
+    /**
+     * @see #getInt(int)
+     */
+    public double getDouble(int columnIndex) throws ColumnFormatException, IndexOutOfBoundsException {
+        checkNotNull(columnIndex, Double.class);
+        return Double.longBitsToDouble(getBits(columnIndex));
+    }
+
+    /**
+     * @see #getInt(int)
+     */
+    public boolean getBoolean(int columnIndex) throws ColumnFormatException, IndexOutOfBoundsException {
+        checkNotNull(columnIndex, Boolean.class);
+        return getBits(columnIndex) != 0;
+    }
+
+    /**
+     * @return Slot value of a fixed-width column, as getInt() and others read it.
+     */
+    long getBits(int columnIndex) {
+        return primitives[schema.getSlot(columnIndex)];
+    }
+
+    /**
+     * @return True if the column is null.
+     */
+    private boolean checkType(int columnIndex, final Class<?> type) {
+        boolean isNull = isNull(columnIndex);
+        if (schema.getType(columnIndex) != type) {
+            throw new ColumnFormatException();
+        }
+        return isNull;
+    }
+
+    private void checkNotNull(int columnIndex, final Class<?> type) {
+        if (checkType(columnIndex, type)) {
+            throw new NullPointerException("column " + columnIndex + " is null");
+        }
+    }
+
+    private void setNull(int columnIndex, boolean isNull) {
+        if (isNull) {
+            nulls[columnIndex / 64] |= 1L << columnIndex;
+        } else {
+            nulls[columnIndex / 64] &= ~(1L << columnIndex);
+        }
+    }
+
+    private void checkIndex(int columnIndex) {
+        if (columnIndex < 0 || columnIndex >= schema.getColumnsCount()) {
+            throw new IndexOutOfBoundsException();
+        }
+    }
+}
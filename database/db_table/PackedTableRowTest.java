@@ -0,0 +1,100 @@
+package ru.fizteh.fivt.students.dmitry_persiyanov.database.db_table;
+
+import org.junit.Before;
+import org.junit.Test;
+import ru.fizteh.fivt.storage.structured.ColumnFormatException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class PackedTableRowTest {
+    private RowSchema schema = new RowSchema(Arrays.asList(String.class, Integer.class, Long.class, Double.class,
+            Float.class, Byte.class, Boolean.class));
+    private PackedTableRow row;
+
+    @Before
+    public void setUp() throws Exception {
+        row = new PackedTableRow(schema, Arrays.asList("string", -19, 1L << 40, 2.5, -0.5f, (byte) -1, true));
+    }
+
+    @Test
+    public void testGetCorrectness() {
+        assertEquals("string", row.getStringAt(0));
+        assertEquals(Integer.valueOf(-19), row.getIntAt(1));
+        assertEquals(-19, row.getInt(1));
+        assertEquals(1L << 40, row.getLong(2));
+        assertEquals(2.5, row.getDouble(3), 0);
+        assertEquals(-0.5f, row.getFloat(4), 0);
+        assertEquals(-1, row.getByte(5));
+        assertTrue(row.getBoolean(6));
+        assertEquals(Boolean.TRUE, row.getColumnAt(6));
+    }
+
+    @Test
+    public void nullColumns() {
+        PackedTableRow empty = new PackedTableRow(schema);
+        for (int i = 0; i < schema.getColumnsCount(); ++i) {
+            assertTrue(empty.isNull(i));
+            assertNull(empty.getColumnAt(i));
+        }
+        assertNull(empty.getIntAt(1));
+        row.setColumnAt(1, null);
+        assertTrue(row.isNull(1));
+        row.setColumnAt(1, 7);
+        assertEquals(7, row.getInt(1));
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void primitiveGetOfNullColumn() {
+        new PackedTableRow(schema).getInt(1);
+    }
+
+    @Test(expected = ColumnFormatException.class)
+    public void exceptionOnSetWithInvalidType() {
+        row.setColumnAt(1, 1L);
+    }
+
+    @Test(expected = ColumnFormatException.class)
+    public void exceptionOnGetWithInvalidType() {
+        row.getLong(1);
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void exceptionOnInvalidIndex() {
+        row.getColumnAt(7);
+    }
+
+    @Test
+    public void copyIsIndependent() {
+        PackedTableRow copy = row.copy();
+        copy.setColumnAt(0, "other");
+        assertEquals("string", row.getStringAt(0));
+        assertEquals("other", copy.getStringAt(0));
+    }
+
+    @Test
+    public void codecRoundTrip() {
+        RowCodec codec = new RowCodec(schema.getColumnTypes());
+        row.setColumnAt(3, null);
+        PackedTableRow decoded = codec.decode(codec.encode(row));
+        assertSame(codec.getSchema(), decoded.getSchema());
+        assertEquals("PackedTableRow[string,-19,1099511627776,,-0.5,-1,true]", decoded.toString());
+        // Rows of the codec's schema and other rows are encoded the same way.
+        assertArrayEquals(codec.encode(new TableRow(Arrays.asList("string", -19, 1L << 40, null, -0.5f,
+                (byte) -1, true))), codec.encode(codec.decode(codec.encode(row))));
+    }
+
+    @Test
+    public void manyColumns() {
+        List<Class<?>> types = new ArrayList<>(Collections.nCopies(100, Integer.class));
+        PackedTableRow wide = new PackedTableRow(new RowSchema(types));
+        wide.setColumnAt(70, 70);
+        assertTrue(wide.isNull(6));
+        assertFalse(wide.isNull(70));
+        assertEquals(70, wide.getInt(70));
+    }
+}
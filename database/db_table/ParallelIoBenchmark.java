@@ -0,0 +1,62 @@
+package ru.fizteh.fivt.students.dmitry_persiyanov.database.db_table;
+
+import ru.fizteh.fivt.storage.structured.Table;
+import ru.fizteh.fivt.students.dmitry_persiyanov.database.db_table_provider.DbTableProvider;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+/**
+ * Compares shard I/O of tables with different I/O parallelism for every compression: 200k rows
+ * with the default sharding. "commit+dump" is the commit of all rows and the close of the provider,
+ * whose checkpoint writes all the shards, "load" is the next open of the provider. Both are the best of 3 runs.
+ * Usage: ParallelIoBenchmark <work dir>. Databases are created in the work dir and left there.
+ */
+public final class ParallelIoBenchmark {
+    private static final int ROWS_COUNT = 200000;
+    private static final int RUNS_COUNT = 3;
+    private static final int[] PARALLELISMS = {1, 2, 4, 8, TableOptions.COMMON_POOL_PARALLELISM};
+
+    private ParallelIoBenchmark() {
+    }
+
+    public static void main(final String[] args) throws Exception {
+        if (args.length != 1) {
+            System.err.println("Usage: ParallelIoBenchmark <work dir>");
+            System.exit(1);
+        }
+        Path workDir = Paths.get(args[0]);
+        Files.createDirectories(workDir);
+        System.out.println("available processors: " + Runtime.getRuntime().availableProcessors());
+        for (TableOptions.Compression compression : TableOptions.Compression.values()) {
+            for (int parallelism : PARALLELISMS) {
+                long bestDumpTime = Long.MAX_VALUE;
+                long bestLoadTime = Long.MAX_VALUE;
+                for (int i = 0; i < RUNS_COUNT; ++i) {
+                    Path rootDir = Files.createTempDirectory(workDir, compression.toString());
+                    DbTableProvider provider = new DbTableProvider(rootDir);
+                    Table table = provider.createTable("bench", Arrays.asList(String.class, Integer.class),
+                            new TableOptions().setCompression(compression).setIoParallelism(parallelism));
+                    for (int j = 0; j < ROWS_COUNT; ++j) {
+                        table.put((char) ('a' + j % 26) + "k" + j, provider.deserialize(table,
+                                "[\"value number " + (j % 1000) + "\", " + j + "]"));
+                    }
+                    long start = System.nanoTime();
+                    table.commit();
+                    provider.close();
+                    bestDumpTime = Math.min(bestDumpTime, System.nanoTime() - start);
+                    start = System.nanoTime();
+                    provider = new DbTableProvider(rootDir);
+                    provider.getTable("bench");
+                    bestLoadTime = Math.min(bestLoadTime, System.nanoTime() - start);
+                    provider.close();
+                }
+                System.out.printf("%s, parallelism %s: commit+dump %d ms, load %d ms%n", compression,
+                        parallelism == TableOptions.COMMON_POOL_PARALLELISM ? "common" : parallelism,
+                        bestDumpTime / 1000000, bestLoadTime / 1000000);
+            }
+        }
+    }
+}
@@ -0,0 +1,223 @@
+package ru.fizteh.fivt.students.dmitry_persiyanov.database.db_table;
+
+import ru.fizteh.fivt.storage.structured.Storeable;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded cache of decoded committed rows. It's thread-safe.
+ * Cache consists of window LRU segment, where every new row gets, and main LRU segment.
+ * Row evicted from the window gets to the main segment only if it was requested more often
+ * than the row which would be evicted from the main segment instead (W-TinyLFU admission),
+ * so one scan over the table doesn't wash frequently read rows out.
+ * LRU policy is the same cache where the window takes the whole capacity.
+ */
+public final class RowCache {
+    public enum EvictionPolicy {
+        LRU,
+        TINY_LFU
+    }
+
+    /**
+     * Counters of the cache since it was created.
+     */
+    public static final class Stats {
+        private final long hitCount;
+        private final long missCount;
+        private final long evictionCount;
+
+        Stats(long hitCount, long missCount, long evictionCount) {
+            this.hitCount = hitCount;
+            this.missCount = missCount;
+            this.evictionCount = evictionCount;
+        }
+
+        public long getHitCount() {
+            return hitCount;
+        }
+
+        public long getMissCount() {
+            return missCount;
+        }
+
+        public long getEvictionCount() {
+            return evictionCount;
+        }
+
+        public double getHitRate() {
+            long requestCount = hitCount + missCount;
+            return requestCount == 0 ? 0 : (double) hitCount / requestCount;
+        }
+
+        @Override
+        public String toString() {
+            return getClass().getSimpleName() + "[hits=" + hitCount + ", misses=" + missCount
+                    + ", evictions=" + evictionCount + "]";
+        }
+    }
+
+    // Window takes 1% of the capacity as in the original W-TinyLFU.
+    private static final int WINDOW_PERCENT = 1;
+
+    private final int windowCapacity;
+    private final int mainCapacity;
+    private final Map<String, Storeable> window = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, Storeable> main = new LinkedHashMap<>(16, 0.75f, true);
+    private final FrequencySketch sketch;
+
+    private long hitCount = 0;
+    private long missCount = 0;
+    private long evictionCount = 0;
+
+    /**
+     * @param capacity Maximum number of cached rows, must be positive.
+     * @param policy
+     */
+    public RowCache(int capacity, final EvictionPolicy policy) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("cache capacity must be positive: " + capacity);
+        } else if (policy == null) {
+            throw new IllegalArgumentException("eviction policy is null");
+        }
+        if (policy == EvictionPolicy.LRU) {
+            windowCapacity = capacity;
+            sketch = null;
+        } else {
+            windowCapacity = Math.max(1, capacity * WINDOW_PERCENT / 100);
+            sketch = new FrequencySketch(capacity);
+        }
+        mainCapacity = capacity - windowCapacity;
+    }
+
+    /**
+     * @return Cached row or null. Callers mustn't change the returned row.
+     */
+    public synchronized Storeable get(final String key) {
+        if (sketch != null) {
+            sketch.increment(key);
+        }
+        Storeable row = window.get(key);
+        if (row == null) {
+            row = main.get(key);
+        }
+        if (row == null) {
+            ++missCount;
+        } else {
+            ++hitCount;
+        }
+        return row;
+    }
+
+    /**
+     * Caches row. The cache keeps the row itself, so it mustn't be changed later.
+     */
+    public synchronized void put(final String key, final Storeable row) {
+        if (main.containsKey(key)) {
+            main.put(key, row);
+            return;
+        }
+        window.put(key, row);
+        if (window.size() <= windowCapacity) {
+            return;
+        }
+        Iterator<Map.Entry<String, Storeable>> windowIt = window.entrySet().iterator();
+        Map.Entry<String, Storeable> candidate = windowIt.next();
+        windowIt.remove();
+        if (main.size() < mainCapacity) {
+            main.put(candidate.getKey(), candidate.getValue());
+            return;
+        }
+        ++evictionCount;
+        if (mainCapacity == 0) {
+            return;
+        }
+        Iterator<Map.Entry<String, Storeable>> mainIt = main.entrySet().iterator();
+        String victimKey = mainIt.next().getKey();
+        if (sketch.frequency(candidate.getKey()) > sketch.frequency(victimKey)) {
+            mainIt.remove();
+            main.put(candidate.getKey(), candidate.getValue());
+        }
+    }
+
+    /**
+     * Drops row from the cache. It must be called when the committed row is changed or removed.
+     */
+    public synchronized void invalidate(final String key) {
+        if (window.remove(key) == null) {
+            main.remove(key);
+        }
+    }
+
+    public synchronized int size() {
+        return window.size() + main.size();
+    }
+
+    public synchronized Stats getStats() {
+        return new Stats(hitCount, missCount, evictionCount);
+    }
+
+    /**
+     * Count-min sketch of counters saturating at 15 which estimates how often keys were requested recently.
+     * All counters are halved when the number of increments reaches ten sizes of the cache,
+     * so old popularity fades away.
+     */
+    private static final class FrequencySketch {
+        private static final int ROWS = 4;
+        private static final int MAX_COUNTER = 15;
+        private static final int WIDTH_PER_ROW = 8;
+        private static final int[] SEEDS = {0x97cb3127, 0xb3a1b7e5, 0x7f4a7c15, 0xe6546b64};
+
+        private final byte[][] counters;
+        private final int mask;
+        private final int sampleSize;
+        private int incrementsCount = 0;
+
+        FrequencySketch(int capacity) {
+            // Wide rows keep the noise of collisions well below the counts of really popular keys.
+            int width = Integer.highestOneBit(Math.max(16, WIDTH_PER_ROW * capacity - 1) << 1);
+            counters = new byte[ROWS][width];
+            mask = width - 1;
+            sampleSize = 10 * capacity;
+        }
+
+        void increment(final String key) {
+            int hash = key.hashCode();
+            boolean incremented = false;
+            for (int row = 0; row < ROWS; ++row) {
+                int index = indexOf(hash, row);
+                if (counters[row][index] < MAX_COUNTER) {
+                    ++counters[row][index];
+                    incremented = true;
+                }
+            }
+            if (incremented && ++incrementsCount >= sampleSize) {
+                reset();
+            }
+        }
+
+        int frequency(final String key) {
+            int hash = key.hashCode();
+            int frequency = MAX_COUNTER;
+            for (int row = 0; row < ROWS; ++row) {
+                frequency = Math.min(frequency, counters[row][indexOf(hash, row)]);
+            }
+            return frequency;
+        }
+
+        private int indexOf(int hash, int row) {
+            int h = (hash ^ SEEDS[row]) * 0x9e3779b9;
+            return (h ^ (h >>> 16)) & mask;
+        }
+
+        private void reset() {
+            for (byte[] row : counters) {
+                for (int i = 0; i < row.length; ++i) {
+                    row[i] >>= 1;
+                }
+            }
+            incrementsCount /= 2;
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package ru.fizteh.fivt.students.dmitry_persiyanov.database.db_table;
+
+import org.junit.Test;
+import ru.fizteh.fivt.storage.structured.Storeable;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class RowCacheTest {
+    private static Storeable row(int value) {
+        return new TableRow(Arrays.asList(value));
+    }
+
+    @Test
+    public void lruEvictsLeastRecentlyUsedRow() {
+        RowCache cache = new RowCache(2, RowCache.EvictionPolicy.LRU);
+        cache.put("a", row(1));
+        cache.put("b", row(2));
+        cache.get("a");
+        cache.put("c", row(3));
+        assertNotNull(cache.get("a"));
+        assertNull(cache.get("b"));
+        assertNotNull(cache.get("c"));
+        assertEquals(2, cache.size());
+        assertEquals(1, cache.getStats().getEvictionCount());
+    }
+
+    @Test
+    public void tinyLfuKeepsFrequentRowsDuringScan() {
+        RowCache cache = new RowCache(100, RowCache.EvictionPolicy.TINY_LFU);
+        for (int i = 0; i < 50; ++i) {
+            String key = "hot" + i;
+            for (int j = 0; j < 5; ++j) {
+                if (cache.get(key) == null) {
+                    cache.put(key, row(i));
+                }
+            }
+        }
+        for (int i = 0; i < 1000; ++i) {
+            String key = "scan" + i;
+            if (cache.get(key) == null) {
+                cache.put(key, row(i));
+            }
+        }
+        for (int i = 0; i < 50; ++i) {
+            assertNotNull("hot" + i, cache.get("hot" + i));
+        }
+        assertTrue(cache.size() <= 100);
+    }
+
+    @Test
+    public void invalidatedRowIsDropped() {
+        RowCache cache = new RowCache(10, RowCache.EvictionPolicy.TINY_LFU);
+        cache.put("a", row(1));
+        cache.invalidate("a");
+        assertNull(cache.get("a"));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void statsCountHitsAndMisses() {
+        RowCache cache = new RowCache(10, RowCache.EvictionPolicy.LRU);
+        cache.get("a");
+        cache.put("a", row(1));
+        cache.get("a");
+        cache.get("a");
+        RowCache.Stats stats = cache.getStats();
+        assertEquals(2, stats.getHitCount());
+        assertEquals(1, stats.getMissCount());
+        assertEquals(2.0 / 3, stats.getHitRate(), 1e-9);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void zeroCapacityIsRejected() {
+        new RowCache(0, RowCache.EvictionPolicy.LRU);
+    }
+}
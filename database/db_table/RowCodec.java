@@ -0,0 +1,275 @@
+package ru.fizteh.fivt.students.dmitry_persiyanov.database.db_table;
+
+import ru.fizteh.fivt.storage.structured.ColumnFormatException;
+import ru.fizteh.fivt.storage.structured.Storeable;
+import ru.fizteh.fivt.students.dmitry_persiyanov.database.db_table_provider.utils.TypeStringTranslator;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Binary form of table rows, it's used in memory, in the commit log and in shard files.
+ * Row layout: [null bitmap: one bit per column][fixed-width slots][String columns].
+ * Every int/long/float/double/byte/boolean column has a slot at a fixed offset (zeroed if the value is null),
+ * every non-null String column is written as [length of UTF-8 bytes: int][UTF-8 bytes] in column order.
+ * Rows are decoded to PackedTableRow of the codec's schema without boxing, and such rows are encoded
+ * without boxing too.
+ */
+public final class RowCodec {
+    private static final Charset CHARSET = Charset.forName("UTF-8");
+    // Marks String columns in slotOffsets.
+    private static final int NO_SLOT = -1;
+
+    private final List<Class<?>> columnTypes;
+    private final RowSchema schema;
+    private final int[] slotOffsets;
+    private final int bitmapSize;
+    private final int fixedAreaEnd;
+
+    public RowCodec(final List<Class<?>> columnTypes) {
+        this.columnTypes = new ArrayList<>(columnTypes);
+        this.schema = new RowSchema(columnTypes);
+        this.slotOffsets = new int[columnTypes.size()];
+        this.bitmapSize = (columnTypes.size() + 7) / 8;
+        int offset = bitmapSize;
+        for (int i = 0; i < columnTypes.size(); ++i) {
+            int slotSize = getSlotSize(columnTypes.get(i));
+            if (slotSize == 0) {
+                slotOffsets[i] = NO_SLOT;
+            } else {
+                slotOffsets[i] = offset;
+                offset += slotSize;
+            }
+        }
+        this.fixedAreaEnd = offset;
+    }
+
+    /**
+     * @return Schema of rows made by decode().
+     */
+    public RowSchema getSchema() {
+        return schema;
+    }
+
+    public byte[] encode(final Storeable row) throws ColumnFormatException {
+        if (row instanceof PackedTableRow && ((PackedTableRow) row).getSchema() == schema) {
+            return encodePacked((PackedTableRow) row);
+        }
+        int size = fixedAreaEnd;
+        List<byte[]> strings = new ArrayList<>();
+        for (int i = 0; i < columnTypes.size(); ++i) {
+            if (slotOffsets[i] == NO_SLOT) {
+                String value = (String) checkType(row.getColumnAt(i), i);
+                if (value != null) {
+                    byte[] bytes = value.getBytes(CHARSET);
+                    strings.add(bytes);
+                    size += 4 + bytes.length;
+                }
+            }
+        }
+        ByteBuffer buf = ByteBuffer.allocate(size);
+        buf.position(fixedAreaEnd);
+        for (byte[] bytes : strings) {
+            buf.putInt(bytes.length);
+            buf.put(bytes);
+        }
+        for (int i = 0; i < columnTypes.size(); ++i) {
+            Object value = checkType(row.getColumnAt(i), i);
+            if (value == null) {
+                buf.put(i / 8, (byte) (buf.get(i / 8) | (1 << (i % 8))));
+            } else if (slotOffsets[i] != NO_SLOT) {
+                putSlot(buf, slotOffsets[i], value);
+            }
+        }
+        return buf.array();
+    }
+
+    public PackedTableRow decode(final byte[] bytes) {
+        ByteBuffer buf = ByteBuffer.wrap(bytes);
+        long[] primitives = new long[schema.getPrimitivesCount()];
+        String[] strings = new String[schema.getStringsCount()];
+        long[] nulls = new long[(columnTypes.size() + 63) / 64];
+        try {
+            buf.position(fixedAreaEnd);
+            for (int i = 0; i < columnTypes.size(); ++i) {
+                if (isNull(bytes, i)) {
+                    nulls[i / 64] |= 1L << i;
+                } else if (slotOffsets[i] == NO_SLOT) {
+                    strings[schema.getSlot(i)] = getString(buf);
+                } else {
+                    primitives[schema.getSlot(i)] = getSlotBits(buf, i);
+                }
+            }
+        } catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException e) {
+            throw new IllegalArgumentException("malformed row", e);
+        }
+        return new PackedTableRow(schema, primitives, strings, nulls);
+    }
+
+    /**
+     * Decodes only the given columns. Fixed-width columns are read from their slots, String columns
+     * before the last requested one are skipped by their lengths without decoding.
+     * @param bytes
+     * @param columns Indexes of the columns, they may go in any order and repeat.
+     * @return Values of the columns in the given order.
+     */
+    public List<Object> decodeColumns(final byte[] bytes, final int... columns) {
+        int lastString = -1;
+        for (int column : columns) {
+            if (column < 0 || column >= columnTypes.size()) {
+                throw new IndexOutOfBoundsException("wrong column index: " + column);
+            } else if (slotOffsets[column] == NO_SLOT) {
+                lastString = Math.max(lastString, column);
+            }
+        }
+        ByteBuffer buf = ByteBuffer.wrap(bytes);
+        List<Object> values = new ArrayList<>(columns.length);
+        try {
+            // Offsets of String columns up to the last requested one, non-null columns only.
+            int[] stringOffsets = new int[lastString + 1];
+            buf.position(fixedAreaEnd);
+            for (int i = 0; i <= lastString; ++i) {
+                if (slotOffsets[i] == NO_SLOT && !isNull(bytes, i)) {
+                    stringOffsets[i] = buf.position();
+                    int length = buf.getInt();
+                    buf.position(buf.position() + length);
+                }
+            }
+            for (int column : columns) {
+                if (isNull(bytes, column)) {
+                    values.add(null);
+                } else if (slotOffsets[column] == NO_SLOT) {
+                    buf.position(stringOffsets[column]);
+                    values.add(getString(buf));
+                } else {
+                    values.add(getSlot(buf, column));
+                }
+            }
+        } catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException e) {
+            throw new IllegalArgumentException("malformed row", e);
+        }
+        return values;
+    }
+
+    private byte[] encodePacked(final PackedTableRow row) {
+        int size = fixedAreaEnd;
+        byte[][] strings = new byte[columnTypes.size()][];
+        for (int i = 0; i < columnTypes.size(); ++i) {
+            if (slotOffsets[i] == NO_SLOT && !row.isNull(i)) {
+                strings[i] = row.getStringAt(i).getBytes(CHARSET);
+                size += 4 + strings[i].length;
+            }
+        }
+        ByteBuffer buf = ByteBuffer.allocate(size);
+        buf.position(fixedAreaEnd);
+        for (int i = 0; i < columnTypes.size(); ++i) {
+            if (row.isNull(i)) {
+                buf.put(i / 8, (byte) (buf.get(i / 8) | (1 << (i % 8))));
+            } else if (slotOffsets[i] == NO_SLOT) {
+                buf.putInt(strings[i].length);
+                buf.put(strings[i]);
+            } else {
+                putSlotBits(buf, i, row.getBits(i));
+            }
+        }
+        return buf.array();
+    }
+
+    private boolean isNull(final byte[] bytes, int columnIndex) {
+        return (bytes[columnIndex / 8] & (1 << (columnIndex % 8))) != 0;
+    }
+
+    private Object getSlot(final ByteBuffer buf, int columnIndex) {
+        Class<?> type = columnTypes.get(columnIndex);
+        int offset = slotOffsets[columnIndex];
+        if (type.equals(Integer.class)) {
+            return buf.getInt(offset);
+        } else if (type.equals(Long.class)) {
+            return buf.getLong(offset);
+        } else if (type.equals(Double.class)) {
+            return buf.getDouble(offset);
+        } else if (type.equals(Float.class)) {
+            return buf.getFloat(offset);
+        } else if (type.equals(Byte.class)) {
+            return buf.get(offset);
+        } else {
+            return buf.get(offset) != 0;
+        }
+    }
+
+    /**
+     * Reads fixed-width column as PackedTableRow keeps it.
+     */
+    private long getSlotBits(final ByteBuffer buf, int columnIndex) {
+        Class<?> type = columnTypes.get(columnIndex);
+        int offset = slotOffsets[columnIndex];
+        if (type.equals(Integer.class) || type.equals(Float.class)) {
+            return buf.getInt(offset);
+        } else if (type.equals(Long.class) || type.equals(Double.class)) {
+            return buf.getLong(offset);
+        } else {
+            return buf.get(offset);
+        }
+    }
+
+    private void putSlotBits(final ByteBuffer buf, int columnIndex, long bits) {
+        Class<?> type = columnTypes.get(columnIndex);
+        int offset = slotOffsets[columnIndex];
+        if (type.equals(Integer.class) || type.equals(Float.class)) {
+            buf.putInt(offset, (int) bits);
+        } else if (type.equals(Long.class) || type.equals(Double.class)) {
+            buf.putLong(offset, bits);
+        } else {
+            buf.put(offset, (byte) bits);
+        }
+    }
+
+    private static void putSlot(ByteBuffer buf, int offset, final Object value) {
+        if (value instanceof Integer) {
+            buf.putInt(offset, (Integer) value);
+        } else if (value instanceof Long) {
+            buf.putLong(offset, (Long) value);
+        } else if (value instanceof Double) {
+            buf.putDouble(offset, (Double) value);
+        } else if (value instanceof Float) {
+            buf.putFloat(offset, (Float) value);
+        } else if (value instanceof Byte) {
+            buf.put(offset, (Byte) value);
+        } else {
+            buf.put(offset, (byte) ((Boolean) value ? 1 : 0));
+        }
+    }
+
+    private static String getString(ByteBuffer buf) {
+        int length = buf.getInt();
+        String value = new String(buf.array(), buf.position(), length, CHARSET);
+        buf.position(buf.position() + length);
+        return value;
+    }
+
+    private Object checkType(final Object value, int columnIndex) {
+        if (value != null && !columnTypes.get(columnIndex).equals(value.getClass())) {
+            throw new ColumnFormatException("types incompatibility: column index " + columnIndex
+                    + ", table type: " + TypeStringTranslator.getStringNameByType(columnTypes.get(columnIndex))
+                    + ", passed type: " + TypeStringTranslator.getStringNameByType(value.getClass()));
+        }
+        return value;
+    }
+
+    private static int getSlotSize(final Class<?> type) {
+        if (type.equals(Integer.class) || type.equals(Float.class)) {
+            return 4;
+        } else if (type.equals(Long.class) || type.equals(Double.class)) {
+            return 8;
+        } else if (type.equals(Byte.class) || type.equals(Boolean.class)) {
+            return 1;
+        } else if (type.equals(String.class)) {
+            return 0;
+        } else {
+            throw new IllegalArgumentException("unsupported type: " + type.getName());
+        }
+    }
+}
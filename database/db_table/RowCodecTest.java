@@ -0,0 +1,72 @@
+package ru.fizteh.fivt.students.dmitry_persiyanov.database.db_table;
+
+import org.junit.Before;
+import org.junit.Test;
+import ru.fizteh.fivt.storage.structured.ColumnFormatException;
+import ru.fizteh.fivt.storage.structured.Storeable;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class RowCodecTest {
+    private List<Class<?>> columnTypes = Arrays.asList(String.class, Integer.class, Long.class, Double.class,
+            Float.class, Byte.class, Boolean.class, String.class);
+    private RowCodec codec;
+
+    @Before
+    public void setUp() {
+        codec = new RowCodec(columnTypes);
+    }
+
+    @Test
+    public void encodeDecodeAllTypes() {
+        List<Object> values = Arrays.asList("Дмитрий", -42, 1L << 40, 2.5, 0.25f, (byte) 7, true, "");
+        Storeable decoded = codec.decode(codec.encode(new TableRow(values)));
+        for (int i = 0; i < values.size(); ++i) {
+            assertEquals(values.get(i), decoded.getColumnAt(i));
+        }
+    }
+
+    @Test
+    public void encodeDecodeNulls() {
+        List<Object> values = Arrays.asList(null, 1, null, null, null, null, false, "last");
+        Storeable decoded = codec.decode(codec.encode(new TableRow(values)));
+        assertNull(decoded.getStringAt(0));
+        assertEquals(new Integer(1), decoded.getIntAt(1));
+        assertNull(decoded.getLongAt(2));
+        assertEquals(false, decoded.getBooleanAt(6));
+        assertEquals("last", decoded.getStringAt(7));
+    }
+
+    @Test
+    public void decodeOnlyRequestedColumns() {
+        byte[] row = codec.encode(new TableRow(Arrays.asList("first", 3, null, 2.5, 0.5f, (byte) 1, true, "last")));
+        assertEquals(Arrays.asList("last", 3, null, "first", "last"), codec.decodeColumns(row, 7, 1, 2, 0, 7));
+        byte[] nullStrings = codec.encode(new TableRow(Arrays.asList(null, 1, 1L, 1.0, 1.0f, (byte) 1, false, "s")));
+        assertEquals(Arrays.asList("s", null), codec.decodeColumns(nullStrings, 7, 0));
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void decodeWrongColumn() {
+        codec.decodeColumns(codec.encode(new TableRow(Arrays.asList(new Object[8]))), 8);
+    }
+
+    @Test
+    public void fixedWidthColumnsTakeFixedSpace() {
+        RowCodec intCodec = new RowCodec(Arrays.asList(Integer.class, Integer.class));
+        assertEquals(1 + 2 * 4, intCodec.encode(new TableRow(Arrays.asList(1, null))).length);
+    }
+
+    @Test(expected = ColumnFormatException.class)
+    public void encodeWrongType() {
+        codec.encode(new TableRow(Arrays.asList(1, 1, 1L, 1.0, 1.0f, (byte) 1, true, "")));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void decodeMalformedRow() {
+        codec.decode(new byte[] {0, 1});
+    }
+}
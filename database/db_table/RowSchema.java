@@ -0,0 +1,83 @@
+package ru.fizteh.fivt.students.dmitry_persiyanov.database.db_table;
+
+import ru.fizteh.fivt.students.dmitry_persiyanov.database.db_table_provider.utils.TypeStringTranslator;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Column types of a table and the layout of PackedTableRow built from them. Every int/long/float/double/
+ * byte/boolean column has a slot in the row's long[], every String column has a slot in its String[].
+ * It's immutable, so all rows of a table share one schema.
+ */
+public final class RowSchema {
+    private final List<Class<?>> columnTypes;
+    // Same as columnTypes, for lookups without List.get().
+    private final Class<?>[] types;
+    // Index of the column in the long[] or in the String[] of a row.
+    private final int[] slots;
+    private final int primitivesCount;
+    private final int stringsCount;
+
+    public RowSchema(final List<Class<?>> columnTypes) {
+        this.columnTypes = Collections.unmodifiableList(new ArrayList<>(columnTypes));
+        this.types = columnTypes.toArray(new Class<?>[columnTypes.size()]);
+        this.slots = new int[types.length];
+        int primitives = 0;
+        int strings = 0;
+        for (int i = 0; i < types.length; ++i) {
+            if (types[i] == String.class) {
+                slots[i] = strings++;
+            } else if (types[i] == Integer.class || types[i] == Long.class || types[i] == Float.class
+                    || types[i] == Double.class || types[i] == Byte.class || types[i] == Boolean.class) {
+                slots[i] = primitives++;
+            } else {
+                throw new IllegalArgumentException("unsupported type: "
+                        + (types[i] == null ? null : types[i].getName()));
+            }
+        }
+        this.primitivesCount = primitives;
+        this.stringsCount = strings;
+    }
+
+    public int getColumnsCount() {
+        return types.length;
+    }
+
+    public Class<?> getColumnType(int columnIndex) throws IndexOutOfBoundsException {
+        return columnTypes.get(columnIndex);
+    }
+
+    /**
+     * @return Unmodifiable list of column types.
+     */
+    public List<Class<?>> getColumnTypes() {
+        return columnTypes;
+    }
+
+    @Override
+    public String toString() {
+        List<String> typeNames = new ArrayList<>();
+        for (Class<?> type : types) {
+            typeNames.add(TypeStringTranslator.getStringNameByType(type));
+        }
+        return getClass().getSimpleName() + "[" + String.join(",", typeNames) + "]";
+    }
+
+    Class<?> getType(int columnIndex) {
+        return types[columnIndex];
+    }
+
+    int getSlot(int columnIndex) {
+        return slots[columnIndex];
+    }
+
+    int getPrimitivesCount() {
+        return primitivesCount;
+    }
+
+    int getStringsCount() {
+        return stringsCount;
+    }
+}
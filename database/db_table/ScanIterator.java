@@ -0,0 +1,15 @@
+package ru.fizteh.fivt.students.dmitry_persiyanov.database.db_table;
+
+import java.util.Iterator;
+
+/**
+ * Iterator over a scan of a table. It holds the committed version it reads until it's exhausted or closed,
+ * so an iterator which isn't read to the end must be closed, otherwise older rows are kept in memory.
+ */
+public interface ScanIterator<T> extends Iterator<T>, AutoCloseable {
+    /**
+     * Releases the version, later calls of hasNext() return false. It may be called several times.
+     */
+    @Override
+    void close();
+}
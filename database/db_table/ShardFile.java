@@ -0,0 +1,261 @@
+package ru.fizteh.fivt.students.dmitry_persiyanov.database.db_table;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Envelope of shard file which makes truncated and damaged files detectable.
+ * File format: header, body, checksums of value blocks: [checksum: int]*.
+ * Header: [magic: int][version: byte][compression: byte, number of TableOptions.Compression constant]
+ * [entries count: int][directory length: int][directory checksum: int][values length: int]
+ * [value block size: int][header checksum: int].
+ * Body is the key directory followed by the value area, the same as the whole file of the original format
+ * (see TableLoaderDumper). Value area is checksummed in blocks of stored (maybe compressed) bytes.
+ * Checksums are CRC32. Files of the original format have no header: they can't start with the magic,
+ * because it starts with '\0' followed by an offset larger than any shard file.
+ */
+final class ShardFile {
+    private static final int VERSION = 1;
+    private static final int MAGIC = 0x00534844;
+    private static final int HEADER_SIZE = 30;
+    private static final int VALUE_BLOCK_SIZE = 64 * 1024;
+
+    private final ByteBuffer body;
+    private final TableOptions.Compression compression;
+    private final int entriesCount;
+
+    private ShardFile(final ByteBuffer body, final TableOptions.Compression compression, int entriesCount) {
+        this.body = body;
+        this.compression = compression;
+        this.entriesCount = entriesCount;
+    }
+
+    /**
+     * @return Key directory and value area, offsets of the directory are positions in this buffer.
+     */
+    ByteBuffer getBody() {
+        return body;
+    }
+
+    TableOptions.Compression getCompression() {
+        return compression;
+    }
+
+    /**
+     * @return Number of entries or -1 for a file of the original format.
+     */
+    int getEntriesCount() {
+        return entriesCount;
+    }
+
+    /**
+     * Checks header and checksums of the whole file.
+     * @param buf Whole file.
+     * @param originalFormatCompression Compression of the table, it's used if the file has no header.
+     * @throws IllegalArgumentException If the file is damaged.
+     */
+    static ShardFile read(final ByteBuffer buf, final TableOptions.Compression originalFormatCompression) {
+        if (!hasHeader(buf)) {
+            return new ShardFile(buf.duplicate(), originalFormatCompression, -1);
+        }
+        ByteBuffer header = buf.duplicate();
+        int entriesCount = checkHeader(header, buf.limit());
+        TableOptions.Compression compression = TableOptions.Compression.values()[buf.get(5)];
+        int directoryLength = header.getInt(10);
+        int valuesLength = header.getInt(18);
+        int blockSize = header.getInt(22);
+
+        ByteBuffer body = slice(buf, HEADER_SIZE, directoryLength + valuesLength);
+        if (crc(slice(body, 0, directoryLength)) != header.getInt(14)) {
+            throw new IllegalArgumentException("checksum of key directory doesn't match");
+        }
+        ByteBuffer blockChecksums = slice(buf, HEADER_SIZE + directoryLength + valuesLength,
+                buf.limit() - HEADER_SIZE - directoryLength - valuesLength);
+        for (int blockStart = 0; blockStart < valuesLength; blockStart += blockSize) {
+            int blockLength = Math.min(blockSize, valuesLength - blockStart);
+            ByteBuffer block = slice(body, directoryLength + blockStart, blockLength);
+            if (crc(block) != blockChecksums.getInt()) {
+                throw new IllegalArgumentException("checksum of value block at " + blockStart + " doesn't match");
+            }
+        }
+        return new ShardFile(body, compression, entriesCount);
+    }
+
+    /**
+     * Reads only the header of the file.
+     * @return Number of entries or -1 for a file of the original format.
+     */
+    static int readEntriesCount(final Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate((int) Math.min(HEADER_SIZE, channel.size()));
+            while (header.hasRemaining() && channel.read(header) != -1) {
+                continue;
+            }
+            header.flip();
+            return hasHeader(header) ? checkHeader(header, channel.size()) : -1;
+        }
+    }
+
+    /**
+     * Writes file of the current version. The whole file is built in buffers first: header, key directory,
+     * value blocks and their checksums, and then it's written by gathering writes, so a shard
+     * of any number of entries takes a few system calls.
+     * @param file
+     * @param keys Keys of the entries in UTF-8.
+     * @param values
+     * @param compression
+     */
+    static void write(final Path file, final List<byte[]> keys, final List<byte[]> values,
+                      final TableOptions.Compression compression) throws IOException {
+        int directoryLength = 0;
+        for (byte[] key : keys) {
+            directoryLength += key.length + 1 + 4;
+        }
+        ByteBuffer directory = ByteBuffer.allocate(directoryLength);
+        int currentOffset = directoryLength;
+        for (int i = 0; i < keys.size(); ++i) {
+            directory.put(keys.get(i)).put((byte) '\0').putInt(currentOffset);
+            currentOffset += values.get(i).length;
+        }
+        directory.flip();
+
+        ValueBlocksOutputStream valuesOut = new ValueBlocksOutputStream();
+        TableLoaderDumper.writeValues(valuesOut, values, compression);
+        List<ByteBuffer> valueBlocks = valuesOut.finish();
+        ByteBuffer blockChecksums = ByteBuffer.allocate(4 * valueBlocks.size());
+        for (ByteBuffer block : valueBlocks) {
+            blockChecksums.putInt(crc(block.duplicate()));
+        }
+        blockChecksums.flip();
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).put((byte) VERSION).put((byte) compression.ordinal()).putInt(keys.size())
+                .putInt(directoryLength).putInt(crc(directory.duplicate())).putInt(valuesOut.getCount())
+                .putInt(VALUE_BLOCK_SIZE);
+        header.putInt(crc(slice(header, 0, HEADER_SIZE - 4)));
+        header.flip();
+
+        List<ByteBuffer> buffers = new ArrayList<>();
+        buffers.add(header);
+        buffers.add(directory);
+        buffers.addAll(valueBlocks);
+        buffers.add(blockChecksums);
+        ByteBuffer[] fileBuffers = buffers.toArray(new ByteBuffer[buffers.size()]);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            // A call writes at most IOV_MAX buffers, and it may write only a part of them.
+            int firstUnwritten = 0;
+            while (firstUnwritten < fileBuffers.length) {
+                channel.write(fileBuffers, firstUnwritten, fileBuffers.length - firstUnwritten);
+                while (firstUnwritten < fileBuffers.length && !fileBuffers[firstUnwritten].hasRemaining()) {
+                    ++firstUnwritten;
+                }
+            }
+            // Commit log is emptied after dump, so the shard must be on the disk by then.
+            channel.force(false);
+        }
+    }
+
+    private static boolean hasHeader(final ByteBuffer buf) {
+        return buf.limit() >= 4 && buf.getInt(0) == MAGIC;
+    }
+
+    /**
+     * @return Entries count.
+     */
+    private static int checkHeader(final ByteBuffer header, long fileSize) {
+        if (header.limit() < HEADER_SIZE) {
+            throw new IllegalArgumentException("header is truncated");
+        } else if (crc(slice(header, 0, HEADER_SIZE - 4)) != header.getInt(HEADER_SIZE - 4)) {
+            throw new IllegalArgumentException("checksum of header doesn't match");
+        } else if (header.get(4) != VERSION) {
+            throw new IllegalArgumentException("unknown version of shard file: " + header.get(4));
+        }
+        int compression = header.get(5);
+        int directoryLength = header.getInt(10);
+        int valuesLength = header.getInt(18);
+        int blockSize = header.getInt(22);
+        if (compression < 0 || compression >= TableOptions.Compression.values().length || directoryLength < 0
+                || valuesLength < 0 || blockSize <= 0) {
+            throw new IllegalArgumentException("wrong header");
+        }
+        long blocksCount = (valuesLength + (long) blockSize - 1) / blockSize;
+        if (fileSize != HEADER_SIZE + (long) directoryLength + valuesLength + 4 * blocksCount) {
+            throw new IllegalArgumentException("file size " + fileSize + " doesn't match header");
+        }
+        return header.getInt(6);
+    }
+
+    private static ByteBuffer slice(final ByteBuffer buf, int from, int length) {
+        ByteBuffer slice = buf.duplicate();
+        slice.limit(from + length);
+        slice.position(from);
+        return slice.slice();
+    }
+
+    // CRC32 reads mapped files without copying them to the heap.
+    private static int crc(final ByteBuffer buf) {
+        CRC32 crc = new CRC32();
+        crc.update(buf);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Collects written bytes in blocks of VALUE_BLOCK_SIZE bytes, which are checksummed one by one.
+     */
+    private static final class ValueBlocksOutputStream extends OutputStream {
+        private final List<ByteBuffer> blocks = new ArrayList<>();
+        private ByteBuffer block = ByteBuffer.allocate(VALUE_BLOCK_SIZE);
+        private long count = 0;
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(final byte[] bytes, int offset, int length) throws IOException {
+            while (length > 0) {
+                int part = Math.min(length, block.remaining());
+                block.put(bytes, offset, part);
+                offset += part;
+                length -= part;
+                count += part;
+                if (!block.hasRemaining()) {
+                    endBlock();
+                }
+            }
+        }
+
+        int getCount() throws IOException {
+            if (count > Integer.MAX_VALUE) {
+                throw new IOException("shard is larger than 2 GB");
+            }
+            return (int) count;
+        }
+
+        /**
+         * @return Blocks ready to be written, all of them are full except the last one.
+         */
+        List<ByteBuffer> finish() {
+            if (block.position() > 0) {
+                block.flip();
+                blocks.add(block);
+            }
+            return blocks;
+        }
+
+        private void endBlock() {
+            block.flip();
+            blocks.add(block);
+            block = ByteBuffer.allocate(VALUE_BLOCK_SIZE);
+        }
+    }
+}
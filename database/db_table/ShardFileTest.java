@@ -0,0 +1,44 @@
+package ru.fizteh.fivt.students.dmitry_persiyanov.database.db_table;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ShardFileTest {
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    @Test
+    public void shardOfManyValueBlocksIsReadBack() throws Exception {
+        List<byte[]> keys = new ArrayList<>();
+        List<byte[]> values = new ArrayList<>();
+        int valuesLength = 0;
+        for (int i = 0; i < 100000; ++i) {
+            keys.add(("key" + i).getBytes("UTF-8"));
+            values.add(("value number " + i).getBytes("UTF-8"));
+            valuesLength += values.get(i).length;
+        }
+        Path file = tempFolder.getRoot().toPath().resolve("0.dat");
+        ShardFile.write(file, keys, values, TableOptions.Compression.NONE);
+
+        ShardFile shardFile = ShardFile.read(ByteBuffer.wrap(Files.readAllBytes(file)),
+                TableOptions.Compression.NONE);
+        assertEquals(100000, shardFile.getEntriesCount());
+        assertEquals(100000, ShardFile.readEntriesCount(file));
+        ByteBuffer body = shardFile.getBody();
+        // The last value ends the body.
+        byte[] lastValue = new byte[values.get(99999).length];
+        body.position(body.limit() - lastValue.length);
+        body.get(lastValue);
+        assertArrayEquals(values.get(99999), lastValue);
+        assertTrue(valuesLength > 10 * 64 * 1024);
+    }
+}
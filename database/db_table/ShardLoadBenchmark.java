@@ -0,0 +1,52 @@
+package ru.fizteh.fivt.students.dmitry_persiyanov.database.db_table;
+
+import ru.fizteh.fivt.storage.structured.Table;
+import ru.fizteh.fivt.students.dmitry_persiyanov.database.db_table_provider.DbTableProvider;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Measures opening of a table which has all rows in one shard: the provider loads shards eagerly,
+ * so the time is spent in the shard loader. It uses only the public API of the provider, so the same
+ * driver compares loaders of different commits.
+ * Usage: ShardLoadBenchmark <database dir> <rows> <loads>. Table "bench" with the given number of rows
+ * is created if the database has no such table, then it's opened the given number of times.
+ */
+public final class ShardLoadBenchmark {
+    private static final String TABLE_NAME = "bench";
+
+    private ShardLoadBenchmark() {
+    }
+
+    public static void main(final String[] args) throws Exception {
+        if (args.length != 3) {
+            System.err.println("Usage: ShardLoadBenchmark <database dir> <rows> <loads>");
+            System.exit(1);
+        }
+        Path rootDir = Paths.get(args[0]);
+        int rowsCount = Integer.parseInt(args[1]);
+        int loadsCount = Integer.parseInt(args[2]);
+        DbTableProvider provider = new DbTableProvider(rootDir);
+        if (provider.getTable(TABLE_NAME) == null) {
+            Table table = provider.createTable(TABLE_NAME, Arrays.asList(String.class, Integer.class, Boolean.class));
+            Random random = new Random(1);
+            // Keys start with the same char, so the default sharding puts them into one shard.
+            for (int i = 0; i < rowsCount; ++i) {
+                table.put("key" + random.nextInt() + "_" + i, provider.deserialize(table,
+                        "[\"some value text " + i + " lorem ipsum dolor\", " + i + ", true]"));
+            }
+            table.commit();
+        }
+        provider.close();
+        for (int i = 0; i < loadsCount; ++i) {
+            long start = System.nanoTime();
+            provider = new DbTableProvider(rootDir);
+            int size = provider.getTable(TABLE_NAME).size();
+            System.out.printf("load: %.1f ms, %d rows%n", (System.nanoTime() - start) / 1e6, size);
+            provider.close();
+        }
+    }
+}
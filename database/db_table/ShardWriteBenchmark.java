@@ -0,0 +1,44 @@
+package ru.fizteh.fivt.students.dmitry_persiyanov.database.db_table;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Measures ShardFile.write() of one shard of 100k rows ("key N" -> "value number N") for every compression,
+ * the time is the best of 30 writes. ShardFile.write() has the same signature since the shard file format
+ * got value blocks, so the same driver compares writers of different commits.
+ * Usage: ShardWriteBenchmark <shard file>. The file is overwritten.
+ */
+public final class ShardWriteBenchmark {
+    private static final int ROWS_COUNT = 100000;
+    private static final int WRITES_COUNT = 30;
+
+    private ShardWriteBenchmark() {
+    }
+
+    public static void main(final String[] args) throws Exception {
+        if (args.length != 1) {
+            System.err.println("Usage: ShardWriteBenchmark <shard file>");
+            System.exit(1);
+        }
+        Path file = Paths.get(args[0]);
+        List<byte[]> keys = new ArrayList<>();
+        List<byte[]> values = new ArrayList<>();
+        for (int i = 0; i < ROWS_COUNT; ++i) {
+            keys.add(("key" + i).getBytes(StandardCharsets.UTF_8));
+            values.add(("value number " + i).getBytes(StandardCharsets.UTF_8));
+        }
+        for (TableOptions.Compression compression : TableOptions.Compression.values()) {
+            long bestWriteTime = Long.MAX_VALUE;
+            for (int i = 0; i < WRITES_COUNT; ++i) {
+                long start = System.nanoTime();
+                ShardFile.write(file, keys, values, compression);
+                bestWriteTime = Math.min(bestWriteTime, System.nanoTime() - start);
+            }
+            System.out.printf("%s: %.1f ms, %d bytes%n", compression, bestWriteTime / 1e6, file.toFile().length());
+        }
+    }
+}
@@ -0,0 +1,682 @@
+package ru.fizteh.fivt.students.dmitry_persiyanov.database.db_table;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiFunction;
+import java.util.function.UnaryOperator;
+
+/**
+ * Engine which keeps the whole table in memory: a map per shard file (see TableLoaderDumper).
+ * Commits are appended to the commit log and the checkpointer rewrites the changed shard files in background.
+ * Rows of tables with time-to-live are kept as ExpiringRow, the checkpointer purges expired ones as well.
+ * Shards which are the same as their files may be unloaded by the memory budget of the provider.
+ */
+final class ShardedMapEngine implements StorageEngine, MemoryBudget.Participant {
+    private static final int FILES_PER_DIR = TableOptions.FILES_PER_DIR;
+    // Approximate memory taken by an entry of a shard map besides its key and value.
+    private static final int SHARD_ENTRY_OVERHEAD = 64;
+    private static final long CHECKPOINT_INTERVAL_MS = 1000;
+    private static final long PURGE_INTERVAL_MS = 1000;
+
+    private final Path tableDir;
+    private final TableOptions options;
+    // Convert rows of JSON tables between shard files and memory.
+    private final UnaryOperator<byte[]> rowFromFile;
+    private final UnaryOperator<byte[]> rowToFile;
+    // Extracts value of a column from a row for its index, null if the row isn't indexed.
+    private final BiFunction<byte[], Integer, String> indexedValue;
+
+    private final ReadWriteLock tableMapLock = new ReentrantReadWriteLock(true);
+    // Serializes commits with each other and with checkpoints. Commit holds it from prepareCommit()
+    // until publish(). It's taken before tableMapLock.
+    private final ReentrantLock commitLock = new ReentrantLock();
+    private final List<List<Map<String, byte[]>>> lastCommitTableMap;
+    // 1 if shard is in lastCommitTableMap, index is the number of the shard.
+    // Shards of lazily loaded table are read from the disk on the first access.
+    private final AtomicIntegerArray loadedShards;
+    // Bloom filters of shards, null if the filter hasn't been read yet. Lookups of keys rejected
+    // by a filter don't touch the shard, so they don't load it either.
+    private final AtomicReferenceArray<BloomFilter> shardFilters;
+    // Approximate sizes of loaded shards and their sum.
+    private final AtomicLongArray shardBytes;
+    private final AtomicLong residentBytes = new AtomicLong();
+    // Unloads shards when loaded shards of all tables take too much memory, null if there is no limit.
+    private final MemoryBudget memoryBudget;
+    // System.nanoTime() of the last access to every shard, it's updated only if there is a memory budget.
+    private final AtomicLongArray shardAccessTimes;
+    private final LongAdder filterNegativeCount = new LongAdder();
+    private final LongAdder filterFalsePositiveCount = new LongAdder();
+    // Commits are appended to commitLog and reach shard files on checkpoint.
+    private final CommitLog commitLog;
+    // Shards changed since the last checkpoint: directory number -> numbers of files. Guarded by commitLock.
+    private final Map<Integer, Set<Integer>> dirtyShards = new HashMap<>();
+    private final ScheduledExecutorService checkpointer;
+    // Reads and writes shard files in parallel, null if they are handled one by one (see TableOptions).
+    private final ExecutorService ioPool;
+    // Live shard files. It's replaced by checkpoint under tableMapLock's read lock, which is the only writer.
+    private volatile TableManifest manifest;
+    // Sorted keys of the table for scans. It's built on the first scan and then updated by commits.
+    private volatile NavigableSet<String> keyIndex;
+    // Secondary indexes: column -> its index. Checkpoints write index files of the dirty shards.
+    // Guarded by tableMapLock.
+    private final Map<Integer, ColumnIndex> columnIndexes = new TreeMap<>();
+
+    /**
+     * Opens engine of the table, diffs which were committed but haven't reached shard files are replayed.
+     * @param tableDir
+     * @param options
+     * @param lazyLoading If true, shards are read from the disk on the first access instead of here.
+     * @param rowFromFile Converts value of JSON table from shard file to RowCodec form.
+     * @param rowToFile Converts value of JSON table from RowCodec form to shard file form.
+     * @param indexedValue Extracts value of a column from a row in RowCodec form for the index of the column,
+     *                     returns null if the row mustn't be indexed.
+     * @param memoryBudget Budget of the provider which unloads cold shards, null if there is no limit.
+     */
+    ShardedMapEngine(final Path tableDir,
+                     final TableOptions options,
+                     boolean lazyLoading,
+                     final UnaryOperator<byte[]> rowFromFile,
+                     final UnaryOperator<byte[]> rowToFile,
+                     final BiFunction<byte[], Integer, String> indexedValue,
+                     final MemoryBudget memoryBudget) throws IOException {
+        this.tableDir = tableDir;
+        this.options = options;
+        this.rowFromFile = rowFromFile;
+        this.rowToFile = rowToFile;
+        this.indexedValue = indexedValue;
+        lastCommitTableMap = TableLoaderDumper.makeTableMap(options);
+        loadedShards = new AtomicIntegerArray(options.getShardsCount());
+        shardFilters = new AtomicReferenceArray<>(options.getShardsCount());
+        shardBytes = new AtomicLongArray(options.getShardsCount());
+        shardAccessTimes = new AtomicLongArray(options.getShardsCount());
+        this.memoryBudget = memoryBudget;
+        if (options.getIoParallelism() == TableOptions.COMMON_POOL_PARALLELISM) {
+            ioPool = ForkJoinPool.commonPool();
+        } else if (options.getIoParallelism() > 1) {
+            ioPool = new ForkJoinPool(options.getIoParallelism());
+        } else {
+            ioPool = null;
+        }
+        manifest = TableManifest.load(tableDir);
+        if (manifest == null) {
+            manifest = TableLoaderDumper.scanShards(tableDir);
+            manifest.publish(tableDir);
+        }
+        if (!lazyLoading) {
+            loadAllShards();
+        }
+        for (int column : ColumnIndex.listColumns(tableDir)) {
+            columnIndexes.put(column, ColumnIndex.load(tableDir, column, options::getShardNumByKey));
+        }
+        long validLogLength = CommitLog.replay(tableDir, this::commitChangesToTableMap);
+        commitLog = new CommitLog(tableDir, validLogLength, options.getDurability(), options.getSyncIntervalMs());
+        checkpointer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "checkpointer[" + tableDir.toString() + "]");
+            thread.setDaemon(true);
+            return thread;
+        });
+        checkpointer.scheduleWithFixedDelay(() -> {
+            try {
+                checkpoint();
+            } catch (IOException e) {
+                // Commit log still contains all the diffs, so the next checkpoint will retry.
+            }
+        }, CHECKPOINT_INTERVAL_MS, CHECKPOINT_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        if (options.getRowTtlMs() != TableOptions.NO_TTL) {
+            checkpointer.scheduleWithFixedDelay(this::purgeExpiredRows, PURGE_INTERVAL_MS, PURGE_INTERVAL_MS,
+                    TimeUnit.MILLISECONDS);
+        }
+        if (memoryBudget != null) {
+            memoryBudget.register(this);
+        }
+    }
+
+    @Override
+    public byte[] get(final String key) {
+        tableMapLock.readLock().lock();
+        try {
+            int shardNum = options.getShardNumByKey(key);
+            if (!mightContain(shardNum, key)) {
+                return null;
+            }
+            byte[] value = getLoadedShard(shardNum).get(key);
+            if (value == null) {
+                filterFalsePositiveCount.increment();
+            }
+            return value;
+        } finally {
+            tableMapLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean containsKey(final String key) {
+        return get(key) != null;
+    }
+
+    @Override
+    public List<String> keys() {
+        tableMapLock.readLock().lock();
+        try {
+            loadAllShards();
+            List<String> keys = new ArrayList<>();
+            for (List<Map<String, byte[]>> dir : lastCommitTableMap) {
+                for (Map<String, byte[]> shard : dir) {
+                    keys.addAll(shard.keySet());
+                }
+            }
+            return keys;
+        } finally {
+            tableMapLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public List<Map.Entry<String, byte[]>> scan(final String from, boolean fromInclusive, final String to, int limit) {
+        tableMapLock.readLock().lock();
+        try {
+            NavigableSet<String> keys = getKeyIndex();
+            if (from != null) {
+                keys = keys.tailSet(from, fromInclusive);
+            }
+            if (to != null) {
+                keys = keys.headSet(to, false);
+            }
+            List<Map.Entry<String, byte[]>> entries = new ArrayList<>();
+            for (String key : keys) {
+                if (entries.size() == limit) {
+                    break;
+                }
+                entries.add(new AbstractMap.SimpleImmutableEntry<>(key, getTablePartByKey(key).get(key)));
+            }
+            return entries;
+        } finally {
+            tableMapLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        tableMapLock.readLock().lock();
+        try {
+            int size = 0;
+            for (int shardNum = 0; shardNum < options.getShardsCount(); ++shardNum) {
+                if (loadedShards.get(shardNum) == 1) {
+                    size += lastCommitTableMap.get(shardNum / FILES_PER_DIR).get(shardNum % FILES_PER_DIR).size();
+                } else {
+                    TableManifest.Shard shard = manifest.get(shardNum);
+                    size += shard == null ? 0 : shard.getEntriesCount();
+                }
+            }
+            return size;
+        } finally {
+            tableMapLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public long getResidentBytes() {
+        return residentBytes.get();
+    }
+
+    @Override
+    public long getColdestShardAccessTime() {
+        commitLock.lock();
+        try {
+            int shardNum = findColdestEvictableShard();
+            return shardNum == -1 ? Long.MAX_VALUE : shardAccessTimes.get(shardNum);
+        } finally {
+            commitLock.unlock();
+        }
+    }
+
+    /**
+     * Unloads the least recently used shard which has no changes since the last checkpoint, so it's read
+     * from its file on the next access. Its Bloom filter stays in memory.
+     */
+    @Override
+    public boolean evictColdestShard() {
+        // Commits and checkpoints hold commitLock, so the shard can't become dirty meanwhile.
+        commitLock.lock();
+        try {
+            int shardNum = findColdestEvictableShard();
+            if (shardNum == -1) {
+                return false;
+            }
+            tableMapLock.writeLock().lock();
+            try {
+                lastCommitTableMap.get(shardNum / FILES_PER_DIR).get(shardNum % FILES_PER_DIR).clear();
+                loadedShards.set(shardNum, 0);
+                addShardBytes(shardNum, -shardBytes.get(shardNum));
+            } finally {
+                tableMapLock.writeLock().unlock();
+            }
+            return true;
+        } finally {
+            commitLock.unlock();
+        }
+    }
+
+    /**
+     * @return Number of the least recently used loaded shard which isn't dirty, -1 if there is no such shard.
+     * Caller must hold commitLock.
+     */
+    private int findColdestEvictableShard() {
+        int coldest = -1;
+        for (int shardNum = 0; shardNum < options.getShardsCount(); ++shardNum) {
+            Set<Integer> dirtyFiles = dirtyShards.get(shardNum / FILES_PER_DIR);
+            if (loadedShards.get(shardNum) == 1
+                    && (dirtyFiles == null || !dirtyFiles.contains(shardNum % FILES_PER_DIR))
+                    && (coldest == -1 || shardAccessTimes.get(shardNum) - shardAccessTimes.get(coldest) < 0)) {
+                coldest = shardNum;
+            }
+        }
+        return coldest;
+    }
+
+    private void addShardBytes(int shardNum, long bytes) {
+        shardBytes.addAndGet(shardNum, bytes);
+        residentBytes.addAndGet(bytes);
+        if (memoryBudget != null) {
+            memoryBudget.add(bytes);
+        }
+    }
+
+    private static long getEntrySize(final String key, final byte[] value) {
+        return SHARD_ENTRY_OVERHEAD + 2 * key.length() + value.length;
+    }
+
+    @Override
+    public BloomFilter.Stats getBloomFilterStats() {
+        int filterCount = 0;
+        long sizeInBytes = 0;
+        double falsePositiveRateSum = 0;
+        for (int shardNum = 0; shardNum < shardFilters.length(); ++shardNum) {
+            BloomFilter filter = shardFilters.get(shardNum);
+            if (filter != null) {
+                ++filterCount;
+                sizeInBytes += filter.getSizeInBytes();
+                falsePositiveRateSum += filter.getExpectedFalsePositiveRate();
+            }
+        }
+        return new BloomFilter.Stats(filterCount, sizeInBytes,
+                filterCount == 0 ? 0 : falsePositiveRateSum / filterCount,
+                filterNegativeCount.sum(), filterFalsePositiveCount.sum());
+    }
+
+    @Override
+    public boolean createIndex(int column) throws IOException {
+        // Commits wait until the index is built and written, so the commit log replays them on top of it.
+        commitLock.lock();
+        try {
+            ColumnIndex index = new ColumnIndex(column, options::getShardNumByKey);
+            tableMapLock.readLock().lock();
+            try {
+                if (columnIndexes.containsKey(column)) {
+                    return false;
+                }
+                loadAllShards();
+                for (List<Map<String, byte[]>> dir : lastCommitTableMap) {
+                    for (Map<String, byte[]> shard : dir) {
+                        shard.forEach((key, value) -> index.put(key, indexedValue.apply(value, column)));
+                    }
+                }
+                index.dump(tableDir);
+            } finally {
+                tableMapLock.readLock().unlock();
+            }
+            tableMapLock.writeLock().lock();
+            try {
+                columnIndexes.put(column, index);
+            } finally {
+                tableMapLock.writeLock().unlock();
+            }
+            return true;
+        } finally {
+            commitLock.unlock();
+        }
+    }
+
+    @Override
+    public List<Integer> getIndexedColumns() {
+        tableMapLock.readLock().lock();
+        try {
+            return new ArrayList<>(columnIndexes.keySet());
+        } finally {
+            tableMapLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public List<String> getKeysByIndex(int column, final String value) {
+        tableMapLock.readLock().lock();
+        try {
+            return getColumnIndex(column).getKeys(value);
+        } finally {
+            tableMapLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public List<String> getIndexedValues(int column) {
+        tableMapLock.readLock().lock();
+        try {
+            return getColumnIndex(column).getValues();
+        } finally {
+            tableMapLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public PreparedCommit prepareCommit(final Map<String, byte[]> changesMap,
+                                        final Set<String> deletionsSet) throws IOException {
+        commitLock.lock();
+        try {
+            // Shards and filters touched by the diff are read from the disk now, so publish() only puts keys.
+            tableMapLock.readLock().lock();
+            try {
+                changesMap.keySet().forEach(key -> getShardFilter(options.getShardNumByKey(key)));
+                deletionsSet.forEach(this::getTablePartByKey);
+                changesMap.keySet().forEach(this::getTablePartByKey);
+            } finally {
+                tableMapLock.readLock().unlock();
+            }
+            // Log is the last step which may fail, so a failed commit leaves no record in it.
+            commitLog.append(changesMap, deletionsSet);
+        } catch (IOException | RuntimeException e) {
+            commitLock.unlock();
+            throw e;
+        }
+        return () -> {
+            tableMapLock.writeLock().lock();
+            try {
+                commitChangesToTableMap(changesMap, deletionsSet);
+            } finally {
+                tableMapLock.writeLock().unlock();
+                commitLock.unlock();
+            }
+        };
+    }
+
+    @Override
+    public void close() throws IOException {
+        checkpointer.shutdown();
+        try {
+            checkpointer.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            throw new IOException("interrupted while waiting for checkpointer", e);
+        }
+        checkpoint();
+        commitLog.close();
+        if (memoryBudget != null) {
+            memoryBudget.unregister(this);
+            memoryBudget.add(-residentBytes.get());
+        }
+        if (ioPool != null && ioPool != ForkJoinPool.commonPool()) {
+            ioPool.shutdown();
+        }
+    }
+
+    /**
+     * Applies diff to lastCommitTableMap and secondary indexes, and remembers shards touched by it,
+     * so the next checkpoint rewrites only them.
+     */
+    private void commitChangesToTableMap(final Map<String, byte[]> changesMap, final Set<String> deletionsSet) {
+        changesMap.forEach((key, value) -> {
+            int shardNum = options.getShardNumByKey(key);
+            getShardFilter(shardNum).add(key);
+            byte[] oldValue = getLoadedShard(shardNum).put(key, value);
+            addShardBytes(shardNum, getEntrySize(key, value) - (oldValue == null ? 0 : getEntrySize(key, oldValue)));
+            markShardAsDirty(key);
+        });
+        deletionsSet.forEach(deletedKey -> {
+            int shardNum = options.getShardNumByKey(deletedKey);
+            byte[] oldValue = getLoadedShard(shardNum).remove(deletedKey);
+            if (oldValue != null) {
+                addShardBytes(shardNum, -getEntrySize(deletedKey, oldValue));
+            }
+            markShardAsDirty(deletedKey);
+        });
+        if (keyIndex != null) {
+            keyIndex.addAll(changesMap.keySet());
+            keyIndex.removeAll(deletionsSet);
+        }
+        for (ColumnIndex index : columnIndexes.values()) {
+            changesMap.forEach((key, value) -> index.put(key, indexedValue.apply(value, index.getColumn())));
+            deletionsSet.forEach(index::remove);
+        }
+    }
+
+    private ColumnIndex getColumnIndex(int column) {
+        ColumnIndex index = columnIndexes.get(column);
+        if (index == null) {
+            throw new IllegalArgumentException("column " + column + " has no index");
+        }
+        return index;
+    }
+
+    private void markShardAsDirty(final String key) {
+        int shardNum = options.getShardNumByKey(key);
+        dirtyShards.computeIfAbsent(shardNum / FILES_PER_DIR, dirNum -> new HashSet<>()).add(shardNum % FILES_PER_DIR);
+    }
+
+    /**
+     * Writes shards and indexes changed since the last checkpoint and empties commit log.
+     * Commits hold commitLock, so none of them runs in the middle of checkpoint.
+     */
+    private void checkpoint() throws IOException {
+        commitLock.lock();
+        tableMapLock.readLock().lock();
+        try {
+            if (!dirtyShards.isEmpty()) {
+                dump(dirtyShards);
+                for (ColumnIndex index : columnIndexes.values()) {
+                    if (index.isDirty()) {
+                        index.dump(tableDir);
+                    }
+                }
+                commitLog.truncate();
+                // Dump wrote filters of the current keys, deleted keys no longer add false positives.
+                dirtyShards.forEach((dir, files) -> files.forEach(file -> shardFilters.set(dir * FILES_PER_DIR + file,
+                        BloomFilter.of(lastCommitTableMap.get(dir).get(file).keySet()))));
+                dirtyShards.clear();
+            }
+        } finally {
+            tableMapLock.readLock().unlock();
+            commitLock.unlock();
+        }
+    }
+
+    /**
+     * Removes expired rows from loaded shards, one shard at a time: commits and readers wait for
+     * one shard at most, and only if it has expired rows. Removal isn't logged, the next checkpoint
+     * writes the shards without expired rows, and rows which come back after a crash are expired anyway.
+     * Shards which aren't loaded yet are purged after they are loaded.
+     */
+    private void purgeExpiredRows() {
+        for (int shardNum = 0; shardNum < options.getShardsCount(); ++shardNum) {
+            if (loadedShards.get(shardNum) == 0) {
+                continue;
+            }
+            Map<String, byte[]> shard = lastCommitTableMap.get(shardNum / FILES_PER_DIR).get(shardNum % FILES_PER_DIR);
+            // Commit which puts an expired key again must not run between the check and removal.
+            commitLock.lock();
+            try {
+                Set<String> expiredKeys = new HashSet<>();
+                long now = options.getClock().getAsLong();
+                tableMapLock.readLock().lock();
+                try {
+                    shard.forEach((key, value) -> {
+                        if (ExpiringRow.isExpired(value, now)) {
+                            expiredKeys.add(key);
+                        }
+                    });
+                } finally {
+                    tableMapLock.readLock().unlock();
+                }
+                if (!expiredKeys.isEmpty()) {
+                    tableMapLock.writeLock().lock();
+                    try {
+                        commitChangesToTableMap(Collections.emptyMap(), expiredKeys);
+                    } finally {
+                        tableMapLock.writeLock().unlock();
+                    }
+                }
+            } finally {
+                commitLock.unlock();
+            }
+        }
+    }
+
+    private void dump(final Map<Integer, Set<Integer>> dirtyShards) throws IOException {
+        if (options.getRowFormat() == TableOptions.RowFormat.JSON) {
+            // Only dirty shards are written, so only they are converted.
+            List<List<Map<String, byte[]>>> jsonTableMap = new ArrayList<>();
+            for (List<Map<String, byte[]>> dir : lastCommitTableMap) {
+                jsonTableMap.add(new ArrayList<>(dir));
+            }
+            dirtyShards.forEach((dir, files) -> files.forEach(file -> {
+                Map<String, byte[]> jsonShard = new HashMap<>();
+                lastCommitTableMap.get(dir).get(file)
+                        .forEach((key, value) -> jsonShard.put(key, rowToFile.apply(value)));
+                jsonTableMap.get(dir).set(file, jsonShard);
+            }));
+            manifest = TableLoaderDumper.dumpShards(tableDir, jsonTableMap, dirtyShards, options.getCompression(),
+                    manifest, ioPool);
+        } else {
+            manifest = TableLoaderDumper.dumpShards(tableDir, lastCommitTableMap, dirtyShards,
+                    options.getCompression(), manifest, ioPool);
+        }
+    }
+
+    private Map<String, byte[]> getTablePartByKey(final String key) {
+        return getLoadedShard(options.getShardNumByKey(key));
+    }
+
+    /**
+     * Returns shard from lastCommitTableMap reading it from the disk if it hasn't been loaded yet.
+     * Readers call it under tableMapLock's read lock, so loading is synchronized on the shard itself.
+     */
+    private Map<String, byte[]> getLoadedShard(int shardNum) {
+        int dir = shardNum / FILES_PER_DIR;
+        int file = shardNum % FILES_PER_DIR;
+        Map<String, byte[]> shard = lastCommitTableMap.get(dir).get(file);
+        if (memoryBudget != null) {
+            shardAccessTimes.lazySet(shardNum, System.nanoTime());
+        }
+        if (loadedShards.get(shardNum) == 0) {
+            synchronized (shard) {
+                if (loadedShards.get(shardNum) == 0) {
+                    try {
+                        TableLoaderDumper.loadShard(tableDir, shardNum, manifest.get(shardNum), shard,
+                                options.getCompression());
+                        if (options.getRowFormat() == TableOptions.RowFormat.JSON) {
+                            shard.replaceAll((key, value) -> rowFromFile.apply(value));
+                        }
+                    } catch (IOException e) {
+                        throw new RuntimeException("can't load shard " + dir + "/" + file + " of table \'"
+                                + tableDir.toString() + "\', [" + e.getMessage() + "]");
+                    }
+                    loadedShards.set(shardNum, 1);
+                    // The shard is counted once it can be evicted, otherwise eviction could miss it.
+                    long bytes = 0;
+                    for (Map.Entry<String, byte[]> entry : shard.entrySet()) {
+                        bytes += getEntrySize(entry.getKey(), entry.getValue());
+                    }
+                    addShardBytes(shardNum, bytes);
+                }
+            }
+        }
+        return shard;
+    }
+
+    private boolean mightContain(int shardNum, final String key) {
+        if (getShardFilter(shardNum).mightContain(key)) {
+            return true;
+        }
+        filterNegativeCount.increment();
+        return false;
+    }
+
+    /**
+     * Returns filter of the shard reading it from the disk, or building it from the shard if the shard
+     * is already in memory or has no filter file. Loading is synchronized on the shard as in getLoadedShard().
+     */
+    private BloomFilter getShardFilter(int shardNum) {
+        BloomFilter filter = shardFilters.get(shardNum);
+        if (filter == null) {
+            int dir = shardNum / FILES_PER_DIR;
+            int file = shardNum % FILES_PER_DIR;
+            synchronized (lastCommitTableMap.get(dir).get(file)) {
+                filter = shardFilters.get(shardNum);
+                if (filter == null) {
+                    if (loadedShards.get(shardNum) == 0) {
+                        try {
+                            filter = TableLoaderDumper.loadShardFilter(tableDir, shardNum, manifest.get(shardNum));
+                        } catch (IOException e) {
+                            throw new RuntimeException("can't load filter of shard " + dir + "/" + file
+                                    + " of table \'" + tableDir.toString() + "\', [" + e.getMessage() + "]");
+                        }
+                    }
+                    if (filter == null) {
+                        filter = BloomFilter.of(getLoadedShard(shardNum).keySet());
+                    }
+                    shardFilters.set(shardNum, filter);
+                }
+            }
+        }
+        return filter;
+    }
+
+    /**
+     * Readers call it under tableMapLock's read lock, so commits don't change the table while the index is built.
+     */
+    private NavigableSet<String> getKeyIndex() {
+        if (keyIndex == null) {
+            synchronized (this) {
+                if (keyIndex == null) {
+                    loadAllShards();
+                    NavigableSet<String> index = new TreeSet<>();
+                    for (List<Map<String, byte[]>> dir : lastCommitTableMap) {
+                        for (Map<String, byte[]> shard : dir) {
+                            index.addAll(shard.keySet());
+                        }
+                    }
+                    keyIndex = index;
+                }
+            }
+        }
+        return keyIndex;
+    }
+
+    private void loadAllShards() {
+        List<Callable<Map<String, byte[]>>> tasks = new ArrayList<>();
+        for (int shardNum = 0; shardNum < options.getShardsCount(); ++shardNum) {
+            if (loadedShards.get(shardNum) == 0) {
+                int taskShardNum = shardNum;
+                tasks.add(() -> getLoadedShard(taskShardNum));
+            }
+        }
+        try {
+            TableLoaderDumper.runAll(ioPool, tasks);
+        } catch (IOException e) {
+            // getLoadedShard() doesn't throw checked exceptions.
+            throw new RuntimeException("can't load table \'" + tableDir.toString() + "\', [" + e.getMessage() + "]");
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package ru.fizteh.fivt.students.dmitry_persiyanov.database.db_table;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class ShardedMapEngineTest {
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+    private Path tableDir;
+    private ShardedMapEngine engine;
+
+    @Before
+    public void setUp() throws Exception {
+        tableDir = tempFolder.newFolder().toPath();
+        engine = new ShardedMapEngine(tableDir, new TableOptions(), false, row -> row, row -> row,
+                (row, column) -> null, null);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        engine.close();
+    }
+
+    @Test
+    public void expiredRowsArePurgedInBackground() throws Exception {
+        engine.close();
+        engine = new ShardedMapEngine(tableDir, new TableOptions().setRowTtl(1000), false, row -> row, row -> row,
+                (row, column) -> null, null);
+        long now = System.currentTimeMillis();
+        Map<String, byte[]> rows = new HashMap<>();
+        rows.put("expired", ExpiringRow.wrap(new byte[] {1}, now - 1));
+        rows.put("live", ExpiringRow.wrap(new byte[] {2}, now + TimeUnit.HOURS.toMillis(1)));
+        engine.commit(rows, Collections.emptySet());
+        long deadline = now + TimeUnit.SECONDS.toMillis(10);
+        while (engine.get("expired") != null && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertNull(engine.get("expired"));
+        assertArrayEquals(new byte[] {2}, ExpiringRow.unwrap(engine.get("live")));
+    }
+
+    @Test
+    public void readersDontWaitForPreparedCommit() throws Exception {
+        engine.commit(Collections.singletonMap("a", new byte[] {1}), Collections.emptySet());
+        StorageEngine.PreparedCommit preparedCommit = engine.prepareCommit(
+                Collections.singletonMap("a", new byte[] {2}), Collections.emptySet());
+        ExecutorService reader = Executors.newSingleThreadExecutor();
+        try {
+            assertArrayEquals(new byte[] {1}, reader.submit(() -> engine.get("a")).get(10, TimeUnit.SECONDS));
+            assertEquals(1, (int) reader.submit(engine::size).get(10, TimeUnit.SECONDS));
+        } finally {
+            reader.shutdown();
+        }
+        preparedCommit.publish();
+        assertArrayEquals(new byte[] {2}, engine.get("a"));
+        engine.close();
+        engine = new ShardedMapEngine(tableDir, new TableOptions(), true, row -> row, row -> row,
+                (row, column) -> null, null);
+        assertArrayEquals(new byte[] {2}, engine.get("a"));
+    }
+}
@@ -0,0 +1,117 @@
+package ru.fizteh.fivt.students.dmitry_persiyanov.database.db_table;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Keeps committed rows of a table. DbTable keeps uncommitted diffs and passes them here on commit.
+ * Keys are Strings, values are rows in RowCodec form.
+ * Implementations are thread-safe: DbTable serializes commits, but reads run concurrently
+ * with each other and with the background work of the engine.
+ */
+interface StorageEngine extends AutoCloseable {
+    /**
+     * @return Committed value of the key or null.
+     */
+    byte[] get(String key);
+
+    boolean containsKey(String key);
+
+    /**
+     * @return All committed keys, in no particular order.
+     */
+    List<String> keys();
+
+    /**
+     * @param from The first key of the range, null means no lower bound.
+     * @param fromInclusive If false, the key from itself is skipped.
+     * @param to The key after the range (it's excluded), null means no upper bound.
+     * @param limit Maximal number of returned entries.
+     * @return Committed entries with keys in the range, in key order.
+     */
+    List<Map.Entry<String, byte[]>> scan(String from, boolean fromInclusive, String to, int limit);
+
+    /**
+     * @return Number of committed keys. It's called only when the table is opened,
+     * DbTable counts the size of later commits itself.
+     */
+    int size();
+
+    /**
+     * @return Approximate number of bytes taken by rows which the engine keeps in memory.
+     */
+    long getResidentBytes();
+
+    /**
+     * @return Counters of Bloom filters which let lookups of absent keys skip the storage.
+     */
+    BloomFilter.Stats getBloomFilterStats();
+
+    /**
+     * Builds secondary index of the column from committed rows and keeps it up to date with later commits.
+     * Index survives reopening of the table.
+     * @return False if the column already has an index.
+     * @throws UnsupportedOperationException If the engine has no indexes.
+     */
+    default boolean createIndex(int column) throws IOException {
+        throw new UnsupportedOperationException("indexes aren't supported by " + getClass().getSimpleName());
+    }
+
+    /**
+     * @return Columns which have indexes, in ascending order.
+     */
+    default List<Integer> getIndexedColumns() {
+        return Collections.emptyList();
+    }
+
+    /**
+     * @param column Indexed column.
+     * @param value Value of the column in the form the index keeps it (see DbTableIndex).
+     * @return Committed keys which rows have the value in the column, in key order.
+     */
+    default List<String> getKeysByIndex(int column, String value) {
+        throw new IllegalArgumentException("column " + column + " has no index");
+    }
+
+    /**
+     * @return Distinct values of the indexed column in committed rows, in ascending order.
+     */
+    default List<String> getIndexedValues(int column) {
+        throw new IllegalArgumentException("column " + column + " has no index");
+    }
+
+    /**
+     * Commit which is durable, but isn't visible to readers yet.
+     */
+    interface PreparedCommit {
+        /**
+         * Makes the diff visible to readers. It does no I/O, so the caller may exclude readers meanwhile.
+         */
+        void publish();
+    }
+
+    /**
+     * Makes committed diff durable and does all the slow work of applying it, while readers still see
+     * the previous committed state. Other commits wait until the returned commit is published,
+     * so the caller must publish it right away, even if it fails.
+     * @param changesMap
+     * @param deletionsSet Keys which must be removed, they don't intersect keys of changesMap.
+     */
+    PreparedCommit prepareCommit(Map<String, byte[]> changesMap, Set<String> deletionsSet) throws IOException;
+
+    /**
+     * Applies committed diff. The diff is durable when the method returns.
+     */
+    default void commit(Map<String, byte[]> changesMap, Set<String> deletionsSet) throws IOException {
+        prepareCommit(changesMap, deletionsSet).publish();
+    }
+
+    /**
+     * Stops background work and writes everything which isn't in the table files yet.
+     */
+    @Override
+    void close() throws IOException;
+}
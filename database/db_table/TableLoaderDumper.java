@@ -5,36 +5,180 @@ import ru.fizteh.fivt.students.dmitry_persiyanov.database.db_table_provider.util
 import ru.fizteh.fivt.students.dmitry_persiyanov.database.exceptions.TableCorruptedException;
 
 import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
+import java.nio.file.DirectoryNotEmptyException;
 import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipException;
 
 public final class TableLoaderDumper {
     private static final String TABLE_SIGNATURE_FILENAME = "signature.tsv";
+    private static final String TABLE_OPTIONS_FILENAME = "options.tsv";
+    private static final String SHARDING_OPTION = "sharding";
+    private static final String SHARDS_COUNT_OPTION = "shards";
+    private static final String ROW_FORMAT_OPTION = "rows";
+    private static final String ENGINE_OPTION = "engine";
+    private static final String STORAGE_OPTION = "storage";
+    private static final String ROW_CACHE_OPTION = "cache";
+    private static final String ROW_CACHE_POLICY_OPTION = "cache_policy";
+    private static final String COMPRESSION_OPTION = "compression";
+    private static final String IO_PARALLELISM_OPTION = "io_parallelism";
+    private static final String DURABILITY_OPTION = "durability";
+    private static final String SYNC_INTERVAL_OPTION = "sync_interval_ms";
+    private static final String ROW_TTL_OPTION = "ttl_ms";
+    private static final List<String> KNOWN_OPTIONS = Arrays.asList(SHARDING_OPTION, SHARDS_COUNT_OPTION,
+            ROW_FORMAT_OPTION, ENGINE_OPTION, STORAGE_OPTION, ROW_CACHE_OPTION, ROW_CACHE_POLICY_OPTION,
+            COMPRESSION_OPTION, IO_PARALLELISM_OPTION, DURABILITY_OPTION, SYNC_INTERVAL_OPTION, ROW_TTL_OPTION);
     private static final String DIRS_EXTENSION = ".dir";
     private static final String FILES_EXTENSION = ".dat";
+    // Bloom filter of shard N.dir/M.dat is kept in N.dir/M.bloom.
+    private static final String FILTERS_EXTENSION = ".bloom";
+    private static final String TEMP_EXTENSION = ".tmp";
     private static final String ENCODING = "UTF-8";
+    private static final Charset CHARSET = Charset.forName(ENCODING);
+    // Smaller files are read with one read() call: mapping them costs more than copying.
+    private static final long MIN_MAPPED_FILE_SIZE = 64 * 1024;
+    private static final int DEFLATE_BUFFER_SIZE = 8192;
 
     public static void createTable(final Path tableDir, final List<Class<?>> columnTypes) throws IOException {
         dumpSignatureFile(tableDir, columnTypes);
     }
 
-    public static void loadTable(final Path tableDir,
-                                 List<List<Map<String, String>>> tableHashMap,
-                                 List<Class<?>> columnTypes) throws IOException {
-        readSignatureFile(tableDir, columnTypes);
-        try (DirectoryStream<Path> stream = Files.newDirectoryStream(tableDir)) {
-            for (Path dir : stream) {
-                if (!Utility.getNameByPath(dir).equals(TABLE_SIGNATURE_FILENAME)) {
-                    int indexOfDir = parseNum(dir);
-                    loadDirectory(dir, tableHashMap.get(indexOfDir));
+    public static void createTable(final Path tableDir,
+                                   final List<Class<?>> columnTypes,
+                                   final TableOptions options) throws IOException {
+        dumpSignatureFile(tableDir, columnTypes);
+        dumpOptionsFile(tableDir, options);
+    }
+
+    /**
+     * Makes empty in-memory table: list of directories, every directory is a list of shards.
+     */
+    public static List<List<Map<String, byte[]>>> makeTableMap(final TableOptions options) {
+        int shardsCount = options.getShardsCount();
+        List<List<Map<String, byte[]>>> tableHashMap = new ArrayList<>(options.getDirsCount());
+        for (int i = 0; i < options.getDirsCount(); ++i) {
+            int filesInDir = Math.min(TableOptions.FILES_PER_DIR, shardsCount - i * TableOptions.FILES_PER_DIR);
+            tableHashMap.add(new ArrayList<>(filesInDir));
+            for (int j = 0; j < filesInDir; ++j) {
+                if (options.getStorage() == TableOptions.Storage.OFF_HEAP) {
+                    tableHashMap.get(i).add(new OffHeapShardMap());
+                } else {
+                    tableHashMap.get(i).add(new HashMap<String, byte[]>());
                 }
             }
-        } catch (NumberFormatException e) {
-            throw new TableCorruptedException(Utility.getNameByPath(tableDir));
+        }
+        return tableHashMap;
+    }
+
+    /**
+     * Reads options of the table. Tables which were created without options get the options
+     * of the original layout: first char sharding and JSON values.
+     */
+    public static TableOptions loadOptions(final Path tableDir) throws IOException {
+        TableOptions options = new TableOptions().setRowFormat(TableOptions.RowFormat.JSON);
+        Path optionsPath = tableDir.resolve(TABLE_OPTIONS_FILENAME);
+        if (!Files.exists(optionsPath)) {
+            return options;
+        }
+        Map<String, String> values = new HashMap<>();
+        try (BufferedReader bufReader = Files.newBufferedReader(optionsPath, CHARSET)) {
+            String line;
+            while ((line = bufReader.readLine()) != null) {
+                if (!line.trim().isEmpty()) {
+                    String[] keyValue = line.split("\t", 2);
+                    if (keyValue.length != 2) {
+                        throw new TableCorruptedException(Utility.getNameByPath(tableDir));
+                    }
+                    values.put(keyValue[0].trim(), keyValue[1].trim());
+                }
+            }
+        }
+        try {
+            for (String option : values.keySet()) {
+                if (!KNOWN_OPTIONS.contains(option)) {
+                    throw new IllegalArgumentException("unknown option: " + option);
+                }
+            }
+            if (values.containsKey(SHARDING_OPTION)) {
+                options.setSharding(TableOptions.ShardingScheme.valueOf(values.get(SHARDING_OPTION)),
+                        Integer.parseInt(values.get(SHARDS_COUNT_OPTION)));
+            }
+            if (values.containsKey(ROW_FORMAT_OPTION)) {
+                options.setRowFormat(TableOptions.RowFormat.valueOf(values.get(ROW_FORMAT_OPTION)));
+            }
+            if (values.containsKey(ENGINE_OPTION)) {
+                options.setEngine(TableOptions.Engine.valueOf(values.get(ENGINE_OPTION)));
+            }
+            if (values.containsKey(STORAGE_OPTION)) {
+                options.setStorage(TableOptions.Storage.valueOf(values.get(STORAGE_OPTION)));
+            }
+            if (values.containsKey(COMPRESSION_OPTION)) {
+                options.setCompression(TableOptions.Compression.valueOf(values.get(COMPRESSION_OPTION)));
+            }
+            if (values.containsKey(ROW_CACHE_OPTION)) {
+                options.setRowCache(Integer.parseInt(values.get(ROW_CACHE_OPTION)),
+                        RowCache.EvictionPolicy.valueOf(values.get(ROW_CACHE_POLICY_OPTION)));
+            }
+            if (values.containsKey(IO_PARALLELISM_OPTION)) {
+                options.setIoParallelism(Integer.parseInt(values.get(IO_PARALLELISM_OPTION)));
+            }
+            if (values.containsKey(DURABILITY_OPTION)) {
+                options.setDurability(TableOptions.Durability.valueOf(values.get(DURABILITY_OPTION)),
+                        Integer.parseInt(values.get(SYNC_INTERVAL_OPTION)));
+            }
+            if (values.containsKey(ROW_TTL_OPTION)) {
+                options.setRowTtl(Long.parseLong(values.get(ROW_TTL_OPTION)));
+            }
+        } catch (IllegalArgumentException | NullPointerException e) {
+            // NullPointerException means that an option is given without the one it's paired with.
+            throw new TableCorruptedException(Utility.getNameByPath(tableDir), e);
+        }
+        return options;
+    }
+
+    private static void dumpOptionsFile(final Path tableDir, final TableOptions options) throws IOException {
+        try (BufferedWriter bufWriter = Files.newBufferedWriter(tableDir.resolve(TABLE_OPTIONS_FILENAME), CHARSET)) {
+            bufWriter.write(SHARDING_OPTION + "\t" + options.getShardingScheme().name());
+            bufWriter.newLine();
+            bufWriter.write(SHARDS_COUNT_OPTION + "\t" + options.getShardsCount());
+            bufWriter.newLine();
+            bufWriter.write(ROW_FORMAT_OPTION + "\t" + options.getRowFormat().name());
+            bufWriter.newLine();
+            bufWriter.write(ENGINE_OPTION + "\t" + options.getEngine().name());
+            bufWriter.newLine();
+            bufWriter.write(STORAGE_OPTION + "\t" + options.getStorage().name());
+            bufWriter.newLine();
+            bufWriter.write(COMPRESSION_OPTION + "\t" + options.getCompression().name());
+            bufWriter.newLine();
+            bufWriter.write(ROW_CACHE_OPTION + "\t" + options.getRowCacheCapacity());
+            bufWriter.newLine();
+            bufWriter.write(ROW_CACHE_POLICY_OPTION + "\t" + options.getRowCachePolicy().name());
+            bufWriter.newLine();
+            bufWriter.write(IO_PARALLELISM_OPTION + "\t" + options.getIoParallelism());
+            bufWriter.newLine();
+            bufWriter.write(DURABILITY_OPTION + "\t" + options.getDurability().name());
+            bufWriter.newLine();
+            bufWriter.write(SYNC_INTERVAL_OPTION + "\t" + options.getSyncIntervalMs());
+            bufWriter.newLine();
+            bufWriter.write(ROW_TTL_OPTION + "\t" + options.getRowTtlMs());
+            bufWriter.newLine();
         }
     }
 
@@ -67,135 +211,439 @@ public final class TableLoaderDumper {
         }
     }
 
-    private static void loadDirectory(final Path directory, List<Map<String, String>> dirHashMap) throws IOException {
-        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
-            for (Path file : stream) {
-                int fileNum = parseNum(file);
-                loadFile(file, dirHashMap.get(fileNum));
+    /**
+     * Reads only the signature of the table. Shards can be loaded later by loadShard().
+     */
+    public static void loadSignature(final Path tableDir, List<Class<?>> columnTypes) throws IOException {
+        readSignatureFile(tableDir, columnTypes);
+    }
+
+    /**
+     * Loads the shard from its live file.
+     * @param tableDir
+     * @param shardNum
+     * @param shard Live file of the shard from the manifest, null means empty shard.
+     * @param fileHashMap
+     * @param compression Compression of the table, see TableOptions.
+     */
+    static void loadShard(final Path tableDir, int shardNum, final TableManifest.Shard shard,
+                          Map<String, byte[]> fileHashMap,
+                          final TableOptions.Compression compression) throws IOException {
+        if (shard != null) {
+            loadFile(makeShardPath(tableDir, shardNum, shard.getGeneration()), fileHashMap, compression);
+        }
+    }
+
+    /**
+     * Reads Bloom filter of the shard, the filter of an empty shard is empty.
+     * @return Filter or null if the shard has no valid filter file (e.g. it was written before filters
+     * were introduced), then the filter must be built from the keys of the shard.
+     */
+    static BloomFilter loadShardFilter(final Path tableDir, int shardNum,
+                                       final TableManifest.Shard shard) throws IOException {
+        if (shard == null) {
+            return new BloomFilter(0);
+        }
+        Path filterPath = makeFilterPath(makeShardPath(tableDir, shardNum, shard.getGeneration()));
+        if (!Files.exists(filterPath)) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(filterPath)))) {
+            return BloomFilter.readFrom(in);
+        } catch (EOFException | IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Makes manifest of a table which has none: the table was written before manifests were introduced
+     * and its shards are dirNum.dir/fileNum.dat, or it has just been created.
+     */
+    static TableManifest scanShards(final Path tableDir) throws IOException {
+        TableManifest manifest = new TableManifest();
+        for (Path file : listShardFiles(tableDir)) {
+            int shardNum = parseNum(file.getParent()) * TableOptions.FILES_PER_DIR + parseNum(file);
+            if (file.equals(makeShardPath(tableDir, shardNum, 0))) {
+                manifest.put(shardNum, new TableManifest.Shard(0, countShardKeys(file)));
             }
         }
+        return manifest;
     }
 
-    private static void loadFile(final Path file, Map<String, String> fileHashMap) throws IOException {
-        try (RandomAccessFile raFile = new RandomAccessFile(file.toFile(), "r")) {
-            if (raFile.length() != 0) {
-                try (ByteArrayOutputStream buf = new ByteArrayOutputStream()) {
-                    long currentSeek = 0;
-                    LinkedList<String> keys = new LinkedList<>();
-                    LinkedList<Integer> offsets = new LinkedList<>();
-                    // Reading keys and offsets.
-                    currentSeek = readKeyAndOffset(raFile, currentSeek, keys, offsets);
-                    int firstOffset = offsets.getFirst();
-                    while (currentSeek != firstOffset) {
-                        currentSeek = readKeyAndOffset(raFile, currentSeek, keys, offsets);
-                    }
-                    // End of reading keys and offsets.
-                    // Reading values and filling hashmap.
-                    Iterator<String> keysIter = keys.iterator();
-                    Iterator<Integer> offsetIter = offsets.iterator();
-                    offsetIter.next();
-                    while (offsetIter.hasNext()) {
-                        int nextOffset = offsetIter.next();
-                        while (currentSeek != nextOffset) {
-                            buf.write(raFile.readByte());
-                            currentSeek++;
-                        }
-                        fileHashMap.put(keysIter.next(), buf.toString(ENCODING));
-                        buf.reset();
-                    }
-                    // Reading last value.
-                    while (currentSeek != raFile.length()) {
-                        buf.write(raFile.readByte());
-                        currentSeek++;
+    /**
+     * Counts keys of shard file reading only its header, or its key directory
+     * if it's a file of the original format.
+     */
+    private static int countShardKeys(final Path file) throws IOException {
+        try {
+            int entriesCount = ShardFile.readEntriesCount(file);
+            if (entriesCount >= 0) {
+                return entriesCount;
+            }
+            ByteBuffer buf = readFile(file);
+            if (!buf.hasRemaining()) {
+                return 0;
+            }
+            List<Integer> offsets = new ArrayList<>();
+            parseKeyDirectory(buf, null, offsets);
+            return offsets.size();
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new TableCorruptedException(file.toString(), e);
+        }
+    }
+
+    /**
+     * @return Live shard files of the table, all shard files if it has no manifest.
+     */
+    public static List<Path> listShardFiles(final Path tableDir) throws IOException {
+        List<Path> files = new ArrayList<>();
+        TableManifest manifest = TableManifest.load(tableDir);
+        if (manifest != null) {
+            manifest.getShards().forEach((shardNum, shard) ->
+                    files.add(makeShardPath(tableDir, shardNum, shard.getGeneration())));
+            return files;
+        }
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(tableDir)) {
+            for (Path dir : stream) {
+                if (!isServiceFile(dir) && Files.isDirectory(dir)) {
+                    try (DirectoryStream<Path> dirStream = Files.newDirectoryStream(dir, "*" + FILES_EXTENSION)) {
+                        dirStream.forEach(files::add);
                     }
-                    fileHashMap.put(keysIter.next(), buf.toString(ENCODING));
-                    buf.reset();
                 }
             }
         }
+        return files;
     }
 
-    private static long readKeyAndOffset(RandomAccessFile raFile, long currentSeek, LinkedList<String> keys,
-                                        LinkedList<Integer> offsets) throws IOException {
-        try (ByteArrayOutputStream buf = new ByteArrayOutputStream()) {
-            int b = -1;
-            while ((b = (int) raFile.readByte()) != 0) {
-                currentSeek++;
-                buf.write(b);
+    /**
+     * Checks header, checksums and key directory of the shard file. Values aren't decoded
+     * and files of the original format are checked only for the structure of their key directory.
+     * @return Description of the damage or null if the file is fine.
+     */
+    public static String verifyShardFile(final Path file) {
+        try {
+            ByteBuffer buf = readFile(file);
+            if (!buf.hasRemaining()) {
+                return null;
+            }
+            ShardFile shardFile = ShardFile.read(buf, TableOptions.Compression.NONE);
+            List<Integer> offsets = new ArrayList<>();
+            parseKeyDirectory(shardFile.getBody(), null, offsets);
+            if (shardFile.getEntriesCount() >= 0 && shardFile.getEntriesCount() != offsets.size()) {
+                return file.toString() + ": header has " + shardFile.getEntriesCount() + " entries, directory has "
+                        + offsets.size();
+            }
+            int uncompressedEnd = shardFile.getCompression() == TableOptions.Compression.NONE
+                    ? shardFile.getBody().limit() : Integer.MAX_VALUE;
+            for (int i = 0; i < offsets.size(); ++i) {
+                int valueEnd = i + 1 < offsets.size() ? offsets.get(i + 1) : uncompressedEnd;
+                if (offsets.get(i) > valueEnd) {
+                    return file.toString() + ": wrong value offsets: " + offsets.get(i) + ", " + valueEnd;
+                }
             }
-            currentSeek++;
-            keys.add(buf.toString(ENCODING));
-            buf.reset();
-            int offset = raFile.readInt();
-            offsets.add(offset);
-            currentSeek += 4;
+            return null;
+        } catch (IOException | BufferUnderflowException | IllegalArgumentException e) {
+            return file.toString() + ": " + e.getMessage();
         }
-        return currentSeek;
     }
 
-    public static void dumpTable(final Path tableDir,
-                                  List<List<Map<String, String>>> tableHashMap) throws IOException {
-        for (int i = 0; i < tableHashMap.size(); ++i) {
-            dumpDirectory(makeDirPath(tableDir, i), tableHashMap.get(i));
+    private static void loadFile(final Path file, Map<String, byte[]> fileHashMap,
+                                 final TableOptions.Compression compression) throws IOException {
+        ByteBuffer fileBuf = readFile(file);
+        if (!fileBuf.hasRemaining()) {
+            return;
+        }
+        try {
+            ShardFile shardFile = ShardFile.read(fileBuf, compression);
+            ByteBuffer buf = shardFile.getBody();
+            List<String> keys = new ArrayList<>();
+            List<Integer> offsets = new ArrayList<>();
+            parseKeyDirectory(buf, keys, offsets);
+            if (shardFile.getCompression() == TableOptions.Compression.DEFLATE) {
+                inflateValues(buf, keys, offsets, fileHashMap);
+                return;
+            }
+            for (int i = 0; i < keys.size(); ++i) {
+                int valueEnd = (i + 1 < offsets.size()) ? offsets.get(i + 1) : buf.limit();
+                fileHashMap.put(keys.get(i), copySlice(buf, offsets.get(i), valueEnd));
+            }
+        } catch (BufferUnderflowException | IllegalArgumentException | EOFException | ZipException e) {
+            throw new TableCorruptedException(file.toString(), e);
         }
     }
 
-    private static void dumpDirectory(final Path dirPath, List<Map<String, String>> dirHashMap) throws IOException {
-        if (dirHashMap == null || isDirHashMapEmpty(dirHashMap)) {
-            Files.deleteIfExists(dirPath);
-        } else {
-            if (!Files.exists(dirPath)) {
-                Files.createDirectory(dirPath);
+    /**
+     * Reads values from Deflate stream which follows the key directory. Offsets of the directory are
+     * offsets in the uncompressed file, so they give lengths of all values except the last one,
+     * which ends with the stream. Values are inflated right into their arrays.
+     */
+    private static void inflateValues(final ByteBuffer buf, final List<String> keys, final List<Integer> offsets,
+                                      Map<String, byte[]> fileHashMap) throws IOException {
+        buf.position(offsets.get(0));
+        Inflater inflater = new Inflater();
+        try {
+            DataInputStream dataIn = new DataInputStream(
+                    new InflaterInputStream(asInputStream(buf), inflater, DEFLATE_BUFFER_SIZE));
+            for (int i = 0; i + 1 < keys.size(); ++i) {
+                int valueLength = offsets.get(i + 1) - offsets.get(i);
+                if (valueLength < 0) {
+                    throw new IllegalArgumentException("wrong value offsets: " + offsets.get(i) + ", "
+                            + offsets.get(i + 1));
+                }
+                byte[] value = new byte[valueLength];
+                dataIn.readFully(value);
+                fileHashMap.put(keys.get(i), value);
             }
-            for (int i = 0; i < dirHashMap.size(); ++i) {
-                dumpFile(makeFilePathFromDirPath(dirPath, i), dirHashMap.get(i));
+            ByteArrayOutputStream lastValue = new ByteArrayOutputStream();
+            byte[] chunk = new byte[DEFLATE_BUFFER_SIZE];
+            int length;
+            while ((length = dataIn.read(chunk)) != -1) {
+                lastValue.write(chunk, 0, length);
             }
+            fileHashMap.put(keys.get(keys.size() - 1), lastValue.toByteArray());
+        } finally {
+            // Stream doesn't end inflater which it hasn't created.
+            inflater.end();
         }
     }
 
-    private static boolean isDirHashMapEmpty(final List<Map<String, String>> dirHashMap) {
-        for (Map<String, String> map : dirHashMap) {
-            if (!map.isEmpty()) {
-                return false;
+    private static InputStream asInputStream(final ByteBuffer buf) {
+        return new InputStream() {
+            @Override
+            public int read() {
+                return buf.hasRemaining() ? buf.get() & 0xff : -1;
+            }
+
+            @Override
+            public int read(final byte[] bytes, int offset, int length) {
+                if (!buf.hasRemaining()) {
+                    return -1;
+                }
+                length = Math.min(length, buf.remaining());
+                buf.get(bytes, offset, length);
+                return length;
+            }
+        };
+    }
+
+    private static ByteBuffer readFile(final Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long fileSize = channel.size();
+            if (fileSize > Integer.MAX_VALUE) {
+                throw new TableCorruptedException(file.toString());
+            } else if (fileSize < MIN_MAPPED_FILE_SIZE) {
+                ByteBuffer buf = ByteBuffer.allocate((int) fileSize);
+                while (buf.hasRemaining() && channel.read(buf) != -1) {
+                    continue;
+                }
+                buf.flip();
+                return buf;
+            } else {
+                return channel.map(FileChannel.MapMode.READ_ONLY, 0, fileSize);
             }
         }
-        return true;
     }
 
-    private static void dumpFile(final Path filePath, Map<String, String> fileHashMap) throws IOException {
-        if (fileHashMap == null || fileHashMap.size() == 0) {
-            Files.deleteIfExists(filePath);
-        } else {
-            try (RandomAccessFile raFile = new RandomAccessFile(filePath.toString(), "rw")) {
-                raFile.setLength(0);
-                Set<String> keys = fileHashMap.keySet();
-                LinkedList<Integer> offsetsPlaces = new LinkedList<>();
-                for (String key : keys) {
-                    raFile.write(key.getBytes(ENCODING));
-                    raFile.write('\0');
-                    offsetsPlaces.add((int) raFile.getFilePointer());
-                    raFile.writeInt(0);
+    /**
+     * Parses key directory of shard file: ([key bytes]['\0'][offset of the value: int])*.
+     * Directory ends where the first value begins, every value ends where the next one begins.
+     * @param keys Decoded keys are appended here. If null, keys aren't decoded.
+     */
+    private static void parseKeyDirectory(ByteBuffer buf, List<String> keys, List<Integer> offsets) {
+        do {
+            int keyStart = buf.position();
+            while (buf.get() != '\0') {
+                continue;
+            }
+            if (keys != null) {
+                keys.add(decodeSlice(buf, keyStart, buf.position() - 1));
+            }
+            offsets.add(buf.getInt());
+        } while (buf.position() < offsets.get(0));
+    }
+
+    private static byte[] copySlice(final ByteBuffer buf, int from, int to) {
+        if (from > to || to > buf.limit()) {
+            throw new IllegalArgumentException("wrong value offsets: " + from + ", " + to);
+        }
+        byte[] bytes = new byte[to - from];
+        ByteBuffer slice = buf.duplicate();
+        slice.position(from);
+        slice.get(bytes);
+        return bytes;
+    }
+
+    private static String decodeSlice(final ByteBuffer buf, int from, int to) {
+        ByteBuffer slice = buf.duplicate();
+        slice.limit(to);
+        slice.position(from);
+        return CHARSET.decode(slice).toString();
+    }
+
+    /**
+     * Rewrites only the given shards, so the cost depends on the shards touched by a commit
+     * and not on the size of the whole table. Every shard gets a file of the next generation,
+     * then the new manifest is published and only then files of the previous generation are deleted.
+     * @param tableDir
+     * @param tableHashMap
+     * @param shards Directory number -> numbers of files in this directory which must be rewritten.
+     * @param compression Compression of the table, see TableOptions.
+     * @param manifest Current manifest of the table, it isn't changed.
+     * @param ioPool Pool which writes the shards, see runAll().
+     * @return Published manifest.
+     */
+    static TableManifest dumpShards(final Path tableDir,
+                                    List<List<Map<String, byte[]>>> tableHashMap,
+                                    Map<Integer, Set<Integer>> shards,
+                                    final TableOptions.Compression compression,
+                                    final TableManifest manifest,
+                                    final ExecutorService ioPool) throws IOException {
+        List<Integer> shardNums = new ArrayList<>();
+        List<Callable<TableManifest.Shard>> tasks = new ArrayList<>();
+        List<Path> replacedFiles = new ArrayList<>();
+        for (Map.Entry<Integer, Set<Integer>> dirShards : shards.entrySet()) {
+            int dirNum = dirShards.getKey();
+            for (int fileNum : dirShards.getValue()) {
+                int shardNum = dirNum * TableOptions.FILES_PER_DIR + fileNum;
+                Map<String, byte[]> fileHashMap = tableHashMap.get(dirNum).get(fileNum);
+                TableManifest.Shard oldShard = manifest.get(shardNum);
+                if (oldShard != null) {
+                    replacedFiles.add(makeShardPath(tableDir, shardNum, oldShard.getGeneration()));
                 }
-                Collection<String> values = fileHashMap.values();
-                int currentOffset = (int) raFile.getFilePointer();
-                Iterator<Integer> offsetsPlacesIter = offsetsPlaces.iterator();
-                for (String val : values) {
-                    byte[] valBytes = val.getBytes(ENCODING);
-                    raFile.write(valBytes);
-                    int offsetPlace = offsetsPlacesIter.next();
-                    raFile.seek(offsetPlace);
-                    raFile.writeInt(currentOffset);
-                    currentOffset += valBytes.length;
-                    raFile.seek(currentOffset);
+                int generation = oldShard == null ? 1 : oldShard.getGeneration() + 1;
+                shardNums.add(shardNum);
+                tasks.add(() -> {
+                    if (fileHashMap.isEmpty()) {
+                        return null;
+                    }
+                    Files.createDirectories(makeDirPath(tableDir, dirNum));
+                    dumpFile(makeShardPath(tableDir, shardNum, generation), fileHashMap, compression);
+                    return new TableManifest.Shard(generation, fileHashMap.size());
+                });
+            }
+        }
+        List<TableManifest.Shard> newShards = runAll(ioPool, tasks);
+        TableManifest newManifest = manifest.copy();
+        for (int i = 0; i < shardNums.size(); ++i) {
+            if (newShards.get(i) == null) {
+                newManifest.remove(shardNums.get(i));
+            } else {
+                newManifest.put(shardNums.get(i), newShards.get(i));
+            }
+        }
+        newManifest.publish(tableDir);
+        for (Path file : replacedFiles) {
+            Files.deleteIfExists(file);
+            Files.deleteIfExists(makeFilterPath(file));
+        }
+        for (int dirNum : shards.keySet()) {
+            deleteDirIfEmpty(makeDirPath(tableDir, dirNum));
+        }
+        return newManifest;
+    }
+
+    /**
+     * Runs the tasks and waits for all of them.
+     * @param ioPool Pool which runs the tasks, null means that they run one by one on the calling thread.
+     * @return Results of the tasks in the same order.
+     * @throws IOException The first exception thrown by the tasks, if any.
+     */
+    static <T> List<T> runAll(final ExecutorService ioPool, final List<Callable<T>> tasks) throws IOException {
+        List<T> results = new ArrayList<>(tasks.size());
+        try {
+            if (ioPool == null) {
+                for (Callable<T> task : tasks) {
+                    results.add(task.call());
                 }
+            } else {
+                for (Future<T> future : ioPool.invokeAll(tasks)) {
+                    results.add(future.get());
+                }
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            } else if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while waiting for shard I/O", e);
+        } catch (IOException | RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException(e);
+        }
+        return results;
+    }
+
+    private static void deleteDirIfEmpty(final Path dirPath) throws IOException {
+        try {
+            Files.deleteIfExists(dirPath);
+        } catch (DirectoryNotEmptyException e) {
+            // Directory has other shards.
+        }
+    }
+
+    /**
+     * Writes shard file and its Bloom filter. The file is written to a temporary file, forced to the disk
+     * and renamed, so the file under its name is always complete.
+     */
+    private static void dumpFile(final Path filePath, Map<String, byte[]> fileHashMap,
+                                 final TableOptions.Compression compression) throws IOException {
+        List<byte[]> keys = new ArrayList<>(fileHashMap.size());
+        List<byte[]> values = new ArrayList<>(fileHashMap.size());
+        for (Map.Entry<String, byte[]> entry : fileHashMap.entrySet()) {
+            keys.add(entry.getKey().getBytes(CHARSET));
+            values.add(entry.getValue());
+        }
+        Path tempPath = filePath.resolveSibling(filePath.getFileName().toString() + TEMP_EXTENSION);
+        ShardFile.write(tempPath, keys, values, compression);
+        Files.move(tempPath, filePath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        dumpFilter(makeFilterPath(filePath), BloomFilter.of(fileHashMap.keySet()));
+    }
+
+    /**
+     * Writes value area of shard file. With DEFLATE compression all values are one Deflate stream,
+     * offsets of the key directory are still offsets in uncompressed body.
+     */
+    static void writeValues(final OutputStream out, final List<byte[]> values,
+                            final TableOptions.Compression compression) throws IOException {
+        if (compression == TableOptions.Compression.NONE) {
+            for (byte[] value : values) {
+                out.write(value);
+            }
+            return;
+        }
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            DeflaterOutputStream deflaterOut = new DeflaterOutputStream(out, deflater, DEFLATE_BUFFER_SIZE);
+            for (byte[] value : values) {
+                deflaterOut.write(value);
             }
+            deflaterOut.finish();
+        } finally {
+            deflater.end();
         }
     }
 
+    // Filter file is replaced atomically, so readers never see a half-written one.
+    private static void dumpFilter(final Path filterPath, final BloomFilter filter) throws IOException {
+        Path tempPath = filterPath.resolveSibling(filterPath.getFileName().toString() + TEMP_EXTENSION);
+        try (FileOutputStream fileOut = new FileOutputStream(tempPath.toFile());
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut))) {
+            filter.writeTo(out);
+            out.flush();
+            fileOut.getChannel().force(false);
+        }
+        Files.move(tempPath, filterPath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
     public static void checkTableForCorruptness(final Path tablePath) {
         try (DirectoryStream<Path> stream = Files.newDirectoryStream(tablePath)) {
             for (Path file : stream) {
-                if (!Utility.getNameByPath(file).equals(TABLE_SIGNATURE_FILENAME)) {
+                if (!isServiceFile(file)) {
                     checkInnerDirectory(file);
                 }
             }
@@ -218,12 +666,31 @@ public final class TableLoaderDumper {
     }
 
 
+    private static boolean isServiceFile(final Path path) {
+        String name = Utility.getNameByPath(path);
+        return name.equals(TABLE_SIGNATURE_FILENAME) || name.equals(TABLE_OPTIONS_FILENAME)
+                || name.equals(CommitLog.LOG_FILENAME) || name.equals(LsmEngine.SEGMENTS_DIRNAME)
+                || name.startsWith(TableManifest.FILENAME) || name.startsWith(ColumnIndex.FILENAME_PREFIX);
+    }
+
     private static Path makeDirPath(final Path tablePath, Integer dirNum) {
         return tablePath.resolve(dirNum + DIRS_EXTENSION);
     }
 
-    private static Path makeFilePathFromDirPath(final Path dirPath, Integer fileNum) {
-        return Paths.get(dirPath.toString(), fileNum.toString() + FILES_EXTENSION).normalize();
+    /**
+     * @return dirNum.dir/fileNum.dat for generation 0, dirNum.dir/fileNum.generation.dat for others.
+     */
+    private static Path makeShardPath(final Path tablePath, int shardNum, int generation) {
+        Integer fileNum = shardNum % TableOptions.FILES_PER_DIR;
+        String fileName = fileNum.toString() + (generation == 0 ? "" : "." + generation) + FILES_EXTENSION;
+        return Paths.get(makeDirPath(tablePath, shardNum / TableOptions.FILES_PER_DIR).toString(), fileName)
+                .normalize();
+    }
+
+    private static Path makeFilterPath(final Path filePath) {
+        String fileName = filePath.getFileName().toString();
+        return filePath.resolveSibling(fileName.substring(0, fileName.length() - FILES_EXTENSION.length())
+                + FILTERS_EXTENSION);
     }
 
     private static int parseNum(final Path path) {
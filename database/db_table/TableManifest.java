@@ -0,0 +1,130 @@
+package ru.fizteh.fivt.students.dmitry_persiyanov.database.db_table;
+
+import ru.fizteh.fivt.students.dmitry_persiyanov.database.db_table_provider.utils.Utility;
+import ru.fizteh.fivt.students.dmitry_persiyanov.database.exceptions.TableCorruptedException;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * List of live shard files of a table which is published atomically after shard files are written.
+ * Loaders trust only the manifest: shard which isn't listed is empty, files of other generations are garbage
+ * of an interrupted checkpoint. So a crash in the middle of a checkpoint leaves the previous manifest
+ * with complete files, and the commit log replays the rest.
+ * File format: lines [directory number]/[file number]\t[generation]\t[entries count].
+ */
+final class TableManifest {
+    static final String FILENAME = "manifest.tsv";
+    private static final Charset CHARSET = Charset.forName("UTF-8");
+    private static final String TEMP_EXTENSION = ".tmp";
+
+    /**
+     * Live file of one shard.
+     */
+    static final class Shard {
+        private final int generation;
+        private final int entriesCount;
+
+        Shard(int generation, int entriesCount) {
+            this.generation = generation;
+            this.entriesCount = entriesCount;
+        }
+
+        /**
+         * @return Generation which is a part of the file name, 0 is the file of a table written
+         * before manifests were introduced.
+         */
+        int getGeneration() {
+            return generation;
+        }
+
+        int getEntriesCount() {
+            return entriesCount;
+        }
+    }
+
+    // Shard number -> its live file.
+    private final Map<Integer, Shard> shards;
+
+    TableManifest() {
+        this(new TreeMap<>());
+    }
+
+    private TableManifest(final Map<Integer, Shard> shards) {
+        this.shards = shards;
+    }
+
+    /**
+     * @return Live file of the shard or null if the shard is empty.
+     */
+    Shard get(int shardNum) {
+        return shards.get(shardNum);
+    }
+
+    void put(int shardNum, final Shard shard) {
+        shards.put(shardNum, shard);
+    }
+
+    void remove(int shardNum) {
+        shards.remove(shardNum);
+    }
+
+    Map<Integer, Shard> getShards() {
+        return Collections.unmodifiableMap(shards);
+    }
+
+    TableManifest copy() {
+        return new TableManifest(new TreeMap<>(shards));
+    }
+
+    /**
+     * @return Manifest of the table or null if the table has none.
+     */
+    static TableManifest load(final Path tableDir) throws IOException {
+        Path manifestPath = tableDir.resolve(FILENAME);
+        if (!Files.exists(manifestPath)) {
+            return null;
+        }
+        TableManifest manifest = new TableManifest();
+        try (BufferedReader bufReader = Files.newBufferedReader(manifestPath, CHARSET)) {
+            String line;
+            while ((line = bufReader.readLine()) != null) {
+                String[] fields = line.split("[/\t]");
+                if (fields.length != 4) {
+                    throw new IllegalArgumentException("wrong manifest line: " + line);
+                }
+                int shardNum = Integer.parseInt(fields[0]) * TableOptions.FILES_PER_DIR + Integer.parseInt(fields[1]);
+                manifest.put(shardNum, new Shard(Integer.parseInt(fields[2]), Integer.parseInt(fields[3])));
+            }
+        } catch (IllegalArgumentException e) {
+            throw new TableCorruptedException(Utility.getNameByPath(tableDir), e);
+        }
+        return manifest;
+    }
+
+    /**
+     * Replaces manifest of the table atomically. Shard files it lists must be on the disk already.
+     */
+    void publish(final Path tableDir) throws IOException {
+        Path manifestPath = tableDir.resolve(FILENAME);
+        Path tempPath = tableDir.resolve(FILENAME + TEMP_EXTENSION);
+        try (FileOutputStream fileOut = new FileOutputStream(tempPath.toFile());
+             BufferedWriter bufWriter = new BufferedWriter(new OutputStreamWriter(fileOut, CHARSET))) {
+            for (Map.Entry<Integer, Shard> shard : shards.entrySet()) {
+                bufWriter.write(shard.getKey() / TableOptions.FILES_PER_DIR + "/"
+                        + shard.getKey() % TableOptions.FILES_PER_DIR + "\t" + shard.getValue().getGeneration()
+                        + "\t" + shard.getValue().getEntriesCount());
+                bufWriter.newLine();
+            }
+            bufWriter.flush();
+            fileOut.getChannel().force(false);
+        }
+        Files.move(tempPath, manifestPath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+}
@@ -0,0 +1,370 @@
+package ru.fizteh.fivt.students.dmitry_persiyanov.database.db_table;
+
+import java.util.function.LongSupplier;
+
+/**
+ * Settings of a table which are chosen when the table is created.
+ * They are stored in the table directory next to the signature file.
+ */
+public final class TableOptions {
+    public enum ShardingScheme {
+        /**
+         * Shard is chosen by the first char of the key: 16 directories with 16 files each.
+         * It's the layout of tables created without options.
+         */
+        FIRST_CHAR {
+            @Override
+            int getShardNum(final String key, int shardsCount) {
+                char b = key.charAt(0);
+                int dir = b % FILES_PER_DIR;
+                int file = b / FILES_PER_DIR % FILES_PER_DIR;
+                return dir * FILES_PER_DIR + file;
+            }
+        },
+        /**
+         * Shard is chosen by the hash of the whole key, so keys with common prefix are spread evenly.
+         */
+        HASH {
+            @Override
+            int getShardNum(final String key, int shardsCount) {
+                // Finalizer of MurmurHash3 mixes all bits of String.hashCode() into the lower ones.
+                int h = key.hashCode();
+                h ^= h >>> 16;
+                h *= 0x85ebca6b;
+                h ^= h >>> 13;
+                h *= 0xc2b2ae35;
+                h ^= h >>> 16;
+                return (h & Integer.MAX_VALUE) % shardsCount;
+            }
+        };
+
+        abstract int getShardNum(String key, int shardsCount);
+    }
+
+    public enum RowFormat {
+        /**
+         * Values in shard files are JSON strings. It's the format of tables created without options.
+         */
+        JSON,
+        /**
+         * Values in shard files are rows in RowCodec form, the same as in memory.
+         */
+        BINARY
+    }
+
+    public enum Engine {
+        /**
+         * Whole table is kept in memory, changed shard files are rewritten in background (see ShardedMapEngine).
+         * Sharding, row format and storage options apply only to this engine.
+         */
+        SHARDED_MAP,
+        /**
+         * Log-structured merge engine (see LsmEngine): the table doesn't have to fit in memory
+         * and the cost of a commit doesn't depend on the size of the table. Rows are kept in BINARY format.
+         */
+        LSM
+    }
+
+    public enum Storage {
+        /**
+         * Committed rows are kept in Java heap maps.
+         */
+        HEAP,
+        /**
+         * Committed rows are kept in direct buffers (see OffHeapShardMap), so the cost of garbage collection
+         * doesn't depend on the size of the table. Uncommitted changes are still kept in heap.
+         */
+        OFF_HEAP
+    }
+
+    public enum Compression {
+        /**
+         * Values in shard files are written as they are.
+         */
+        NONE,
+        /**
+         * Value area of every shard file is a Deflate stream, key directories aren't compressed.
+         */
+        DEFLATE
+    }
+
+    public enum Durability {
+        /**
+         * Commit log is never forced, the OS writes it to the disk when it likes. A crash of the machine
+         * may lose recent commits, a crash of the process doesn't.
+         */
+        NONE,
+        /**
+         * Commit log is forced before commit() returns. It's the durability of tables created without options.
+         */
+        COMMIT,
+        /**
+         * Commit log is forced in background every sync interval, so a crash of the machine loses
+         * at most the commits of the last interval.
+         */
+        PERIODIC
+    }
+
+    // Shard number n lives in file (n % FILES_PER_DIR).dat of directory (n / FILES_PER_DIR).dir.
+    public static final int FILES_PER_DIR = 16;
+    public static final int DEFAULT_SHARDS_COUNT = FILES_PER_DIR * FILES_PER_DIR;
+    public static final int MAX_SHARDS_COUNT = 1 << 16;
+    // I/O parallelism which means the common ForkJoinPool instead of a pool of the table.
+    public static final int COMMON_POOL_PARALLELISM = 0;
+    public static final int MAX_IO_PARALLELISM = 256;
+    public static final int DEFAULT_SYNC_INTERVAL_MS = 1000;
+    // Time-to-live which means that rows never expire.
+    public static final long NO_TTL = 0;
+
+    private ShardingScheme shardingScheme = ShardingScheme.FIRST_CHAR;
+    private int shardsCount = DEFAULT_SHARDS_COUNT;
+    private RowFormat rowFormat = RowFormat.BINARY;
+    private Engine engine = Engine.SHARDED_MAP;
+    private Storage storage = Storage.HEAP;
+    private Compression compression = Compression.NONE;
+    private int rowCacheCapacity = 0;
+    private RowCache.EvictionPolicy rowCachePolicy = RowCache.EvictionPolicy.LRU;
+    private int ioParallelism = 1;
+    private Durability durability = Durability.COMMIT;
+    private int syncIntervalMs = DEFAULT_SYNC_INTERVAL_MS;
+    private long rowTtlMs = NO_TTL;
+    private LongSupplier clock = System::currentTimeMillis;
+
+    public ShardingScheme getShardingScheme() {
+        return shardingScheme;
+    }
+
+    public int getShardsCount() {
+        return shardsCount;
+    }
+
+    /**
+     * @param shardingScheme
+     * @param shardsCount Number of shard files. FIRST_CHAR scheme supports only DEFAULT_SHARDS_COUNT.
+     * @return this
+     */
+    public TableOptions setSharding(final ShardingScheme shardingScheme, int shardsCount) {
+        if (shardingScheme == null) {
+            throw new IllegalArgumentException("sharding scheme is null");
+        } else if (shardsCount <= 0 || shardsCount > MAX_SHARDS_COUNT) {
+            throw new IllegalArgumentException("shards count must be in [1, " + MAX_SHARDS_COUNT + "]: "
+                    + shardsCount);
+        } else if (shardingScheme == ShardingScheme.FIRST_CHAR && shardsCount != DEFAULT_SHARDS_COUNT) {
+            throw new IllegalArgumentException(shardingScheme + " sharding supports only "
+                    + DEFAULT_SHARDS_COUNT + " shards");
+        }
+        this.shardingScheme = shardingScheme;
+        this.shardsCount = shardsCount;
+        return this;
+    }
+
+    public RowFormat getRowFormat() {
+        return rowFormat;
+    }
+
+    /**
+     * @param rowFormat Format of values in shard files. In memory rows are always kept in binary form.
+     * @return this
+     */
+    public TableOptions setRowFormat(final RowFormat rowFormat) {
+        if (rowFormat == null) {
+            throw new IllegalArgumentException("row format is null");
+        }
+        this.rowFormat = rowFormat;
+        return this;
+    }
+
+    public Engine getEngine() {
+        return engine;
+    }
+
+    /**
+     * @param engine How committed rows are stored.
+     * @return this
+     */
+    public TableOptions setEngine(final Engine engine) {
+        if (engine == null) {
+            throw new IllegalArgumentException("engine is null");
+        }
+        this.engine = engine;
+        return this;
+    }
+
+    public Storage getStorage() {
+        return storage;
+    }
+
+    /**
+     * @param storage Where committed rows are kept in memory.
+     * @return this
+     */
+    public TableOptions setStorage(final Storage storage) {
+        if (storage == null) {
+            throw new IllegalArgumentException("storage is null");
+        }
+        this.storage = storage;
+        return this;
+    }
+
+    public Compression getCompression() {
+        return compression;
+    }
+
+    /**
+     * @param compression How values are written to shard files.
+     * @return this
+     */
+    public TableOptions setCompression(final Compression compression) {
+        if (compression == null) {
+            throw new IllegalArgumentException("compression is null");
+        }
+        this.compression = compression;
+        return this;
+    }
+
+    public int getRowCacheCapacity() {
+        return rowCacheCapacity;
+    }
+
+    public RowCache.EvictionPolicy getRowCachePolicy() {
+        return rowCachePolicy;
+    }
+
+    /**
+     * @param capacity Number of decoded committed rows which are kept by the table, 0 disables the cache.
+     * @param policy
+     * @return this
+     */
+    public TableOptions setRowCache(int capacity, final RowCache.EvictionPolicy policy) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("row cache capacity is negative: " + capacity);
+        } else if (policy == null) {
+            throw new IllegalArgumentException("row cache policy is null");
+        }
+        this.rowCacheCapacity = capacity;
+        this.rowCachePolicy = policy;
+        return this;
+    }
+
+    public int getIoParallelism() {
+        return ioParallelism;
+    }
+
+    /**
+     * @param parallelism Number of shard files which are read or written at once when the table is loaded
+     * or checkpointed: 1 means one by one on the calling thread, COMMON_POOL_PARALLELISM means
+     * the common ForkJoinPool, others mean a ForkJoinPool of the table with this parallelism.
+     * @return this
+     */
+    public TableOptions setIoParallelism(int parallelism) {
+        if (parallelism < 0 || parallelism > MAX_IO_PARALLELISM) {
+            throw new IllegalArgumentException("I/O parallelism must be in [0, " + MAX_IO_PARALLELISM + "]: "
+                    + parallelism);
+        }
+        this.ioParallelism = parallelism;
+        return this;
+    }
+
+    public Durability getDurability() {
+        return durability;
+    }
+
+    public int getSyncIntervalMs() {
+        return syncIntervalMs;
+    }
+
+    /**
+     * @param durability When committed diffs are forced to the disk.
+     * @param syncIntervalMs Interval of background sync, it's used only by PERIODIC durability.
+     * @return this
+     */
+    public TableOptions setDurability(final Durability durability, int syncIntervalMs) {
+        if (durability == null) {
+            throw new IllegalArgumentException("durability is null");
+        } else if (syncIntervalMs <= 0) {
+            throw new IllegalArgumentException("sync interval isn't positive: " + syncIntervalMs);
+        }
+        this.durability = durability;
+        this.syncIntervalMs = syncIntervalMs;
+        return this;
+    }
+
+    /**
+     * @param durability When committed diffs are forced to the disk, PERIODIC durability
+     * uses DEFAULT_SYNC_INTERVAL_MS.
+     * @return this
+     */
+    public TableOptions setDurability(final Durability durability) {
+        return setDurability(durability, DEFAULT_SYNC_INTERVAL_MS);
+    }
+
+    public long getRowTtlMs() {
+        return rowTtlMs;
+    }
+
+    /**
+     * @param ttlMs Time-to-live of rows: a row disappears this number of milliseconds after the commit
+     * which put it, NO_TTL means that rows never expire. Expired rows aren't seen by reads and the table
+     * purges them in background, but size() may count them until then.
+     * @return this
+     */
+    public TableOptions setRowTtl(long ttlMs) {
+        if (ttlMs < 0) {
+            throw new IllegalArgumentException("row time-to-live is negative: " + ttlMs);
+        }
+        this.rowTtlMs = ttlMs;
+        return this;
+    }
+
+    public LongSupplier getClock() {
+        return clock;
+    }
+
+    /**
+     * @param clock Source of the current time in milliseconds since the epoch, which expiration times
+     * of rows are counted from. Unlike other options, it isn't stored: a table loaded from the disk uses
+     * the system clock.
+     * @return this
+     */
+    public TableOptions setClock(final LongSupplier clock) {
+        if (clock == null) {
+            throw new IllegalArgumentException("clock is null");
+        }
+        this.clock = clock;
+        return this;
+    }
+
+    /**
+     * Checks options which are valid one by one, but don't work together.
+     * @throws IllegalArgumentException
+     */
+    public void validate() {
+        if (engine == Engine.LSM && rowFormat != RowFormat.BINARY) {
+            throw new IllegalArgumentException("LSM engine keeps rows only in BINARY format");
+        } else if (engine == Engine.LSM && compression != Compression.NONE) {
+            throw new IllegalArgumentException("LSM engine doesn't compress segments");
+        } else if (rowTtlMs != NO_TTL && rowFormat != RowFormat.BINARY) {
+            throw new IllegalArgumentException("rows with time-to-live are kept only in BINARY format");
+        } else if (rowTtlMs != NO_TTL && rowCacheCapacity != 0) {
+            throw new IllegalArgumentException("rows with time-to-live aren't cached");
+        }
+    }
+
+    public int getShardNumByKey(final String key) {
+        return shardingScheme.getShardNum(key, shardsCount);
+    }
+
+    public int getDirsCount() {
+        return (shardsCount + FILES_PER_DIR - 1) / FILES_PER_DIR;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "[engine=" + engine + ", sharding=" + shardingScheme
+                + ", shards=" + shardsCount + ", rows=" + rowFormat + ", storage=" + storage
+                + ", compression=" + compression + ", cache=" + rowCacheCapacity
+                + ", cache_policy=" + rowCachePolicy + ", io_parallelism=" + ioParallelism
+                + ", durability=" + durability + ", sync_interval_ms=" + syncIntervalMs
+                + ", ttl_ms=" + rowTtlMs + "]";
+    }
+}
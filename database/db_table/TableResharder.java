@@ -0,0 +1,105 @@
+package ru.fizteh.fivt.students.dmitry_persiyanov.database.db_table;
+
+import ru.fizteh.fivt.storage.structured.Table;
+import ru.fizteh.fivt.students.dmitry_persiyanov.database.db_table_provider.DbTableProvider;
+import ru.fizteh.fivt.students.dmitry_persiyanov.database.db_table_provider.utils.Utility;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Offline tool which moves all rows of a table into a new shard layout (and rewrites them in the
+ * row format of the new options). Nobody may use the table while it's being resharded.
+ * Usage: TableResharder <table dir> <shards count>, keys are spread over the shards by hash.
+ */
+public final class TableResharder {
+    // The new table is built in a separate database next to the original one.
+    private static final String TEMP_ROOT_DIR_PREFIX = ".resharding.";
+    private static final String OLD_TABLE_DIR_PREFIX = "old.";
+
+    public static void main(final String[] args) {
+        if (args.length != 2) {
+            System.err.println("Usage: TableResharder <table dir> <shards count>");
+            System.exit(1);
+        }
+        try {
+            TableOptions options = new TableOptions()
+                    .setSharding(TableOptions.ShardingScheme.HASH, Integer.parseInt(args[1]));
+            reshard(Paths.get(args[0]), options);
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Cannot reshard table: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Rewrites the table with new options. The new table is written next to the database directory
+     * and replaces the old one only when it's complete.
+     * @param tableDir
+     * @param newOptions
+     */
+    public static void reshard(final Path tableDir, final TableOptions newOptions) throws IOException {
+        String tableName = Utility.getNameByPath(tableDir);
+        Path rootDir = tableDir.toAbsolutePath().getParent();
+        Path tempRootDir = rootDir.resolveSibling(TEMP_ROOT_DIR_PREFIX + Utility.getNameByPath(rootDir));
+        Files.createDirectory(tempRootDir);
+        try {
+            DbTableProvider oldTableProvider = new DbTableProvider(rootDir);
+            DbTableProvider newTableProvider = new DbTableProvider(tempRootDir);
+            try {
+                Table oldTable = oldTableProvider.getTable(tableName);
+                if (oldTable == null) {
+                    throw new IllegalArgumentException("there is no table " + tableDir.toString());
+                }
+                List<Class<?>> columnTypes = new ArrayList<>();
+                for (int i = 0; i < oldTable.getColumnsCount(); ++i) {
+                    columnTypes.add(oldTable.getColumnType(i));
+                }
+                Table newTable = newTableProvider.createTable(tableName, columnTypes, newOptions);
+                for (String key : oldTable.list()) {
+                    newTable.put(key, oldTable.get(key));
+                }
+                newTable.commit();
+                // Indexes don't depend on the layout of shards, so they are just built again.
+                for (int column : ((DbTable) oldTable).getIndexedColumns()) {
+                    newTableProvider.createIndex(tableName, column);
+                }
+            } finally {
+                closeTableProvider(oldTableProvider);
+                closeTableProvider(newTableProvider);
+            }
+            Path oldTableDir = tempRootDir.resolve(OLD_TABLE_DIR_PREFIX + tableName);
+            Files.move(tableDir, oldTableDir, StandardCopyOption.ATOMIC_MOVE);
+            Files.move(tempRootDir.resolve(tableName), tableDir, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            deleteRecursively(tempRootDir);
+        }
+    }
+
+    private static void closeTableProvider(final DbTableProvider tableProvider) throws IOException {
+        try {
+            tableProvider.close();
+        } catch (Exception e) {
+            throw new IOException("can't close database: " + e.getMessage(), e);
+        }
+    }
+
+    private static void deleteRecursively(final Path dir) throws IOException {
+        Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
@@ -0,0 +1,53 @@
+package ru.fizteh.fivt.students.dmitry_persiyanov.database.db_table;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import ru.fizteh.fivt.storage.structured.Table;
+import ru.fizteh.fivt.students.dmitry_persiyanov.database.db_table_provider.DbTableProvider;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class TableResharderTest {
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+    private Path dbDir;
+    private List<Class<?>> signature = Arrays.asList(String.class, Integer.class);
+
+    @Before
+    public void setUp() throws Exception {
+        dbDir = tempFolder.newFolder().toPath();
+    }
+
+    @Test
+    public void reshardedTableKeepsAllRows() throws Exception {
+        DbTableProvider db = new DbTableProvider(dbDir);
+        Table table = db.createTable("table", signature);
+        for (int i = 0; i < 100; ++i) {
+            table.put("user" + i, db.deserialize(table, "[\"name" + i + "\", " + i + "]"));
+        }
+        table.commit();
+        table.remove("user0");
+        table.commit();
+        db.close();
+
+        TableResharder.reshard(dbDir.resolve("table"),
+                new TableOptions().setSharding(TableOptions.ShardingScheme.HASH, 64));
+        assertEquals(TableOptions.ShardingScheme.HASH,
+                TableLoaderDumper.loadOptions(dbDir.resolve("table")).getShardingScheme());
+        assertEquals(1, Files.list(dbDir).count());
+
+        db = new DbTableProvider(dbDir);
+        table = db.getTable("table");
+        assertEquals(99, table.size());
+        assertNull(table.get("user0"));
+        assertEquals("[\"name42\", 42]", db.serialize(table, table.get("user42")));
+        db.close();
+    }
+}
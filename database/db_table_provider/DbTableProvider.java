@@ -5,7 +5,11 @@ import ru.fizteh.fivt.storage.structured.Storeable;
 import ru.fizteh.fivt.storage.structured.Table;
 import ru.fizteh.fivt.storage.structured.TableProvider;
 import ru.fizteh.fivt.students.dmitry_persiyanov.database.db_table.DbTable;
+import ru.fizteh.fivt.students.dmitry_persiyanov.database.db_table.MemoryBudget;
+import ru.fizteh.fivt.students.dmitry_persiyanov.database.db_table.PackedTableRow;
+import ru.fizteh.fivt.students.dmitry_persiyanov.database.db_table.RowSchema;
 import ru.fizteh.fivt.students.dmitry_persiyanov.database.db_table.TableLoaderDumper;
+import ru.fizteh.fivt.students.dmitry_persiyanov.database.db_table.TableOptions;
 import ru.fizteh.fivt.students.dmitry_persiyanov.database.db_table.TableRow;
 import ru.fizteh.fivt.students.dmitry_persiyanov.database.db_table_provider.utils.SyntaxCheckers;
 import ru.fizteh.fivt.students.dmitry_persiyanov.database.db_table_provider.utils.TypeStringTranslator;
@@ -19,10 +23,15 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.text.ParseException;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 public final class DbTableProvider implements TableProvider, AutoCloseable {
+    public static final long NO_MEMORY_BUDGET = 0;
     // Matches quoted string.
     private static final String STRING_REGEX = "\"([^\"]*)\"";
     // Matches one column in JSON input (JSON: ["John", "Doe", 42], columns: "John", "Doe", 42).
@@ -38,8 +47,30 @@ public final class DbTableProvider implements TableProvider, AutoCloseable {
 
     private boolean closed = false;
     private ReadWriteLock closedLock = new ReentrantReadWriteLock();
+    private final boolean lazyLoading;
+    // Null if loaded shards aren't limited.
+    private final MemoryBudget memoryBudget;
 
     public DbTableProvider(final Path rootDir) {
+        this(rootDir, false);
+    }
+
+    public DbTableProvider(final Path rootDir, boolean lazyLoading) {
+        this(rootDir, lazyLoading, NO_MEMORY_BUDGET);
+    }
+
+    /**
+     * @param rootDir
+     * @param lazyLoading If true, shards of tables are read from the disk on the first access
+     *                    instead of when a table is opened.
+     * @param memoryBudgetBytes Approximate limit of memory taken by loaded shards of all tables,
+     *                          or NO_MEMORY_BUDGET. Least recently used shards without uncheckpointed
+     *                          changes are unloaded when it's exceeded, so it's better used with lazyLoading.
+     */
+    public DbTableProvider(final Path rootDir, boolean lazyLoading, long memoryBudgetBytes) {
+        if (memoryBudgetBytes < 0) {
+            throw new IllegalArgumentException("memory budget is negative: " + memoryBudgetBytes);
+        }
         if (rootDir == null) {
             throw new NullPointerException();
         } else if (!Files.exists(rootDir)) {
@@ -52,6 +83,8 @@ public final class DbTableProvider implements TableProvider, AutoCloseable {
             throw new IllegalArgumentException(rootDir.toString() + " isn't a directory");
         }
         this.rootDir = rootDir;
+        this.lazyLoading = lazyLoading;
+        this.memoryBudget = memoryBudgetBytes == NO_MEMORY_BUDGET ? null : new MemoryBudget(memoryBudgetBytes);
         try {
             loadTables();
         } catch (IOException e) {
@@ -60,6 +93,41 @@ public final class DbTableProvider implements TableProvider, AutoCloseable {
         }
     }
 
+    /**
+     * Checks headers, checksums and key directories of all shard files of the database in parallel.
+     * Values aren't loaded. Nobody may write the database while it's checked.
+     * @param rootDir
+     * @return Descriptions of damaged shard files, empty if all of them are fine.
+     */
+    public static List<String> verifyShards(final Path rootDir) throws IOException {
+        List<Path> shardFiles = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(rootDir)) {
+            for (Path tableDir : stream) {
+                if (Files.isDirectory(tableDir)) {
+                    shardFiles.addAll(TableLoaderDumper.listShardFiles(tableDir));
+                }
+            }
+        }
+        ExecutorService verifiers = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        try {
+            List<Future<String>> results = new ArrayList<>();
+            for (Path shardFile : shardFiles) {
+                results.add(verifiers.submit(() -> TableLoaderDumper.verifyShardFile(shardFile)));
+            }
+            List<String> damagedShards = new ArrayList<>();
+            for (Future<String> result : results) {
+                if (result.get() != null) {
+                    damagedShards.add(result.get());
+                }
+            }
+            return damagedShards;
+        } catch (InterruptedException | ExecutionException e) {
+            throw new IOException("can't verify shards of " + rootDir.toString() + ": " + e.getMessage(), e);
+        } finally {
+            verifiers.shutdown();
+        }
+    }
+
     private boolean containsTable(final String tableName) {
         closedLock.readLock().lock();
         tablesMapLock.readLock().lock();
@@ -90,7 +158,8 @@ public final class DbTableProvider implements TableProvider, AutoCloseable {
             } else {
                 DbTable table = tables.get(tableName);
                 if (table == null) {
-                    tables.put(tableName, DbTable.loadExistingDbTable(getTablePath(tableName), this));
+                    tables.put(tableName, DbTable.loadExistingDbTable(getTablePath(tableName), this, lazyLoading,
+                            memoryBudget));
                 }
                 return tables.get(tableName);
             }
@@ -102,6 +171,16 @@ public final class DbTableProvider implements TableProvider, AutoCloseable {
 
     @Override
     public DbTable createTable(final String tableName, final List<Class<?>> columnTypes) throws IOException {
+        return createTable(tableName, columnTypes, new TableOptions());
+    }
+
+    /**
+     * Creates table with the given settings, e.g. sharding of keys.
+     * @return Created table or null if the table with such name already exists.
+     */
+    public DbTable createTable(final String tableName,
+                               final List<Class<?>> columnTypes,
+                               final TableOptions options) throws IOException {
         closedLock.readLock().lock();
         try {
             checkClosed();
@@ -109,13 +188,16 @@ public final class DbTableProvider implements TableProvider, AutoCloseable {
                 throw new WrongTableNameException(tableName);
             } else if (columnTypes == null) {
                 throw new IllegalArgumentException("wrong column types signature");
+            } else if (options == null) {
+                throw new IllegalArgumentException("table options are null");
             } else {
+                options.validate();
                 tablesMapLock.writeLock().lock();
                 try {
                     if (!containsTable(tableName)) {
                         Path tablePath = getTablePath(tableName);
                         Files.createDirectory(tablePath);
-                        DbTable table = DbTable.createDbTable(tablePath, columnTypes, this);
+                        DbTable table = DbTable.createDbTable(tablePath, columnTypes, this, options, memoryBudget);
                         tables.put(tableName, table);
                         return table;
                     } else {
@@ -158,90 +240,157 @@ public final class DbTableProvider implements TableProvider, AutoCloseable {
         }
     }
 
+    /**
+     * Creates secondary index of the column of the table, see DbTableIndex.
+     * @return Index, which is a read-only Table, or null if the column already has an index.
+     * @throws IllegalStateException If there is no such table.
+     */
+    public Table createIndex(final String tableName, int columnIndex) {
+        return getExistingTable(tableName).createIndex(columnIndex);
+    }
+
+    /**
+     * @return Index of the column of the table or null if the column has no index.
+     * @throws IllegalStateException If there is no such table.
+     */
+    public Table getIndex(final String tableName, int columnIndex) {
+        return getExistingTable(tableName).getIndex(columnIndex);
+    }
+
+    /**
+     * @return Approximate number of bytes taken by loaded rows of every opened table.
+     * Tables which haven't been opened yet take nothing and aren't listed.
+     */
+    public Map<String, Long> getResidentBytes() {
+        closedLock.readLock().lock();
+        tablesMapLock.readLock().lock();
+        try {
+            checkClosed();
+            Map<String, Long> residentBytes = new TreeMap<>();
+            tables.forEach((tableName, table) -> {
+                if (table != null) {
+                    residentBytes.put(tableName, table.getResidentBytes());
+                }
+            });
+            return residentBytes;
+        } finally {
+            tablesMapLock.readLock().unlock();
+            closedLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return Limit of memory taken by loaded shards of all tables, NO_MEMORY_BUDGET if there is no limit.
+     */
+    public long getMemoryBudgetBytes() {
+        return memoryBudget == null ? NO_MEMORY_BUDGET : memoryBudget.getLimitBytes();
+    }
+
+    private DbTable getExistingTable(final String tableName) {
+        DbTable table = (DbTable) getTable(tableName);
+        if (table == null) {
+            throw new IllegalStateException("there is no tables with name \"" + tableName + "\"");
+        }
+        return table;
+    }
+
     @Override
     public Storeable deserialize(final Table table, final String value) throws ParseException {
         closedLock.readLock().lock();
         try {
             checkClosed();
-            String str = value.trim();
-            if (!str.matches(JSON_REGEX)) {
-                throw new ParseException("value isn't in JSON format", 0);
-            } else {
-                try {
-                    int leftBracket = str.indexOf('[');
-                    int rightBracket = str.lastIndexOf(']');
-                    List<Object> values = new LinkedList<>();
-                    int i = leftBracket + 1;
-                    while (i < rightBracket) {
-                        char currChar = str.charAt(i);
-                        if (currChar == '\"') {
-                            // String argument. Finding end quote.
-                            int endQuoteIndex = i + 1;
-                            while (!(str.charAt(endQuoteIndex) == '\"' && str.charAt(endQuoteIndex - 1) != '\\')) {
-                                endQuoteIndex++;
-                            }
-                            String strColumn = str.substring(i + 1, endQuoteIndex);
-                            values.add(strColumn);
-                            i = endQuoteIndex + 1;
-                        } else if (Character.isSpaceChar(currChar) || currChar == ',') {
-                            i++;
-                        } else if (Character.isDigit(currChar) || currChar == '-') {
-                            int nextComma = str.indexOf(',', i);
-                            if (nextComma == -1) {
-                                // Last column.
-                                nextComma = rightBracket;
-                            }
-                            String number = str.substring(i, nextComma).trim();
-                            Class<?> tableColType = table.getColumnType(values.size());
-                            if (number.indexOf('.') != -1) {
-                                if (tableColType.equals(Double.class)) {
-                                    values.add(new Double(number));
-                                } else if (tableColType.equals(Float.class)) {
-                                    values.add(new Float(number));
-                                }
-                            } else {
-                                if (tableColType.equals(Integer.class)) {
-                                    values.add(new Integer(number));
-                                } else if (tableColType.equals(Long.class)) {
-                                    values.add(new Long(number));
-                                } else if (tableColType.equals(Double.class)) {
-                                    values.add(new Double(number));
-                                } else if (tableColType.equals(Float.class)) {
-                                    values.add(new Float(number));
-                                }
+            return createRow(table, parseRow(getColumnTypes(table), value));
+        } finally {
+            closedLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Same as deserialize(), but it doesn't need an open provider or table, only the table's schema.
+     * Tables use it to read JSON shards on the threads of their I/O pools, which mustn't wait for them.
+     */
+    public static Storeable deserializeRow(final RowSchema schema, final String value) throws ParseException {
+        return new PackedTableRow(schema, parseRow(schema.getColumnTypes(), value));
+    }
+
+    private static List<Object> parseRow(final List<Class<?>> columnTypes, final String value)
+            throws ParseException {
+        String str = value.trim();
+        if (!str.matches(JSON_REGEX)) {
+            throw new ParseException("value isn't in JSON format", 0);
+        } else {
+            try {
+                int leftBracket = str.indexOf('[');
+                int rightBracket = str.lastIndexOf(']');
+                List<Object> values = new LinkedList<>();
+                int i = leftBracket + 1;
+                while (i < rightBracket) {
+                    char currChar = str.charAt(i);
+                    if (currChar == '\"') {
+                        // String argument. Finding end quote.
+                        int endQuoteIndex = i + 1;
+                        while (!(str.charAt(endQuoteIndex) == '\"' && str.charAt(endQuoteIndex - 1) != '\\')) {
+                            endQuoteIndex++;
+                        }
+                        String strColumn = str.substring(i + 1, endQuoteIndex);
+                        values.add(strColumn);
+                        i = endQuoteIndex + 1;
+                    } else if (Character.isSpaceChar(currChar) || currChar == ',') {
+                        i++;
+                    } else if (Character.isDigit(currChar) || currChar == '-') {
+                        int nextComma = str.indexOf(',', i);
+                        if (nextComma == -1) {
+                            // Last column.
+                            nextComma = rightBracket;
+                        }
+                        String number = str.substring(i, nextComma).trim();
+                        Class<?> tableColType = columnTypes.get(values.size());
+                        if (number.indexOf('.') != -1) {
+                            if (tableColType.equals(Double.class)) {
+                                values.add(new Double(number));
+                            } else if (tableColType.equals(Float.class)) {
+                                values.add(new Float(number));
                             }
-                            i = nextComma + 1;
                         } else {
-                            // Boolean or null
-                            int nextComma = str.indexOf(',', i);
-                            if (nextComma == -1) {
-                                nextComma = rightBracket;
+                            if (tableColType.equals(Integer.class)) {
+                                values.add(new Integer(number));
+                            } else if (tableColType.equals(Long.class)) {
+                                values.add(new Long(number));
+                            } else if (tableColType.equals(Double.class)) {
+                                values.add(new Double(number));
+                            } else if (tableColType.equals(Float.class)) {
+                                values.add(new Float(number));
                             }
-                            String boolOrNullValue = str.substring(i, nextComma).trim();
-                            if (boolOrNullValue.equals("true")) {
-                                values.add(true);
-                            } else if (boolOrNullValue.equals("false")) {
-                                values.add(false);
-                            } else if (boolOrNullValue.equals("null")) {
-                                values.add(null);
-                            } else {
-                                throw new ParseException("it's not possible, but there is a parse error!", 0);
-                            }
-                            i = nextComma + 1;
                         }
+                        i = nextComma + 1;
+                    } else {
+                        // Boolean or null
+                        int nextComma = str.indexOf(',', i);
+                        if (nextComma == -1) {
+                            nextComma = rightBracket;
+                        }
+                        String boolOrNullValue = str.substring(i, nextComma).trim();
+                        if (boolOrNullValue.equals("true")) {
+                            values.add(true);
+                        } else if (boolOrNullValue.equals("false")) {
+                            values.add(false);
+                        } else if (boolOrNullValue.equals("null")) {
+                            values.add(null);
+                        } else {
+                            throw new ParseException("it's not possible, but there is a parse error!", 0);
+                        }
+                        i = nextComma + 1;
                     }
-                    if (values.size() != table.getColumnsCount()) {
-                        throw new ParseException("incompatible sizes of Storeable in the table and json you passed", 0);
-                    }
-                    return createFor(table, values);
-                } catch (IndexOutOfBoundsException e) {
-                    throw new ParseException("can't parse your json", 0);
-                } catch (NumberFormatException e) {
-                    throw new ParseException("types incompatibility", 0);
                 }
+                if (values.size() != columnTypes.size()) {
+                    throw new ParseException("incompatible sizes of Storeable in the table and json you passed", 0);
+                }
+                return values;
+            } catch (IndexOutOfBoundsException e) {
+                throw new ParseException("can't parse your json", 0);
+            } catch (NumberFormatException e) {
+                throw new ParseException("types incompatibility", 0);
             }
-        } finally {
-            closedLock.readLock().unlock();
         }
     }
 
@@ -250,40 +399,57 @@ public final class DbTableProvider implements TableProvider, AutoCloseable {
         closedLock.readLock().lock();
         try {
             checkClosed();
-            if (value == null) {
-                return null;
-            } else {
-                List<String> strColumns = new LinkedList<>();
-                for (int i = 0; i < table.getColumnsCount(); ++i) {
-                    if (value.getColumnAt(i) == null) {
-                        strColumns.add(null);
-                    } else {
-                        Class<?> tableColumnType = table.getColumnType(i);
-                        Class<?> valueColumnType = value.getColumnAt(i).getClass();
-                        if (!tableColumnType.equals(valueColumnType)) {
-                            throw new ColumnFormatException();
-                        } else if (valueColumnType.equals(String.class)) {
-                            strColumns.add("\"" + value.getColumnAt(i).toString() + "\"");
-                        } else {
-                            strColumns.add(value.getColumnAt(i).toString());
-                        }
-                    }
-                }
-                StringBuilder b = new StringBuilder(String.join(", ", strColumns));
-                b.insert(0, "[");
-                b.append("]");
-                return b.toString();
-            }
+            return serializeRow(getColumnTypes(table), value);
         } finally {
             closedLock.readLock().unlock();
         }
     }
 
+    /**
+     * Same as serialize(), but it doesn't need an open provider or table, only column types. Tables use it
+     * to write JSON shards in background while the provider or the table is being closed.
+     */
+    public static String serializeRow(final List<Class<?>> columnTypes, final Storeable value)
+            throws ColumnFormatException {
+        if (value == null) {
+            return null;
+        }
+        List<String> strColumns = new LinkedList<>();
+        for (int i = 0; i < columnTypes.size(); ++i) {
+            strColumns.add(serializeColumn(columnTypes.get(i), value.getColumnAt(i)));
+        }
+        StringBuilder b = new StringBuilder(String.join(", ", strColumns));
+        b.insert(0, "[");
+        b.append("]");
+        return b.toString();
+    }
+
+    /**
+     * Serializes a column value the way serialize() does it in a row.
+     * @return Null if the value is null.
+     * @throws ColumnFormatException If the value isn't of the column type.
+     */
+    public static String serializeColumn(final Class<?> columnType, final Object value)
+            throws ColumnFormatException {
+        if (value == null) {
+            return null;
+        } else if (!columnType.equals(value.getClass())) {
+            throw new ColumnFormatException();
+        } else if (columnType.equals(String.class)) {
+            return "\"" + value.toString() + "\"";
+        } else {
+            return value.toString();
+        }
+    }
+
     @Override
     public Storeable createFor(final Table table) {
         closedLock.readLock().lock();
         try {
             checkClosed();
+            if (table instanceof DbTable) {
+                return new PackedTableRow(((DbTable) table).getRowSchema());
+            }
             return new TableRow(Arrays.asList(new Object[table.getColumnsCount()]));
         } finally {
             closedLock.readLock().unlock();
@@ -296,22 +462,40 @@ public final class DbTableProvider implements TableProvider, AutoCloseable {
         closedLock.readLock().lock();
         try {
             checkClosed();
-            List<Object> storeableValues = new LinkedList<>();
-            for (int i = 0; i < values.size(); ++i) {
-                if (values.get(i) != null && !table.getColumnType(i).equals(values.get(i).getClass())) {
-                    throw new ColumnFormatException("types incompatibility, needed type: "
-                            + TypeStringTranslator.getStringNameByType(table.getColumnType(i)) + ", passed type: "
-                            + TypeStringTranslator.getStringNameByType(values.get(i).getClass()));
-                } else {
-                    storeableValues.add(values.get(i));
-                }
-            }
-            return new TableRow(storeableValues);
+            return createRow(table, values);
         } finally {
             closedLock.readLock().unlock();
         }
     }
 
+    /**
+     * Rows of DbTable are PackedTableRow of its schema, so they are stored without boxing.
+     */
+    private static List<Class<?>> getColumnTypes(final Table table) {
+        List<Class<?>> columnTypes = new ArrayList<>();
+        for (int i = 0; i < table.getColumnsCount(); ++i) {
+            columnTypes.add(table.getColumnType(i));
+        }
+        return columnTypes;
+    }
+
+    private static Storeable createRow(final Table table, final List<?> values) throws ColumnFormatException {
+        if (table instanceof DbTable) {
+            return new PackedTableRow(((DbTable) table).getRowSchema(), values);
+        }
+        List<Object> storeableValues = new LinkedList<>();
+        for (int i = 0; i < values.size(); ++i) {
+            if (values.get(i) != null && !table.getColumnType(i).equals(values.get(i).getClass())) {
+                throw new ColumnFormatException("types incompatibility, needed type: "
+                        + TypeStringTranslator.getStringNameByType(table.getColumnType(i)) + ", passed type: "
+                        + TypeStringTranslator.getStringNameByType(values.get(i).getClass()));
+            } else {
+                storeableValues.add(values.get(i));
+            }
+        }
+        return new TableRow(storeableValues);
+    }
+
     @Override
     public List<String> getTableNames() {
         closedLock.readLock().lock();
@@ -330,7 +514,31 @@ public final class DbTableProvider implements TableProvider, AutoCloseable {
         closedLock.writeLock().lock();
         try {
             checkClosed();
-            closed = true;
+            RuntimeException tableException = null;
+            try {
+                for (DbTable table : tables.values()) {
+                    // Tables closed by the user are skipped, a failed table doesn't stop closing of the others.
+                    try {
+                        if (table != null && !table.isClosed()) {
+                            table.close();
+                        }
+                    } catch (RuntimeException e) {
+                        if (tableException == null) {
+                            tableException = e;
+                        } else {
+                            tableException.addSuppressed(e);
+                        }
+                    }
+                }
+                if (memoryBudget != null) {
+                    memoryBudget.close();
+                }
+            } finally {
+                closed = true;
+            }
+            if (tableException != null) {
+                throw tableException;
+            }
         } finally {
             closedLock.writeLock().unlock();
         }
@@ -8,11 +8,17 @@ import org.junit.rules.TemporaryFolder;
 import ru.fizteh.fivt.storage.structured.Storeable;
 import ru.fizteh.fivt.storage.structured.Table;
 import ru.fizteh.fivt.storage.structured.TableProvider;
+import ru.fizteh.fivt.students.dmitry_persiyanov.database.db_table.DbTable;
+import ru.fizteh.fivt.students.dmitry_persiyanov.database.exceptions.TableCorruptedException;
 import ru.fizteh.fivt.students.dmitry_persiyanov.database.exceptions.WrongTableNameException;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.text.ParseException;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
 
@@ -162,6 +168,113 @@ public class DbTableProviderTest {
         assertEquals(expected.getColumnAt(2), actual.getColumnAt(2));
     }
 
+    @Test
+    public void verifyShardsReportsTruncatedAndDamagedShards() throws Exception {
+        Table t = dbm.createTable("t", signature);
+        t.put("a", dbm.deserialize(t, "[\"a\"]"));
+        t.put("b", dbm.deserialize(t, "[\"b\"]"));
+        t.put("c", dbm.deserialize(t, "[\"c\"]"));
+        t.commit();
+        dbm.close();
+        assertEquals(Collections.emptyList(), DbTableProvider.verifyShards(dbDir.toPath()));
+
+        Path tableDir = dbDir.toPath().resolve("t");
+        // Shards of 'a' and 'b' are 1.dir/6.1.dat and 2.dir/6.1.dat.
+        Path truncated = tableDir.resolve("1.dir").resolve("6.1.dat");
+        byte[] truncatedBytes = Files.readAllBytes(truncated);
+        Files.write(truncated, Arrays.copyOf(truncatedBytes, truncatedBytes.length - 1));
+        Path damaged = tableDir.resolve("2.dir").resolve("6.1.dat");
+        byte[] bytes = Files.readAllBytes(damaged);
+        // The last byte of the value, it's followed by the checksum of the value block.
+        bytes[bytes.length - 5] ^= 1;
+        Files.write(damaged, bytes);
+        List<String> damagedShards = DbTableProvider.verifyShards(dbDir.toPath());
+        assertEquals(2, damagedShards.size());
+        Collections.sort(damagedShards);
+        assertTrue(damagedShards.get(0).startsWith(truncated.toString()));
+        assertTrue(damagedShards.get(1).startsWith(damaged.toString()));
+
+        // Size of the table is taken from the manifest, so damaged shards are found when they are read.
+        dbm = new DbTableProvider(dbDir.toPath(), true);
+        Table lazy = dbm.getTable("t");
+        assertEquals(3, lazy.size());
+        assertEquals("[\"c\"]", dbm.serialize(lazy, lazy.get("c")));
+        try {
+            lazy.get("a");
+            fail();
+        } catch (TableCorruptedException e) {
+            assertTrue(e.getCause().getMessage().contains("file size"));
+        }
+        try {
+            lazy.get("b");
+            fail();
+        } catch (TableCorruptedException e) {
+            assertTrue(e.getCause().getMessage().contains("checksum"));
+        }
+    }
+
+    @Test
+    public void memoryBudgetUnloadsColdShards() throws Exception {
+        for (String tableName : Arrays.asList("t1", "t2")) {
+            Table table = dbm.createTable(tableName, signature);
+            for (int i = 0; i < 200; ++i) {
+                table.put(getSpreadKey(i), dbm.deserialize(table, "[\"value" + i + "\"]"));
+            }
+            table.commit();
+        }
+        dbm.close();
+
+        long budget = 4000;
+        dbm = new DbTableProvider(dbDir.toPath(), true, budget);
+        assertEquals(budget, dbm.getMemoryBudgetBytes());
+        for (String tableName : Arrays.asList("t1", "t2")) {
+            Table table = dbm.getTable(tableName);
+            for (int i = 0; i < 200; ++i) {
+                assertEquals("value" + i, table.get(getSpreadKey(i)).getStringAt(0));
+            }
+        }
+        long deadline = System.currentTimeMillis() + 10000;
+        while (totalResidentBytes() > budget && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(dbm.getResidentBytes().toString(), totalResidentBytes() <= budget);
+        assertEquals(2, dbm.getResidentBytes().size());
+        // Unloaded shards are read again.
+        Table table = dbm.getTable("t1");
+        for (int i = 0; i < 200; ++i) {
+            assertEquals("value" + i, table.get(getSpreadKey(i)).getStringAt(0));
+        }
+        assertEquals(200, table.size());
+    }
+
+    @Test
+    public void closeSkipsTablesClosedByUser() throws Exception {
+        Table closedTable = dbm.createTable("t1", signature);
+        Table table = dbm.createTable("t2", signature);
+        table.put("key", dbm.deserialize(table, "[\"value\"]"));
+        table.commit();
+        ((DbTable) closedTable).close();
+        dbm.close();
+        assertTrue(((DbTable) table).isClosed());
+        try {
+            dbm.getTable("t2");
+            fail();
+        } catch (IllegalStateException e) {
+            // Provider is closed.
+        }
+        dbm = new DbTableProvider(dbDir.toPath());
+        assertEquals("value", dbm.getTable("t2").get("key").getStringAt(0));
+    }
+
+    // Keys with different first letters, which go to different shards.
+    private static String getSpreadKey(int i) {
+        return (char) ('a' + i % 26) + "key" + i;
+    }
+
+    private long totalResidentBytes() {
+        return dbm.getResidentBytes().values().stream().mapToLong(Long::longValue).sum();
+    }
+
     @After
     public void tearDown() throws Exception {
         dbm.close();